@@ -0,0 +1,51 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost per reading of the device alert rules Device evaluates as it records a reading,
+// with the readings on the quiet side of every threshold. Run with the allocation
+// profiler to check that evaluation does not allocate:
+//   ./gradlew jmh -PjmhArgs="AlertEvaluation -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AlertEvaluationBenchmark {
+
+    @Param({"0", "10", "100"})
+    public int rules;
+
+    private ActorSystem system;
+    private IotAlerts alerts;
+    private AlertRules.DeviceAlerts deviceAlerts;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = ActorSystem.create("alert-evaluation");
+        alerts = IotAlerts.get(system);
+        List<IotAlerts.Rule> deviceRules = new ArrayList<>();
+        for (int i = 0; i < rules; i++) {
+            deviceRules.add(new IotAlerts.DeviceThreshold("hot-" + i, null, true, 100.0 + i, 1000L));
+        }
+        alerts.setRules(deviceRules);
+        deviceAlerts = alerts.rules().forDevice("group", "device", null, alerts, 0L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    public void record() {
+        deviceAlerts.record(21.5, timestamp++, alerts, "group", "device");
+    }
+}
@@ -0,0 +1,122 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    static ActorSystem createSystem(String name, String dispatcher, String mailbox) {
+        return ActorSystem.create(name, config(dispatcher, mailbox));
+    }
+
+    // Dispatcher and mailbox setups the actor benchmarks are parameterized with
+    static Config config(String dispatcher, String mailbox) {
+        StringBuilder config = new StringBuilder()
+                .append("akka.loglevel = WARNING\n")
+                .append("akka.stdout-loglevel = WARNING\n");
+        switch (dispatcher) {
+            case "default":
+                break;
+            case "throughput-100":
+                config.append("akka.actor.default-dispatcher.throughput = 100\n");
+                break;
+            case "affinity":
+                config.append("akka.actor.default-dispatcher.executor = affinity-pool-executor\n");
+                // The default queue of 512 tasks per thread overflows under registration storms
+                config.append("akka.actor.default-dispatcher.affinity-pool-executor.task-queue-size = 1048576\n");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown dispatcher setup " + dispatcher);
+        }
+        switch (mailbox) {
+            case "unbounded":
+                break;
+            case "single-consumer":
+                config.append("akka.actor.default-mailbox.mailbox-type = akka.dispatch.SingleConsumerOnlyUnboundedMailbox\n");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mailbox setup " + mailbox);
+        }
+        return ConfigFactory.parseString(config.toString()).withFallback(ConfigFactory.load());
+    }
+
+    // Per-tier dispatcher and mailbox setups (iot.manager/group/device) of TierTopologyBenchmark
+    static Config topologyConfig(String topology) {
+        StringBuilder config = new StringBuilder()
+                .append("akka.loglevel = WARNING\n")
+                .append("akka.stdout-loglevel = WARNING\n");
+        switch (topology) {
+            case "default":
+                break;
+            case "tier-pools":
+                config.append("iot.group.dispatcher = iot.dispatchers.group-pool\n");
+                config.append("iot.device.dispatcher = iot.dispatchers.device-pool\n");
+                break;
+            case "tier-pools-array":
+                config.append("iot.group.dispatcher = iot.dispatchers.group-pool\n");
+                config.append("iot.device.dispatcher = iot.dispatchers.device-pool\n");
+                config.append("iot.device.mailbox = iot.mailboxes.array\n");
+                break;
+            case "pinned-manager":
+                config.append("iot.manager.dispatcher = iot.dispatchers.pinned\n");
+                config.append("iot.group.dispatcher = iot.dispatchers.group-pool\n");
+                config.append("iot.group.mailbox = iot.mailboxes.single-consumer\n");
+                config.append("iot.device.dispatcher = iot.dispatchers.device-pool\n");
+                config.append("iot.device.mailbox = iot.mailboxes.single-consumer\n");
+                break;
+            case "affinity":
+                config.append("iot.group.dispatcher = iot.dispatchers.affinity-pool\n");
+                config.append("iot.device.dispatcher = iot.dispatchers.affinity-pool\n");
+                config.append("iot.device.mailbox = iot.mailboxes.array\n");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown topology " + topology);
+        }
+        return ConfigFactory.parseString(config.toString()).withFallback(ConfigFactory.load());
+    }
+
+    static void shutdown(ActorSystem system) {
+        system.terminate();
+        system.getWhenTerminated().toCompletableFuture().join();
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    // An actor that hands every message it gets to the benchmark thread
+    static ActorRef replyHandler(ActorSystem system, Consumer<Object> handler) {
+        return system.actorOf(Props.create(ReplyHandler.class, () -> new ReplyHandler(handler)));
+    }
+
+    private static final class ReplyHandler extends AbstractActor {
+        private final Consumer<Object> handler;
+
+        ReplyHandler(Consumer<Object> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .matchAny(handler::accept)
+                    .build();
+        }
+    }
+}
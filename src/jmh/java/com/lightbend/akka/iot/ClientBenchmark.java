@@ -0,0 +1,85 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+import com.lightbend.akka.iot.DeviceGroup.ReadDeviceTemperature;
+import com.lightbend.akka.iot.DeviceManager.GroupMessage;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// ReadDeviceTemperature through a DeviceManager with PatternsCS.ask against IotClient,
+// one request at a time (round-trip latency) and PIPELINED requests in flight at once
+// (time per request, the inverse of throughput)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientBenchmark {
+
+    private static final int PIPELINED = 1_000;
+    private static final long TIMEOUT_MILLIS = 5_000L;
+
+    @Param({"default", "throughput-100", "affinity"})
+    public String dispatcher;
+
+    @Param({"unbounded", "single-consumer"})
+    public String mailbox;
+
+    private ActorSystem system;
+    private ActorRef manager;
+    private IotClient client;
+    private long requestId;
+    private final CompletableFuture<?>[] inFlight = new CompletableFuture<?>[PIPELINED];
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        system = BenchmarkSupport.createSystem("client", dispatcher, mailbox);
+        manager = system.actorOf(DeviceManager.props());
+        PatternsCS.ask(manager, new RequestTrackDevice("group", "device"), TIMEOUT_MILLIS)
+                .toCompletableFuture().get();
+        client = IotClient.create(system, manager);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    public Object ask() throws Exception {
+        return PatternsCS.ask(manager, new GroupMessage("group", new ReadDeviceTemperature("device", requestId++)),
+                TIMEOUT_MILLIS).toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public Object client() throws Exception {
+        return client.read("group", "device").toCompletableFuture().get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED)
+    public void askPipelined() throws Exception {
+        for (int i = 0; i < PIPELINED; i++) {
+            inFlight[i] = PatternsCS.ask(manager,
+                    new GroupMessage("group", new ReadDeviceTemperature("device", requestId++)),
+                    TIMEOUT_MILLIS).toCompletableFuture();
+        }
+        CompletableFuture.allOf(inFlight).get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINED)
+    public void clientPipelined() throws Exception {
+        for (int i = 0; i < PIPELINED; i++) {
+            inFlight[i] = client.read("group", "device").toCompletableFuture();
+        }
+        CompletableFuture.allOf(inFlight).get();
+    }
+}
@@ -0,0 +1,55 @@
+package com.lightbend.akka.iot;
+
+import akka.event.NoLogging;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Append throughput of the device journal with several device actors writing at once
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class DeviceJournalBenchmark {
+
+    private static final int DEVICES = 1024;
+
+    private final String[] deviceIds = new String[DEVICES];
+    private Path directory;
+    private DeviceJournal journal;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        long requestId;
+    }
+
+    @Setup(Level.Trial)
+    public void openJournal() throws IOException {
+        for (int i = 0; i < DEVICES; i++) {
+            deviceIds[i] = "device" + i;
+        }
+        directory = Files.createTempDirectory("iot-journal-bench");
+        journal = new DeviceJournal(directory, 64 << 20, 4, NoLogging.getInstance());
+        // Flushing and snapshotting keep the number of segments on disk bounded
+        journal.startFlushing(1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeJournal() throws IOException {
+        journal.close();
+        BenchmarkSupport.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void recordTemperature(Writer writer) {
+        long requestId = writer.requestId++;
+        journal.temperatureRecorded(
+                "group", deviceIds[(int) (requestId % DEVICES)], requestId, 21.5, 1_500_000_000_000L + requestId);
+    }
+}
@@ -0,0 +1,62 @@
+package com.lightbend.akka.iot;
+
+import akka.event.NoLogging;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Time to recover every device of a journal, either from a snapshot or by replaying all segments
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DeviceJournalRecoveryBenchmark {
+
+    private static final int GROUP_SIZE = 1000;
+    private static final int READINGS_PER_DEVICE = 3;
+
+    @Param({"100000", "1000000"})
+    public int devices;
+
+    @Param({"true", "false"})
+    public boolean snapshot;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void writeJournal() throws IOException {
+        directory = Files.createTempDirectory("iot-journal-recovery");
+        DeviceJournal journal = new DeviceJournal(directory, 64 << 20, 1, NoLogging.getInstance());
+        for (int i = 0; i < devices; i++) {
+            journal.deviceTracked("group" + i / GROUP_SIZE, "device" + i);
+        }
+        for (int reading = 0; reading < READINGS_PER_DEVICE; reading++) {
+            for (int i = 0; i < devices; i++) {
+                journal.temperatureRecorded(
+                        "group" + i / GROUP_SIZE, "device" + i, reading, 20.0 + reading, 1_500_000_000_000L + i);
+            }
+        }
+        if (snapshot) {
+            journal.flushAndSnapshot();
+        }
+        journal.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteJournal() throws IOException {
+        BenchmarkSupport.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public int recover() {
+        DeviceJournal journal = new DeviceJournal(directory, 64 << 20, 1, NoLogging.getInstance());
+        int groups = journal.takeRecoveredState().size();
+        journal.close();
+        return groups;
+    }
+}
@@ -0,0 +1,71 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// RequestTrackDevice throughput through DeviceManager -> DeviceGroup -> Device
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceRegistrationBenchmark {
+
+    private static final int GROUPS = 100;
+    private static final int DEVICES_PER_INVOCATION = 10_000;
+
+    @Param({"default", "throughput-100", "affinity"})
+    public String dispatcher;
+
+    @Param({"unbounded", "single-consumer"})
+    public String mailbox;
+
+    // 1 runs a single unsharded DeviceManager
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private ActorSystem system;
+    private ActorRef replies;
+    private ActorRef manager;
+    private long nextDeviceId;
+    private volatile CountDownLatch registered;
+
+    @Setup(Level.Trial)
+    public void startSystem() {
+        system = BenchmarkSupport.createSystem("registration", dispatcher, mailbox);
+        replies = BenchmarkSupport.replyHandler(system, reply -> registered.countDown());
+    }
+
+    // A fresh manager per iteration keeps the number of live devices bounded
+    @Setup(Level.Iteration)
+    public void startManager() {
+        manager = system.actorOf(shards == 1 ? DeviceManager.props() : DeviceManager.shardedProps(system, shards));
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopManager() {
+        system.stop(manager);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopSystem() {
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DEVICES_PER_INVOCATION)
+    public void registerDevices() throws InterruptedException {
+        registered = new CountDownLatch(DEVICES_PER_INVOCATION);
+        for (int i = 0; i < DEVICES_PER_INVOCATION; i++) {
+            long deviceId = nextDeviceId++;
+            manager.tell(new RequestTrackDevice("group" + (deviceId % GROUPS), "device" + deviceId), replies);
+        }
+        registered.await();
+    }
+}
@@ -0,0 +1,79 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of the per-reading log statement in Device: LoggingAdapter (boxes and formats on
+// the calling thread) against HotPathLog, with the level enabled and disabled. Run with
+// the allocation profiler to compare allocation rates:
+//   ./gradlew jmh -PjmhArgs="HotPathLogging -prof gc"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathLoggingBenchmark {
+
+    private static final String TEMPLATE = "Recorded temperature reading {} with {}";
+
+    @Param({"INFO", "WARNING"})
+    public String level;
+
+    private ActorSystem system;
+    private LoggingAdapter adapter;
+    private HotPathLog hotPathLog;
+    private HotPathLog sampledLog;
+    private long requestId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = ActorSystem.create("hot-path-logging", ConfigFactory.parseString(
+                "akka.loglevel = " + level + "\n" +
+                        "akka.loggers = [\"" + NullLogger.class.getName() + "\"]\n" +
+                        "iot.logging.categories.sampled.sample-every = 100\n")
+                .withFallback(ConfigFactory.load()));
+        adapter = Logging.getLogger(system, HotPathLoggingBenchmark.class);
+        hotPathLog = IotLogging.get(system).logger("benchmark", HotPathLoggingBenchmark.class);
+        sampledLog = IotLogging.get(system).logger("sampled", HotPathLoggingBenchmark.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    public void loggingAdapter() {
+        adapter.info(TEMPLATE, 21.5, requestId++);
+    }
+
+    @Benchmark
+    public void hotPathLog() {
+        hotPathLog.info("benchmark", TEMPLATE, 21.5, requestId++);
+    }
+
+    @Benchmark
+    public void hotPathLogSampled() {
+        sampledLog.info("benchmark", TEMPLATE, 21.5, requestId++);
+    }
+
+    // Swallows log events so that only their production is measured
+    public static final class NullLogger extends AbstractActor {
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(Logging.InitializeLogger.class,
+                            init -> getSender().tell(Logging.loggerInitialized(), getSelf()))
+                    .matchAny(event -> {
+                    })
+                    .build();
+        }
+    }
+}
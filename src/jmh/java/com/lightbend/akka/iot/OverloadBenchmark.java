@@ -0,0 +1,103 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.DeviceGroup.ReadDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Latency of ReadDeviceTemperature through a group whose devices a background thread
+// floods with readings, on Akka's default mailbox and on iot.mailboxes.priority with each
+// shedding policy. With more readings than the group keeps up with, reads on the default
+// mailbox wait for the whole backlog.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class OverloadBenchmark {
+
+    private static final int DEVICES = 1_000;
+
+    @Param({"default", "priority-off", "priority-collapse", "priority-reject"})
+    public String mailbox;
+
+    // Readings per second sent to the group, unacknowledged
+    @Param({"200000"})
+    public int backgroundRate;
+
+    private ActorSystem system;
+    private final BlockingQueue<Object> replies = new LinkedBlockingQueue<>();
+    private ActorRef replyHandler;
+    private ActorRef group;
+    private Thread background;
+    private volatile boolean running;
+    private long requestId;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        StringBuilder config = new StringBuilder()
+                .append("akka.loglevel = WARNING\n")
+                .append("akka.stdout-loglevel = WARNING\n");
+        if (mailbox.startsWith("priority-")) {
+            config.append("iot.group.mailbox = iot.mailboxes.priority\n");
+            config.append("iot.device.mailbox = iot.mailboxes.priority\n");
+            config.append("iot.mailboxes.priority.high-water-mark = 1000\n");
+            config.append("iot.mailboxes.priority.shedding = ").append(mailbox.substring("priority-".length()))
+                    .append('\n');
+        }
+        system = ActorSystem.create("overload", ConfigFactory.parseString(config.toString())
+                .withFallback(ConfigFactory.load()));
+        CountDownLatch registered = new CountDownLatch(DEVICES);
+        ActorRef registrations = BenchmarkSupport.replyHandler(system, reply -> registered.countDown());
+        group = system.actorOf(IotSettings.get(system).deploy(DeviceGroup.props("group"), IotMetrics.Tier.GROUP));
+        for (int device = 0; device < DEVICES; device++) {
+            group.tell(new RequestTrackDevice("group", "device" + device), registrations);
+        }
+        registered.await();
+        replyHandler = BenchmarkSupport.replyHandler(system, replies::add);
+        running = true;
+        background = new Thread(this::sendBackgroundLoad, "background-load");
+        background.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        background.join();
+        IotMetrics.SheddingMetrics shedding = IotMetrics.get(system).shedding();
+        System.out.printf("%nShed %d readings by collapsing, %d by rejecting%n",
+                shedding.collapsed(), shedding.rejected());
+        BenchmarkSupport.shutdown(system);
+    }
+
+    private void sendBackgroundLoad() {
+        int perSlice = Math.max(1, backgroundRate / 1_000);
+        long next = System.nanoTime();
+        while (running) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < perSlice; i++) {
+                group.tell(new RecordDeviceTemperature("device" + random.nextInt(DEVICES), 0L, 21.5),
+                        ActorRef.noSender());
+            }
+            next += TimeUnit.MILLISECONDS.toNanos(1);
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+    }
+
+    @Benchmark
+    public Object readUnderOverload() throws InterruptedException {
+        group.tell(new ReadDeviceTemperature("device0", requestId++), replyHandler);
+        return replies.take();
+    }
+}
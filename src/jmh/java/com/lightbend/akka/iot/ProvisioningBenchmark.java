@@ -0,0 +1,74 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.DeviceManager.DevicesProvisioned;
+import com.lightbend.akka.iot.DeviceManager.ProvisionDevices;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Cold start of a fleet with ProvisionDevices: time until every device of a new registry
+// (sharded DeviceManager, as IotSupervisor runs it) is provisioned
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ProvisioningBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int devices;
+
+    @Param({"10", "1000"})
+    public int groups;
+
+    private ActorSystem system;
+    private ActorRef replies;
+    private ProvisionDevices provision;
+    private ActorRef manager;
+    private volatile CompletableFuture<DevicesProvisioned> provisioned;
+
+    @Setup(Level.Trial)
+    public void startSystem() {
+        system = ActorSystem.create("provisioning", ConfigFactory.parseString(
+                "akka.loglevel = WARNING\n" +
+                        "iot.provisioning.progress-interval = 0\n")
+                .withFallback(ConfigFactory.load()));
+        replies = BenchmarkSupport.replyHandler(system, reply -> provisioned.complete((DevicesProvisioned) reply));
+        Map<String, List<String>> devicesByGroup = new LinkedHashMap<>();
+        for (int i = 0; i < devices; i++) {
+            devicesByGroup.computeIfAbsent("group" + i % groups, g -> new ArrayList<>()).add("device" + i);
+        }
+        provision = new ProvisionDevices(0L, devicesByGroup);
+    }
+
+    @Setup(Level.Iteration)
+    public void startManager() {
+        manager = system.actorOf(DeviceManager.shardedProps(system, IotSettings.get(system).managerShards));
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopManager() {
+        system.stop(manager);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopSystem() {
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    public int provision() {
+        provisioned = new CompletableFuture<>();
+        system.actorOf(DeviceProvisioning.props(manager, provision, replies));
+        return provisioned.join().created;
+    }
+}
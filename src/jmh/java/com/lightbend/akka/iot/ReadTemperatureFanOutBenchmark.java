@@ -0,0 +1,77 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RequestAllTemperatures;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import com.lightbend.akka.iot.TemperatureRollup.RequestRollup;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Latency of a group-wide RequestAllTemperatures that fans ReadTemperature out to every device,
+// or is answered from the group's snapshot cache, against a RequestRollup that the group
+// answers from its own rollup
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ReadTemperatureFanOutBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int groupSize;
+
+    @Param({"default", "throughput-100", "affinity"})
+    public String dispatcher;
+
+    @Param({"unbounded", "single-consumer"})
+    public String mailbox;
+
+    @Param({"off", "1 second"})
+    public String snapshotTtl;
+
+    private ActorSystem system;
+    private final BlockingQueue<Object> replies = new LinkedBlockingQueue<>();
+    private ActorRef replyHandler;
+    private ActorRef group;
+    private long requestId;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        system = ActorSystem.create("fan-out", ConfigFactory.parseString("iot.group.snapshot-ttl = " + snapshotTtl
+                + "\niot.rollup.interval = 1 second")
+                .withFallback(BenchmarkSupport.config(dispatcher, mailbox)));
+        replyHandler = BenchmarkSupport.replyHandler(system, replies::add);
+        group = system.actorOf(DeviceGroup.props("group"));
+        for (int i = 0; i < groupSize; i++) {
+            group.tell(new RequestTrackDevice("group", "device" + i), replyHandler);
+            group.tell(new RecordDeviceTemperature("device" + i, i, 20.0 + i % 10), replyHandler);
+        }
+        for (int i = 0; i < 2 * groupSize; i++) {
+            replies.take();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    public Object readAllTemperatures() throws InterruptedException {
+        group.tell(new RequestAllTemperatures(requestId++), replyHandler);
+        return replies.take();
+    }
+
+    @Benchmark
+    public Object readRollup() throws InterruptedException {
+        group.tell(new RequestRollup(requestId++, 50.0, 99.0), replyHandler);
+        return replies.take();
+    }
+}
@@ -0,0 +1,50 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.Device.RecordTemperature;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Round-trip latency of RecordTemperature -> TemperatureRecorded for a single device
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordTemperatureBenchmark {
+
+    @Param({"default", "throughput-100", "affinity"})
+    public String dispatcher;
+
+    @Param({"unbounded", "single-consumer"})
+    public String mailbox;
+
+    private ActorSystem system;
+    private final BlockingQueue<Object> replies = new LinkedBlockingQueue<>();
+    private ActorRef replyHandler;
+    private ActorRef device;
+    private long requestId;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = BenchmarkSupport.createSystem("record-temperature", dispatcher, mailbox);
+        replyHandler = BenchmarkSupport.replyHandler(system, replies::add);
+        device = system.actorOf(Device.props("group", "device"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    public Object recordTemperature() throws InterruptedException {
+        device.tell(new RecordTemperature(requestId++, 21.5), replyHandler);
+        return replies.take();
+    }
+}
@@ -0,0 +1,98 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JavaSerializer;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RespondAllTemperatures;
+import com.lightbend.akka.iot.DeviceGroup.Temperature;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureReading;
+import com.lightbend.akka.iot.DeviceManager.GroupMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.NotSerializableException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Encoding and decoding of protocol messages with IotSerializer against Java serialization:
+// a reading addressed through the registry, a batch of 100 readings and a group query
+// answer for 1000 devices. The encoded size is printed at setup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"reading", "batch", "all-temperatures"})
+    public String message;
+
+    @Param({"iot", "java"})
+    public String serializer;
+
+    private ActorSystem system;
+    private Serializer codec;
+    private Object value;
+    private String manifest;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        system = ActorSystem.create("serialization");
+        ExtendedActorSystem extended = (ExtendedActorSystem) system;
+        codec = serializer.equals("iot") ? new IotSerializer(extended) : new JavaSerializer(extended);
+        value = message(message);
+        manifest = codec instanceof SerializerWithStringManifest
+                ? ((SerializerWithStringManifest) codec).manifest(value) : "";
+        bytes = codec.toBinary(value);
+        System.out.println(serializer + " " + message + ": " + bytes.length + " bytes");
+    }
+
+    private static Object message(String name) {
+        switch (name) {
+            case "reading":
+                return new GroupMessage("group-17", new RecordDeviceTemperature("device-4711", 123_456L, 21.5));
+            case "batch": {
+                long[] requestIds = new long[100];
+                double[] values = new double[100];
+                for (int i = 0; i < values.length; i++) {
+                    requestIds[i] = 1_000_000L + i;
+                    values[i] = 20.0 + i * 0.01;
+                }
+                return new RecordTemperatureBatch("group-17", "device-4711", requestIds, values, true);
+            }
+            case "all-temperatures": {
+                Map<String, TemperatureReading> temperatures = new HashMap<>();
+                for (int i = 0; i < 1000; i++) {
+                    temperatures.put("device-" + i, new Temperature(20.0 + i * 0.01));
+                }
+                return new RespondAllTemperatures(42L, temperatures);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown message " + name);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSupport.shutdown(system);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.toBinary(value);
+    }
+
+    @Benchmark
+    public Object decode() throws NotSerializableException {
+        if (codec instanceof SerializerWithStringManifest) {
+            return ((SerializerWithStringManifest) codec).fromBinary(bytes, manifest);
+        }
+        return codec.fromBinary(bytes);
+    }
+}
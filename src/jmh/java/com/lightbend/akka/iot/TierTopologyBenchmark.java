@@ -0,0 +1,95 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Latency distribution of a reading sent through DeviceManager -> DeviceGroup -> Device
+// while a background thread keeps the other devices busy, for each dispatcher and mailbox
+// topology of BenchmarkSupport.topologyConfig. Compare the p99 and p99.9 columns.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TierTopologyBenchmark {
+
+    private static final int GROUPS = 10;
+    private static final int DEVICES_PER_GROUP = 1_000;
+
+    @Param({"default", "tier-pools", "tier-pools-array", "pinned-manager", "affinity"})
+    public String topology;
+
+    // Readings per second sent to the other devices, unacknowledged
+    @Param({"100000"})
+    public int backgroundRate;
+
+    private ActorSystem system;
+    private final BlockingQueue<Object> replies = new LinkedBlockingQueue<>();
+    private ActorRef replyHandler;
+    private ActorRef manager;
+    private Thread background;
+    private volatile boolean running;
+    private long requestId;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        system = ActorSystem.create("tier-topology", BenchmarkSupport.topologyConfig(topology));
+        CountDownLatch registered = new CountDownLatch(GROUPS * DEVICES_PER_GROUP);
+        ActorRef registrations = BenchmarkSupport.replyHandler(system, reply -> registered.countDown());
+        manager = system.actorOf(IotSettings.get(system).deploy(DeviceManager.props(), IotMetrics.Tier.MANAGER));
+        for (int group = 0; group < GROUPS; group++) {
+            for (int device = 0; device < DEVICES_PER_GROUP; device++) {
+                manager.tell(new RequestTrackDevice("group" + group, "device" + device), registrations);
+            }
+        }
+        registered.await();
+        replyHandler = BenchmarkSupport.replyHandler(system, replies::add);
+        running = true;
+        background = new Thread(this::sendBackgroundLoad, "background-load");
+        background.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        background.join();
+        BenchmarkSupport.shutdown(system);
+    }
+
+    private void sendBackgroundLoad() {
+        // Paced in 1 ms slices so that unbounded mailboxes do not grow without end
+        int perSlice = Math.max(1, backgroundRate / 1_000);
+        long[] requestIds = {0L};
+        double[] values = {21.5};
+        long next = System.nanoTime();
+        while (running) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < perSlice; i++) {
+                // group0/device0 is left to the measured requests
+                int group = 1 + random.nextInt(GROUPS - 1);
+                manager.tell(new RecordTemperatureBatch("group" + group, "device" + random.nextInt(DEVICES_PER_GROUP),
+                        requestIds, values, false), ActorRef.noSender());
+            }
+            next += TimeUnit.MILLISECONDS.toNanos(1);
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+    }
+
+    @Benchmark
+    public Object recordThroughAllTiers() throws InterruptedException {
+        manager.tell(new RecordTemperatureBatch("group0", "device0",
+                new long[]{requestId++}, new double[]{21.5}), replyHandler);
+        return replies.take();
+    }
+}
@@ -0,0 +1,253 @@
+package com.lightbend.akka.iot;
+
+import com.lightbend.akka.iot.IotAlerts.Alert;
+import com.lightbend.akka.iot.IotAlerts.DeviceThreshold;
+import com.lightbend.akka.iot.IotAlerts.GroupAverageRising;
+import com.lightbend.akka.iot.IotAlerts.Rule;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// The alert rules of IotAlerts, compiled once per change. Devices and groups evaluate
+// them through DeviceAlerts and GroupAlerts, which keep the rules that apply to them in
+// flat arrays next to their state; evaluating a reading allocates nothing unless an alert
+// is raised or cleared. A set is replaced, never changed: evaluators made for a new set
+// take over the state of rules with the same id from the ones they replace.
+final class AlertRules {
+
+    static final AlertRules EMPTY = new AlertRules(new DeviceThreshold[0], new GroupAverageRising[0]);
+
+    private final DeviceThreshold[] deviceRules;
+    private final GroupAverageRising[] groupRules;
+
+    private AlertRules(DeviceThreshold[] deviceRules, GroupAverageRising[] groupRules) {
+        this.deviceRules = deviceRules;
+        this.groupRules = groupRules;
+    }
+
+    static AlertRules compile(List<? extends Rule> rules) {
+        List<DeviceThreshold> deviceRules = new ArrayList<>();
+        List<GroupAverageRising> groupRules = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        for (Rule rule : rules) {
+            if (!ids.add(rule.id)) {
+                throw new IllegalArgumentException("Duplicate alert rule id " + rule.id);
+            }
+            if (rule instanceof DeviceThreshold) {
+                deviceRules.add((DeviceThreshold) rule);
+            } else if (rule instanceof GroupAverageRising) {
+                GroupAverageRising rising = (GroupAverageRising) rule;
+                if (rising.windowMillis <= 0) {
+                    throw new IllegalArgumentException("Alert rule " + rule.id + " needs a window above 0");
+                }
+                groupRules.add(rising);
+            } else {
+                throw new IllegalArgumentException("Unknown alert rule " + rule.getClass().getName());
+            }
+        }
+        return new AlertRules(deviceRules.toArray(new DeviceThreshold[0]),
+                groupRules.toArray(new GroupAverageRising[0]));
+    }
+
+    boolean hasGroupRules(String groupId) {
+        for (GroupAverageRising rule : groupRules) {
+            if (rule.appliesTo(groupId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Evaluator for one device, replacing previous (null for a new device)
+    DeviceAlerts forDevice(String groupId, String deviceId, DeviceAlerts previous, IotAlerts alerts, long now) {
+        List<DeviceThreshold> applicable = new ArrayList<>();
+        for (DeviceThreshold rule : deviceRules) {
+            if (rule.appliesTo(groupId)) {
+                applicable.add(rule);
+            }
+        }
+        DeviceAlerts evaluator = new DeviceAlerts(this, applicable.toArray(new DeviceThreshold[0]));
+        if (previous != null) {
+            for (int i = 0; i < previous.ids.length; i++) {
+                int j = evaluator.indexOf(previous.ids[i]);
+                if (j >= 0) {
+                    evaluator.since[j] = previous.since[i];
+                    evaluator.raised[j] = previous.raised[i];
+                } else if (previous.raised[i]) {
+                    alerts.publish(new Alert(previous.ids[i], groupId, deviceId, false, Double.NaN, now));
+                }
+            }
+        }
+        return evaluator;
+    }
+
+    // Evaluator for one group sampling its average every intervalMillis, replacing previous
+    // (null when the group had no group rules)
+    GroupAlerts forGroup(String groupId, long intervalMillis, GroupAlerts previous, IotAlerts alerts, long now) {
+        List<GroupAverageRising> applicable = new ArrayList<>();
+        for (GroupAverageRising rule : groupRules) {
+            if (rule.appliesTo(groupId)) {
+                applicable.add(rule);
+            }
+        }
+        GroupAlerts evaluator = new GroupAlerts(this, applicable.toArray(new GroupAverageRising[0]), intervalMillis);
+        if (previous != null) {
+            for (int i = 0; i < previous.ids.length; i++) {
+                int j = evaluator.indexOf(previous.ids[i]);
+                if (j >= 0) {
+                    evaluator.raised[j] = previous.raised[i];
+                } else if (previous.raised[i]) {
+                    alerts.publish(new Alert(previous.ids[i], groupId, null, false, Double.NaN, now));
+                }
+            }
+        }
+        return evaluator;
+    }
+
+    static final class DeviceAlerts {
+        // The set this evaluator was made for, compared with IotAlerts.rules() to notice changes
+        final AlertRules rules;
+        private final String[] ids;
+        private final boolean[] above;
+        private final double[] thresholds;
+        private final long[] forMillis;
+        // When the current run of readings past the threshold started, NOT_PAST outside one
+        private final long[] since;
+        private final boolean[] raised;
+
+        private static final long NOT_PAST = Long.MIN_VALUE;
+
+        private DeviceAlerts(AlertRules rules, DeviceThreshold[] applicable) {
+            this.rules = rules;
+            int n = applicable.length;
+            ids = new String[n];
+            above = new boolean[n];
+            thresholds = new double[n];
+            forMillis = new long[n];
+            since = new long[n];
+            raised = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = applicable[i].id;
+                above[i] = applicable[i].above;
+                thresholds[i] = applicable[i].threshold;
+                forMillis[i] = applicable[i].forMillis;
+                since[i] = NOT_PAST;
+            }
+        }
+
+        void record(double value, long now, IotAlerts alerts, String groupId, String deviceId) {
+            for (int i = 0; i < ids.length; i++) {
+                boolean past = above[i] ? value > thresholds[i] : value < thresholds[i];
+                if (!past) {
+                    since[i] = NOT_PAST;
+                    if (raised[i]) {
+                        raised[i] = false;
+                        alerts.publish(new Alert(ids[i], groupId, deviceId, false, value, now));
+                    }
+                    continue;
+                }
+                if (since[i] == NOT_PAST) {
+                    since[i] = now;
+                }
+                if (!raised[i] && now - since[i] >= forMillis[i]) {
+                    raised[i] = true;
+                    alerts.publish(new Alert(ids[i], groupId, deviceId, true, value, now));
+                }
+            }
+        }
+
+        private int indexOf(String id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i].equals(id)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    static final class GroupAlerts {
+        final AlertRules rules;
+        private final String[] ids;
+        private final double[] perMinute;
+        private final boolean[] raised;
+        // Samples of the group average, oldest first from head; one window's worth for the
+        // rule with the longest window
+        private final long[] times;
+        private final double[] averages;
+        private final long[] windowMillis;
+        private int head;
+        private int count;
+
+        private GroupAlerts(AlertRules rules, GroupAverageRising[] applicable, long intervalMillis) {
+            this.rules = rules;
+            int n = applicable.length;
+            ids = new String[n];
+            perMinute = new double[n];
+            windowMillis = new long[n];
+            raised = new boolean[n];
+            long longestWindow = 0;
+            for (int i = 0; i < n; i++) {
+                ids[i] = applicable[i].id;
+                perMinute[i] = applicable[i].perMinute;
+                windowMillis[i] = applicable[i].windowMillis;
+                longestWindow = Math.max(longestWindow, windowMillis[i]);
+            }
+            int samples = (int) Math.min(Integer.MAX_VALUE - 1, longestWindow / Math.max(1, intervalMillis)) + 2;
+            times = new long[samples];
+            averages = new double[samples];
+        }
+
+        boolean isEmpty() {
+            return ids.length == 0;
+        }
+
+        // average is NaN while no device of the group has a reading
+        void sample(double average, long now, IotAlerts alerts, String groupId) {
+            if (Double.isNaN(average)) {
+                return;
+            }
+            int tail = (head + count) % times.length;
+            if (count == times.length) {
+                head = (head + 1) % times.length;
+            } else {
+                count++;
+            }
+            times[tail] = now;
+            averages[tail] = average;
+            for (int i = 0; i < ids.length; i++) {
+                // The newest sample that is at least a window old
+                int from = -1;
+                for (int k = count - 2; k >= 0; k--) {
+                    int slot = (head + k) % times.length;
+                    if (now - times[slot] >= windowMillis[i]) {
+                        from = slot;
+                        break;
+                    }
+                }
+                if (from < 0) {
+                    continue;
+                }
+                double rise = (average - averages[from]) * 60_000.0 / (now - times[from]);
+                if (!raised[i] && rise > perMinute[i]) {
+                    raised[i] = true;
+                    alerts.publish(new Alert(ids[i], groupId, null, true, rise, now));
+                } else if (raised[i] && rise <= perMinute[i]) {
+                    raised[i] = false;
+                    alerts.publish(new Alert(ids[i], groupId, null, false, rise, now));
+                }
+            }
+        }
+
+        private int indexOf(String id) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i].equals(id)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
+import akka.dispatch.BoundedMessageQueueSemantics;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import com.typesafe.config.Config;
+import scala.Option;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded mailbox backed by a preallocated ring of mailbox-capacity slots (rounded up to
+// a power of two). Unlike Akka's linked mailboxes it allocates nothing per message; when
+// the ring is full, messages go to dead letters. Configured under iot.mailboxes.array.
+final class ArrayMailbox implements MailboxType, ProducesMessageQueue<ArrayMailbox.ArrayMessageQueue> {
+
+    private final int capacity;
+
+    public ArrayMailbox(ActorSystem.Settings settings, Config config) {
+        this.capacity = config.getInt("mailbox-capacity");
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("ArrayMailbox needs a mailbox-capacity above 0, got " + capacity);
+        }
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new ArrayMessageQueue(capacity, system.get().deadLetters());
+    }
+
+    // Multi-producer single-consumer version of Vyukov's bounded queue. Every slot carries
+    // a sequence number: a producer claims position p by moving the tail past it once the
+    // slot's sequence says it is free (p), and publishes the message by setting it to p + 1;
+    // the consumer frees the slot for the next round by setting it to p + length.
+    static final class ArrayMessageQueue implements MessageQueue, BoundedMessageQueueSemantics {
+
+        private final Envelope[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final ActorRef deadLetters;
+        private final AtomicLong tail = new AtomicLong();
+        // Only written by the consumer
+        private volatile long head;
+
+        ArrayMessageQueue(int capacity, ActorRef deadLetters) {
+            int length = Integer.highestOneBit(Math.max(2, capacity * 2 - 1));
+            this.slots = new Envelope[length];
+            this.sequences = new AtomicLongArray(length);
+            for (int i = 0; i < length; i++) {
+                sequences.set(i, i);
+            }
+            this.mask = length - 1;
+            this.deadLetters = deadLetters;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            long position;
+            int slot;
+            while (true) {
+                position = tail.get();
+                slot = (int) position & mask;
+                long free = sequences.get(slot) - position;
+                if (free == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        break;
+                    }
+                } else if (free < 0) {
+                    // The consumer has not taken the message from a full round ago yet
+                    ActorRef sender = handle.sender() != null ? handle.sender() : deadLetters;
+                    deadLetters.tell(new DeadLetter(handle.message(), sender, receiver), sender);
+                    return;
+                }
+            }
+            slots[slot] = handle;
+            sequences.set(slot, position + 1);
+        }
+
+        @Override
+        public Envelope dequeue() {
+            long position = head;
+            int slot = (int) position & mask;
+            if (sequences.get(slot) != position + 1) {
+                // Empty, or the producer that claimed the slot has not published yet; it
+                // schedules the mailbox again once it has
+                return null;
+            }
+            Envelope envelope = slots[slot];
+            slots[slot] = null;
+            sequences.set(slot, position + slots.length);
+            head = position + 1;
+            return envelope;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return (int) Math.max(0L, tail.get() - head);
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return tail.get() != head;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+
+        @Override
+        public Duration pushTimeOut() {
+            return Duration.Zero();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorContext;
+import akka.actor.ActorRef;
+import akka.actor.ChildRestartStats;
+import akka.actor.SupervisorStrategy;
+import com.typesafe.config.Config;
+import scala.Option;
+import scala.PartialFunction;
+import scala.Tuple2;
+import scala.collection.Iterable;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// One-for-one supervision that restarts a failed child after an exponential backoff
+// instead of at once: the n-th restart within the budget window waits
+// min-backoff * 2^(n-1), capped at max-backoff, plus up to random-factor of that as
+// jitter, so that children failing together do not all come back at the same moment.
+// Until then the child stays suspended as Akka leaves it after a failure: its mailbox
+// keeps the messages that arrive, in order, and it uses no CPU. A child that fails more
+// than max-restarts times within the window is stopped. Settings come from
+// iot.supervision.<tier>; restarts, delayed restarts and stops are counted in IotMetrics.
+final class BackoffSupervisorStrategy extends SupervisorStrategy {
+
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final double randomFactor;
+    private final Tuple2<Option<Object>, Option<Object>> restartBudget;
+    private final IotMetrics.TierMetrics metrics;
+
+    BackoffSupervisorStrategy(Config config, IotMetrics.TierMetrics metrics) {
+        this.minBackoffMillis = config.getDuration("min-backoff", TimeUnit.MILLISECONDS);
+        this.maxBackoffMillis = config.getDuration("max-backoff", TimeUnit.MILLISECONDS);
+        this.randomFactor = config.getDouble("random-factor");
+        int maxRestarts = config.getInt("max-restarts");
+        if (maxRestarts < 0) {
+            throw new IllegalArgumentException("max-restarts must not be negative, got " + maxRestarts);
+        }
+        int withinMillis = (int) config.getDuration("within", TimeUnit.MILLISECONDS);
+        this.restartBudget = new Tuple2<>(Option.apply(maxRestarts), Option.apply(withinMillis));
+        this.metrics = metrics;
+    }
+
+    // Delay before the given restart (1 for the first) within the window
+    long backoffMillis(int restart) {
+        if (minBackoffMillis == 0L) {
+            return 0L;
+        }
+        int doublings = Math.min(restart - 1, 62);
+        long base = minBackoffMillis >= (maxBackoffMillis >> doublings)
+                ? maxBackoffMillis
+                : Math.min(maxBackoffMillis, minBackoffMillis << doublings);
+        return (long) (base * (1.0 + ThreadLocalRandom.current().nextDouble() * randomFactor));
+    }
+
+    @Override
+    public PartialFunction<Throwable, Directive> decider() {
+        return SupervisorStrategy.defaultDecider();
+    }
+
+    @Override
+    public void handleChildTerminated(ActorContext context, ActorRef child, Iterable<ActorRef> children) {
+    }
+
+    @Override
+    public void processFailure(ActorContext context, boolean restart, ActorRef child, Throwable cause,
+                               ChildRestartStats stats, Iterable<ChildRestartStats> children) {
+        if (!restart) {
+            context.stop(child);
+        } else if (!stats.requestRestartPermission(restartBudget)) {
+            metrics.restartBudgetExhausted();
+            context.stop(child);
+        } else {
+            long delay = backoffMillis(stats.maxNrOfRetriesCount());
+            metrics.restarted(delay);
+            if (delay == 0L) {
+                restartChild(child, cause, false);
+            } else {
+                // Restarting is a system message to the child, so it can be sent from the scheduler
+                context.system().scheduler().scheduleOnce(FiniteDuration.create(delay, TimeUnit.MILLISECONDS),
+                        () -> restartChild(child, cause, false), context.dispatcher());
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardRegion;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.DeviceManager.GroupMessage;
+import com.lightbend.akka.iot.DeviceManager.ProvisionGroupDevices;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+
+import java.util.Optional;
+
+// Device registry spread over the nodes of an Akka cluster (iot.cluster.enabled). Groups
+// are Cluster Sharding entities: group ids are hashed into iot.cluster.shards shards, the
+// shards are allocated to the nodes with the iot.cluster.role, and they are moved when
+// nodes join or leave. The shard region takes the same messages as a DeviceManager
+// (RequestTrackDevice, RecordTemperatureBatch, GroupMessage, ProvisionGroupDevices) and
+// delivers them on the node that owns the group, so callers do not know where a group
+// lives. A group that moves starts empty on its new node; its devices come back with
+// their next RequestTrackDevice.
+final class ClusterDeviceRegistry {
+
+    static final String TYPE_NAME = "device-group";
+
+    private ClusterDeviceRegistry() {
+    }
+
+    // The shard region of this node; only a proxy when the node lacks the configured role
+    static ActorRef start(ActorSystem system) {
+        IotSettings settings = IotSettings.get(system);
+        ClusterSharding sharding = ClusterSharding.get(system);
+        GroupIdExtractor extractor = new GroupIdExtractor(settings.clusterShards);
+        Optional<String> role = settings.clusterRole.isEmpty()
+                ? Optional.empty()
+                : Optional.of(settings.clusterRole);
+        if (role.isPresent() && !Cluster.get(system).selfRoles().contains(role.get())) {
+            return sharding.startProxy(TYPE_NAME, role, extractor);
+        }
+        Props groupProps = settings.deploy(DeviceGroup.entityProps(settings.compactGroups), IotMetrics.Tier.GROUP);
+        ClusterShardingSettings shardingSettings = ClusterShardingSettings.create(system);
+        if (role.isPresent()) {
+            shardingSettings = shardingSettings.withRole(role.get());
+        }
+        return sharding.start(TYPE_NAME, IotMetrics.get(system).meter(groupProps, IotMetrics.Tier.GROUP),
+                shardingSettings, extractor);
+    }
+
+    static final class GroupIdExtractor extends ShardRegion.HashCodeMessageExtractor {
+
+        GroupIdExtractor(int shards) {
+            super(shards);
+        }
+
+        @Override
+        public String entityId(Object message) {
+            if (message instanceof RequestTrackDevice) {
+                return ((RequestTrackDevice) message).groupId;
+            } else if (message instanceof RecordTemperatureBatch) {
+                return ((RecordTemperatureBatch) message).groupId;
+            } else if (message instanceof GroupMessage) {
+                return ((GroupMessage) message).groupId;
+            } else if (message instanceof ProvisionGroupDevices) {
+                return ((ProvisionGroupDevices) message).groupId;
+            }
+            return null;
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            return message instanceof GroupMessage ? ((GroupMessage) message).message : message;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.lightbend.akka.iot;
+
+import java.util.Arrays;
+
+// Device state kept in primitive columns indexed by a dense slot per device id.
+// Not thread safe: owned by a single DeviceGroup actor.
+final class CompactDeviceStore {
+
+    private static final int NO_SLOT = IdIndex.NO_POSITION;
+
+    private final IdIndex ids;
+    private double[] readings;
+    private long[] requestIds;
+    private long[] recordedAt;
+    private int size;
+
+    CompactDeviceStore() {
+        this(16);
+    }
+
+    CompactDeviceStore(int expectedSize) {
+        int capacity = Math.max(4, expectedSize);
+        ids = new IdIndex(capacity);
+        readings = new double[capacity];
+        requestIds = new long[capacity];
+        recordedAt = new long[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    int slotOf(String deviceId) {
+        return ids.positionOf(deviceId);
+    }
+
+    boolean contains(String deviceId) {
+        return slotOf(deviceId) != NO_SLOT;
+    }
+
+    int intern(String deviceId) {
+        int slot = slotOf(deviceId);
+        if (slot != NO_SLOT) {
+            return slot;
+        }
+        if (size == ids.capacity()) {
+            grow();
+        }
+        slot = size++;
+        ids.put(slot, deviceId);
+        return slot;
+    }
+
+    boolean remove(String deviceId) {
+        int slot = slotOf(deviceId);
+        if (slot == NO_SLOT) {
+            return false;
+        }
+        ids.remove(slot);
+        int last = --size;
+        if (slot != last) {
+            // Keep the columns dense by moving the last slot into the hole
+            ids.move(last, slot);
+            readings[slot] = readings[last];
+            requestIds[slot] = requestIds[last];
+            recordedAt[slot] = recordedAt[last];
+        }
+        readings[last] = 0.0;
+        requestIds[last] = 0L;
+        recordedAt[last] = 0L;
+        return true;
+    }
+
+    String idAt(int slot) {
+        return ids.idAt(slot);
+    }
+
+    void record(int slot, long requestId, double value, long timestamp) {
+        readings[slot] = value;
+        requestIds[slot] = requestId;
+        recordedAt[slot] = timestamp;
+    }
+
+    boolean hasReading(int slot) {
+        return recordedAt[slot] != 0L;
+    }
+
+    double reading(int slot) {
+        return readings[slot];
+    }
+
+    long requestId(int slot) {
+        return requestIds[slot];
+    }
+
+    long recordedAt(int slot) {
+        return recordedAt[slot];
+    }
+
+    private void grow() {
+        int capacity = ids.capacity() * 2;
+        ids.grow(capacity);
+        readings = Arrays.copyOf(readings, capacity);
+        requestIds = Arrays.copyOf(requestIds, capacity);
+        recordedAt = Arrays.copyOf(recordedAt, capacity);
+    }
+}
@@ -1,31 +1,127 @@
 package com.lightbend.akka.iot;
 
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.ActorRef;
+import akka.actor.NotInfluenceReceiveTimeout;
 import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import com.lightbend.akka.iot.DeviceGroup.DeviceIdle;
+import com.lightbend.akka.iot.DeviceGroup.DevicePassivated;
+import com.lightbend.akka.iot.DeviceGroup.LatestTemperature;
 import com.lightbend.akka.iot.DeviceManager.DeviceRegistered;
 import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import com.lightbend.akka.iot.TemperatureFeed.RequestTemperatureUpdates;
+import com.lightbend.akka.iot.TemperatureFeed.SubscribeTemperatures;
+import com.lightbend.akka.iot.TemperatureFeed.TemperatureUpdate;
+import com.lightbend.akka.iot.TemperatureFeed.UnsubscribeTemperatures;
+import scala.concurrent.duration.FiniteDuration;
 
-public class Device extends AbstractActor {
+import java.util.Arrays;
+import java.util.Optional;
 
+public class Device extends AbstractActorWithTimers {
+
+    // Each of these Props is for one actor: they carry the state its incarnations hand
+    // each other across restarts
     public static Props props(String groupId, String deviceId) {
-        return Props.create(Device.class, () -> new Device(groupId, deviceId));
+        RestartState restartState = new RestartState();
+        return Props.create(Device.class, () -> new Device(groupId, deviceId, false, null, false, restartState));
+    }
+
+    // Started by a DeviceGroup. The device sends its updates to groupFeed, the group's
+    // GroupTemperatureFeed while it has subscribers, and while reportReadings is on its
+    // latest reading to the group as a LatestTemperature. The group changes both with
+    // GroupFeed and ReportReadings.
+    static Props props(String groupId, String deviceId, ActorRef groupFeed, boolean reportReadings) {
+        RestartState restartState = new RestartState();
+        return Props.create(Device.class,
+                () -> new Device(groupId, deviceId, true, groupFeed, reportReadings, restartState));
+    }
+
+    static Props props(String groupId, String deviceId, ActorRef groupFeed, boolean reportReadings,
+                       long lastRequestId, double lastTemperatureReading) {
+        RestartState restartState = new RestartState();
+        return Props.create(Device.class, () -> new Device(groupId, deviceId, true, groupFeed, reportReadings,
+                restartState, lastRequestId, lastTemperatureReading));
     }
 
     private String groupId, deviceId;
     private double lastTemperatureReading;
+    private boolean hasTemperatureReading;
+    private long lastRequestId;
 
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private final HotPathLog recordedLog =
+            IotLogging.get(getContext().getSystem()).logger("device-recorded", Device.class);
+    private final String logSource = getSelf().path().toString();
+    private final int historyCapacity;
+    private final DeviceJournal journal;
+    private final FiniteDuration passivateAfter;
+    private TemperatureHistory history;
+    // False when the device was not started by a group
+    private final boolean inGroup;
+    // Null while the group's feed has no subscribers, or there is no group
+    private ActorRef groupFeed;
+    // Subscribers to this device alone, null until the first one
+    private TemperatureFeed feed;
+    private final IotAlerts alerts = IotAlerts.get(getContext().getSystem());
+    private AlertRules.DeviceAlerts deviceAlerts;
+    private final FiniteDuration rollupInterval;
+    // Readings the group has not been sent yet, null while there are none
+    private TemperatureRollup rollup;
+    private boolean reportReadings;
+    private final FiniteDuration reportInterval;
+    // True while a LatestTemperature for the group is due
+    private boolean reportPending;
+    private final RestartState restartState;
 
-    private Device(String groupId, String deviceId) {
+    private Device(String groupId, String deviceId, boolean inGroup, ActorRef groupFeed,
+                   boolean reportReadings, RestartState restartState) {
         this.groupId = groupId;
         this.deviceId = deviceId;
+        this.inGroup = inGroup;
+        this.groupFeed = groupFeed;
+        this.reportReadings = reportReadings;
+        this.restartState = restartState;
+        IotSettings settings = IotSettings.get(getContext().getSystem());
+        this.historyCapacity = settings.deviceHistoryCapacity;
+        this.journal = settings.persistenceEnabled ? DeviceJournal.get(getContext().getSystem()) : null;
+        this.passivateAfter = settings.devicePassivateAfter;
+        this.rollupInterval = settings.rollupInterval;
+        this.reportInterval = settings.groupReportInterval;
+        if (restartState.saved) {
+            this.lastRequestId = restartState.lastRequestId;
+            this.lastTemperatureReading = restartState.lastTemperatureReading;
+            this.hasTemperatureReading = restartState.hasTemperatureReading;
+            this.history = restartState.history;
+            this.feed = restartState.feed;
+            this.groupFeed = restartState.groupFeed;
+            this.reportReadings = restartState.reportReadings;
+            restartState.clear();
+        }
+    }
+
+    private Device(String groupId, String deviceId, boolean inGroup, ActorRef groupFeed,
+                   boolean reportReadings, RestartState restartState, long lastRequestId,
+                   double lastTemperatureReading) {
+        this(groupId, deviceId, inGroup, groupFeed, reportReadings, restartState);
+        // After a restart the device already has this reading or a later one
+        if (!hasTemperatureReading) {
+            this.lastRequestId = lastRequestId;
+            this.lastTemperatureReading = lastTemperatureReading;
+            this.hasTemperatureReading = true;
+        }
     }
 
     @Override
     public void preStart() {
         log.info("Device actor {}-{} started", groupId, deviceId);
+        if (passivateAfter.length() > 0) {
+            getContext().setReceiveTimeout(passivateAfter);
+        }
     }
 
     @Override
@@ -33,12 +129,23 @@ public class Device extends AbstractActor {
         log.info("Device actor {}-{} stopped", groupId, deviceId);
     }
 
+    // The next incarnation, after a failure of the device or a restart of its group,
+    // carries on with the device's readings and subscribers
+    @Override
+    public void preRestart(Throwable reason, Optional<Object> message) throws Exception {
+        flushRollup();
+        sendReport();
+        restartState.save(lastRequestId, lastTemperatureReading, hasTemperatureReading, history, feed,
+                groupFeed, reportReadings);
+        super.preRestart(reason, message);
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(RequestTrackDevice.class, r -> {
                     if (groupId.equals(r.groupId) && deviceId.equals(r.deviceId)) {
-                        getSender().tell(new DeviceRegistered(), getSelf());
+                        getSender().tell(new DeviceRegistered(r.requestId), getSelf());
                     } else {
                         log.warning(
                                 "Ignoring TrackDevice request for {}-{}.This actor is responsible for {}-{}.",
@@ -47,17 +154,250 @@ public class Device extends AbstractActor {
                     }
                 })
                 .match(RecordTemperature.class, r -> {
-                    log.info("Recorded temperature reading {} with {}", r.value, r.requestId);
+                    recordedLog.info(logSource, "Recorded temperature reading {} with {}", r.value, r.requestId);
                     lastTemperatureReading = r.value;
+                    hasTemperatureReading = true;
+                    lastRequestId = r.requestId;
+                    long now = System.currentTimeMillis();
+                    recordHistory(now, r.value);
+                    rollUp(r.value);
+                    evaluateAlerts(now, r.value);
+                    publishUpdate(now, r.requestId, r.value);
+                    reportReading();
+                    if (journal != null) {
+                        journal.temperatureRecorded(groupId, deviceId, r.requestId, r.value, now);
+                    }
                     getSender().tell(new TemperatureRecorded(r.requestId), getSelf());
                 })
+                .match(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .match(ReadTemperatureStats.class, this::onReadTemperatureStats)
                 .match(ReadTemperature.class, r ->
-                        getSender().tell(new RespondTemperature(r.requestId, lastTemperatureReading), getSelf())
+                        getSender().tell(
+                                new RespondTemperature(r.requestId, lastTemperatureReading, hasTemperatureReading),
+                                getSelf()
+                        )
                 )
+                .match(ReceiveTimeout.class, t -> {
+                    // Subscribers of the device would lose their subscription
+                    if (feed == null || feed.isEmpty()) {
+                        getContext().getParent().tell(
+                                new DeviceIdle(lastRequestId, lastTemperatureReading, hasTemperatureReading), getSelf()
+                        );
+                    }
+                })
+                .match(SubscribeTemperatures.class, s -> {
+                    if (feed == null) {
+                        feed = new TemperatureFeed();
+                    }
+                    getContext().watch(getSender());
+                    feed.subscribe(getSender(), s, getSelf());
+                })
+                .match(RequestTemperatureUpdates.class, r -> {
+                    if (feed != null) {
+                        feed.request(getSender(), r.n, getSelf());
+                    }
+                })
+                .match(UnsubscribeTemperatures.class, u -> {
+                    if (feed != null && feed.unsubscribe(getSender())) {
+                        getContext().unwatch(getSender());
+                    }
+                })
+                .match(Terminated.class, t -> {
+                    if (feed != null) {
+                        feed.unsubscribe(t.getActor());
+                    }
+                })
+                .match(FlushRollup.class, f -> flushRollup())
+                .match(ReportReading.class, f -> sendReport())
+                .match(ReportReadings.class, this::onReportReadings)
+                .match(GroupFeed.class, g -> groupFeed = g.feed)
+                .match(Passivate.class, p -> {
+                    // Anything the group routed here before it started buffering has been handled
+                    // by now, so this is the final state
+                    flushRollup();
+                    sendReport();
+                    getContext().getParent().tell(
+                            new DevicePassivated(lastRequestId, lastTemperatureReading, hasTemperatureReading),
+                            getSelf()
+                    );
+                    getContext().stop(getSelf());
+                })
                 .build();
     }
 
-    static final class ReadTemperature {
+    private void onRecordTemperatureBatch(RecordTemperatureBatch r) {
+        if (!groupId.equals(r.groupId) || !deviceId.equals(r.deviceId)) {
+            log.warning(
+                    "Ignoring temperature batch for {}-{}. This actor is responsible for {}-{}.",
+                    r.groupId, r.deviceId, groupId, deviceId
+            );
+            r.drop(getSender(), getSelf());
+            return;
+        }
+        long[] requestIds = r.requestIds;
+        double[] values = r.values;
+        long highestRequestId = r.highestRequestId();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < values.length; i++) {
+            recordHistory(now, values[i]);
+            rollUp(values[i]);
+            evaluateAlerts(now, values[i]);
+            publishUpdate(now, requestIds[i], values[i]);
+        }
+        lastTemperatureReading = values[values.length - 1];
+        hasTemperatureReading = true;
+        lastRequestId = highestRequestId;
+        reportReading();
+        if (journal != null) {
+            journal.temperatureRecorded(groupId, deviceId, highestRequestId, lastTemperatureReading, now);
+        }
+        recordedLog.debug(logSource, "Recorded {} temperature readings up to {}", values.length, highestRequestId);
+        if (r.acknowledge) {
+            getSender().tell(new TemperatureBatchRecorded(highestRequestId), getSelf());
+        }
+    }
+
+    // NaN and infinite readings would poison the window sums, so the history skips them
+    private void recordHistory(long timestamp, double value) {
+        if (historyCapacity > 0 && Double.isFinite(value)) {
+            if (history == null) {
+                history = new TemperatureHistory(historyCapacity);
+            }
+            history.record(timestamp, value);
+        }
+    }
+
+    // The first reading after a flush starts the timer for the next one, so idle devices
+    // have no timer running. Like the history, rollups skip NaN and infinite readings,
+    // which would stick in the sums, min and max of the group and the fleet.
+    private void rollUp(double value) {
+        if (!inGroup || rollupInterval.length() == 0 || !Double.isFinite(value)) {
+            return;
+        }
+        if (rollup == null) {
+            rollup = new TemperatureRollup();
+            getTimers().startSingleTimer(FlushRollup.INSTANCE, FlushRollup.INSTANCE, rollupInterval);
+        }
+        rollup.record(value);
+    }
+
+    private void flushRollup() {
+        if (rollup != null) {
+            getContext().getParent().tell(rollup, getSelf());
+            rollup = null;
+        }
+    }
+
+    // Like rollups, the first reading after a report starts the timer for the next one,
+    // so the group gets at most one LatestTemperature per device and interval, holding
+    // the reading the device has by then
+    private void reportReading() {
+        if (reportReadings && !reportPending) {
+            reportPending = true;
+            getTimers().startSingleTimer(ReportReading.INSTANCE, ReportReading.INSTANCE, reportInterval);
+        }
+    }
+
+    private void sendReport() {
+        if (reportPending) {
+            getContext().getParent().tell(new LatestTemperature(lastTemperatureReading), getSelf());
+            reportPending = false;
+        }
+    }
+
+    // A group that starts asking for reports gets the current reading at once
+    private void onReportReadings(ReportReadings r) {
+        reportReadings = r.on;
+        if (r.on && hasTemperatureReading) {
+            getContext().getParent().tell(new LatestTemperature(lastTemperatureReading), getSelf());
+        } else if (!r.on && reportPending) {
+            getTimers().cancel(ReportReading.INSTANCE);
+            reportPending = false;
+        }
+    }
+
+    // Checks the reading against the device alert rules, switching to the current rules
+    // first if they changed since the last reading
+    private void evaluateAlerts(long timestamp, double value) {
+        AlertRules rules = alerts.rules();
+        if (deviceAlerts == null || deviceAlerts.rules != rules) {
+            deviceAlerts = rules.forDevice(groupId, deviceId, deviceAlerts, alerts, timestamp);
+        }
+        deviceAlerts.record(value, timestamp, alerts, groupId, deviceId);
+    }
+
+    // One update per reading, shared by the device's own subscribers and sent once to
+    // the group's feed; nothing is allocated while nobody subscribes
+    private void publishUpdate(long timestamp, long requestId, double value) {
+        boolean ownSubscribers = feed != null && !feed.isEmpty();
+        if (groupFeed == null && !ownSubscribers) {
+            return;
+        }
+        TemperatureUpdate update = new TemperatureUpdate(groupId, deviceId, requestId, value, timestamp);
+        if (ownSubscribers) {
+            feed.publish(update, getSelf());
+        }
+        if (groupFeed != null) {
+            groupFeed.tell(update, getSelf());
+        }
+    }
+
+    private void onReadTemperatureStats(ReadTemperatureStats r) {
+        double[] percentiles = new double[r.percentiles.length];
+        RespondTemperatureStats stats;
+        if (history == null) {
+            Arrays.fill(percentiles, Double.NaN);
+            stats = new RespondTemperatureStats(r.requestId, 0, Double.NaN, Double.NaN, Double.NaN, percentiles);
+        } else {
+            long from = history.firstSequenceSince(System.currentTimeMillis() - r.windowMillis);
+            history.percentiles(from, r.percentiles, percentiles);
+            stats = new RespondTemperatureStats(
+                    r.requestId, history.count(from), history.min(from), history.max(from), history.average(from),
+                    percentiles
+            );
+        }
+        getSender().tell(stats, getSelf());
+    }
+
+    // State preRestart hands to the next incarnation. It lives in the device's Props, so
+    // it goes away with the actor, and only the device's incarnations touch it, one after
+    // the other.
+    private static final class RestartState {
+        boolean saved;
+        long lastRequestId;
+        double lastTemperatureReading;
+        boolean hasTemperatureReading;
+        TemperatureHistory history;
+        TemperatureFeed feed;
+        ActorRef groupFeed;
+        boolean reportReadings;
+
+        void save(long lastRequestId, double lastTemperatureReading, boolean hasTemperatureReading,
+                  TemperatureHistory history, TemperatureFeed feed, ActorRef groupFeed,
+                  boolean reportReadings) {
+            this.saved = true;
+            this.lastRequestId = lastRequestId;
+            this.lastTemperatureReading = lastTemperatureReading;
+            this.hasTemperatureReading = hasTemperatureReading;
+            this.history = history;
+            this.feed = feed;
+            this.groupFeed = groupFeed;
+            this.reportReadings = reportReadings;
+        }
+
+        void clear() {
+            saved = false;
+            history = null;
+            feed = null;
+            groupFeed = null;
+        }
+    }
+
+    // Reads do not keep a device from being passivated, a passivated device's last
+    // reading is still served by its group
+    static final class ReadTemperature implements IotMessage, NotInfluenceReceiveTimeout {
+        private static final long serialVersionUID = 1L;
+
         long requestId;
 
         ReadTemperature(long requestId) {
@@ -65,17 +405,69 @@ public class Device extends AbstractActor {
         }
     }
 
-    static final class RespondTemperature {
+    // Sent by the group to switch LatestTemperature reports on or off. Does not count as
+    // activity, as the group sends it to all of its devices at once.
+    static final class ReportReadings implements NotInfluenceReceiveTimeout {
+        static final ReportReadings ON = new ReportReadings(true);
+        static final ReportReadings OFF = new ReportReadings(false);
+
+        final boolean on;
+
+        private ReportReadings(boolean on) {
+            this.on = on;
+        }
+    }
+
+    // Sent by the group when its feed gains its first subscriber, with the feed, or loses
+    // its last one, with null. Not activity either.
+    static final class GroupFeed implements NotInfluenceReceiveTimeout {
+        final ActorRef feed;
+
+        GroupFeed(ActorRef feed) {
+            this.feed = feed;
+        }
+    }
+
+    // Does not count as activity, so a pending rollup never delays passivation
+    private static final class FlushRollup implements NotInfluenceReceiveTimeout {
+        static final FlushRollup INSTANCE = new FlushRollup();
+
+        private FlushRollup() {
+        }
+    }
+
+    // Nor does a pending report
+    private static final class ReportReading implements NotInfluenceReceiveTimeout {
+        static final ReportReading INSTANCE = new ReportReading();
+
+        private ReportReading() {
+        }
+    }
+
+    static final class Passivate {
+        static final Passivate INSTANCE = new Passivate();
+
+        private Passivate() {
+        }
+    }
+
+    static final class RespondTemperature implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
         long requestId;
         double value;
+        boolean hasValue;
 
-        RespondTemperature(long requestId, double value) {
+        RespondTemperature(long requestId, double value, boolean hasValue) {
             this.requestId = requestId;
             this.value = value;
+            this.hasValue = hasValue;
         }
     }
 
-    static final class RecordTemperature {
+    static final class RecordTemperature implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
         final long requestId;
         final double value;
 
@@ -85,11 +477,132 @@ public class Device extends AbstractActor {
         }
     }
 
-    static final class TemperatureRecorded {
+    static final class TemperatureRecorded implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
         final long requestId;
 
         TemperatureRecorded(long requestId) {
             this.requestId = requestId;
         }
     }
+
+    static final class RecordTemperatureBatch implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final String deviceId;
+        final long[] requestIds;
+        final double[] values;
+        final boolean acknowledge;
+
+        RecordTemperatureBatch(String groupId, String deviceId, long[] requestIds, double[] values) {
+            this(groupId, deviceId, requestIds, values, true);
+        }
+
+        RecordTemperatureBatch(String groupId, String deviceId, long[] requestIds, double[] values,
+                               boolean acknowledge) {
+            if (requestIds.length != values.length) {
+                throw new IllegalArgumentException(
+                        "Got " + requestIds.length + " request ids for " + values.length + " values");
+            }
+            if (values.length == 0) {
+                throw new IllegalArgumentException("A temperature batch needs at least one reading");
+            }
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.requestIds = requestIds;
+            this.values = values;
+            this.acknowledge = acknowledge;
+        }
+
+        long highestRequestId() {
+            long highest = requestIds[0];
+            for (int i = 1; i < requestIds.length; i++) {
+                highest = Math.max(highest, requestIds[i]);
+            }
+            return highest;
+        }
+
+        // Tells an acknowledging sender that the batch was not recorded, so it is done waiting
+        void drop(ActorRef sender, ActorRef self) {
+            if (acknowledge) {
+                sender.tell(new TemperatureBatchDropped(groupId, deviceId, highestRequestId()), self);
+            }
+        }
+    }
+
+    static final class TemperatureBatchRecorded implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long highestRequestId;
+
+        TemperatureBatchRecorded(long highestRequestId) {
+            this.highestRequestId = highestRequestId;
+        }
+    }
+
+    // Instead of TemperatureBatchRecorded when the batch reached no device of its group,
+    // e.g. because the group or the device is unknown; it was not recorded
+    static final class TemperatureBatchDropped implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final String deviceId;
+        final long highestRequestId;
+
+        TemperatureBatchDropped(String groupId, String deviceId, long highestRequestId) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.highestRequestId = highestRequestId;
+        }
+    }
+
+    // Instead of TemperatureRecorded or TemperatureBatchRecorded when a PriorityMailbox shed
+    // the reading, or the batch up to requestId, to keep up; it was not recorded
+    static final class Overloaded implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+
+        Overloaded(long requestId) {
+            this.requestId = requestId;
+        }
+    }
+
+    static final class ReadTemperatureStats implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final long windowMillis;
+        // Percentiles to compute, each between 0 and 100
+        final double[] percentiles;
+
+        ReadTemperatureStats(long requestId, long windowMillis, double... percentiles) {
+            this.requestId = requestId;
+            this.windowMillis = windowMillis;
+            this.percentiles = percentiles;
+        }
+    }
+
+    static final class RespondTemperatureStats implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final int count;
+        final double min;
+        final double max;
+        final double average;
+        final double[] percentiles;
+
+        RespondTemperatureStats(long requestId, int count, double min, double max, double average,
+                                double[] percentiles) {
+            this.requestId = requestId;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.average = average;
+            this.percentiles = percentiles;
+        }
+    }
 }
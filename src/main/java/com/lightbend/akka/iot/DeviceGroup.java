@@ -1,52 +1,260 @@
 package com.lightbend.akka.iot;
 
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithTimers;
 import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.actor.SupervisorStrategy;
 import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import com.lightbend.akka.iot.Device.ReadTemperature;
+import com.lightbend.akka.iot.Device.RecordTemperature;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.Device.RespondTemperature;
+import com.lightbend.akka.iot.Device.TemperatureBatchRecorded;
+import com.lightbend.akka.iot.Device.TemperatureRecorded;
+import com.lightbend.akka.iot.DeviceJournal.DeviceState;
+import com.lightbend.akka.iot.DeviceManager.DeviceRegistered;
+import com.lightbend.akka.iot.DeviceManager.GroupDevicesProvisioned;
+import com.lightbend.akka.iot.DeviceManager.ProvisionGroupDevices;
 import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import com.lightbend.akka.iot.TemperatureFeed.RequestTemperatureUpdates;
+import com.lightbend.akka.iot.TemperatureFeed.SubscribeTemperatures;
+import com.lightbend.akka.iot.TemperatureFeed.TemperatureUpdate;
+import com.lightbend.akka.iot.TemperatureFeed.UnsubscribeTemperatures;
+import com.lightbend.akka.iot.TemperatureRollup.RequestRollup;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceGroup extends AbstractActorWithTimers {
+    static final String DEVICE_PREFIX = "device-";
 
-public class DeviceGroup extends AbstractActor {
     public static Props props(String groupId) {
-        return Props.create(DeviceGroup.class, () -> new DeviceGroup(groupId));
+        return props(groupId, false);
+    }
+
+    // In compact mode devices live as rows of a CompactDeviceStore and only
+    // devices that are explicitly promoted get an actor of their own. Like those of
+    // devices, these Props are for one actor and carry its state across restarts.
+    public static Props props(String groupId, boolean compact) {
+        RestartState restartState = new RestartState();
+        return Props.create(DeviceGroup.class,
+                () -> new DeviceGroup(groupId, compact, Collections.emptyMap(), false, restartState));
+    }
+
+    // Started by a DeviceManager, which is sent the group's rollups
+    static Props props(String groupId, boolean compact, Map<String, DeviceState> recoveredDevices) {
+        RestartState restartState = new RestartState();
+        return Props.create(DeviceGroup.class,
+                () -> new DeviceGroup(groupId, compact, recoveredDevices, true, restartState));
+    }
+
+    // For Cluster Sharding, which starts every group from the same Props: the group's id
+    // is taken from the actor's name, which is the URL-encoded entity id. With Props
+    // shared by every group there is no room for restart state, so a sharded group comes
+    // back empty after a restart, as it does after a move to another node.
+    static Props entityProps(boolean compact) {
+        return Props.create(DeviceGroup.class,
+                () -> new DeviceGroup(null, compact, Collections.emptyMap(), false, null));
     }
 
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private final HotPathLog passivationLog =
+            IotLogging.get(getContext().getSystem()).logger("device-passivation", DeviceGroup.class);
+    private final String logSource = getSelf().path().toString();
     private final String groupId;
-    private final Map<String, ActorRef> deviceIdToActor = new HashMap<>();
-    private final Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+    // Devices with an actor, by handle. The actor of a device is named after its id,
+    // which leads back from an ActorRef to the handle without a map keyed by refs.
+    private final IdRegistry registry;
+    private ActorRef[] actors;
+    // Last readings device actors reported, NaN for none
+    private double[] latest;
+    // Every device of the group, whether it has an actor, a compact row or is passivated.
+    // Immutable, so replies can share it.
+    private DeviceIdSet members;
+    private final CompactDeviceStore compactStore;
+    private final Map<String, DeviceState> recoveredDevices;
+    private final IotSettings settings = IotSettings.get(getContext().getSystem());
+    private final DeviceJournal journal =
+            settings.persistenceEnabled ? DeviceJournal.get(getContext().getSystem()) : null;
+    private final boolean passivation = settings.devicePassivateAfter.length() > 0;
+    private final IotMetrics metrics = IotMetrics.get(getContext().getSystem());
+    private final SupervisorStrategy supervisorStrategy =
+            new BackoffSupervisorStrategy(settings.deviceSupervision, metrics.tier(IotMetrics.Tier.DEVICE));
+    private IotMetrics.GroupDevices deviceCounts;
+    // Messages that arrived for devices whose actor is stopping for passivation, by handle
+    private List<BufferedMessage>[] passivating;
+    private int passivatingCount;
+    // Last state of passivated devices, and provisioned devices that have not had a
+    // message yet. Compact groups keep them in their own rows.
+    private CompactDeviceStore passivatedStore;
+    private final IotAlerts alerts = IotAlerts.get(getContext().getSystem());
+    // Null while no group alert rule applies to this group
+    private AlertRules.GroupAlerts groupAlerts;
+    // Whether device actors send LatestTemperature reports, for the snapshot cache or
+    // group alert rules
+    private boolean reportReadings;
+    // Started on the first subscription to the group's readings
+    private ActorRef feed;
+    // Whether the feed has subscribers, and device actors send it their updates
+    private boolean feedActive;
+    // Every reading of the group's devices so far, and those its parent has not been sent yet
+    private final TemperatureRollup rollup;
+    private final boolean rollupToParent;
+    private TemperatureRollup parentRollup;
+    // Null when snapshots are not cached
+    private final GroupSnapshotCache snapshots;
+    // Null for sharded groups
+    private final RestartState restartState;
+
+    private DeviceGroup(String groupId, boolean compact, Map<String, DeviceState> recoveredDevices,
+                        boolean rollupToParent, RestartState restartState) {
+        this.groupId = groupId != null ? groupId : entityId(getSelf());
+        this.rollupToParent = rollupToParent;
+        this.restartState = restartState;
+        if (restartState != null && restartState.saved) {
+            this.registry = restartState.registry;
+            this.actors = restartState.actors;
+            this.latest = restartState.latest;
+            this.members = restartState.members;
+            this.compactStore = restartState.compactStore;
+            this.passivating = restartState.passivating;
+            this.passivatingCount = restartState.passivatingCount;
+            this.passivatedStore = restartState.passivatedStore;
+            this.reportReadings = restartState.reportReadings;
+            this.feed = restartState.feed;
+            this.feedActive = restartState.feedActive;
+            this.rollup = restartState.rollup;
+            this.snapshots = restartState.snapshots;
+            this.recoveredDevices = Collections.emptyMap();
+            restartState.clear();
+        } else {
+            this.registry = new IdRegistry();
+            this.actors = new ActorRef[registry.capacity()];
+            this.latest = new double[registry.capacity()];
+            this.members = DeviceIdSet.EMPTY;
+            this.compactStore = compact ? new CompactDeviceStore(Math.max(16, recoveredDevices.size())) : null;
+            this.passivating = newBuffers(registry.capacity());
+            this.rollup = new TemperatureRollup();
+            this.snapshots = settings.groupSnapshotTtl.length() > 0
+                    ? new GroupSnapshotCache(settings.groupSnapshotTtl.toNanos(), metrics.snapshots())
+                    : null;
+            this.reportReadings = snapshots != null;
+            this.recoveredDevices = recoveredDevices;
+        }
+    }
 
-    private DeviceGroup(String groupId) {
-        this.groupId = groupId;
+    private static String entityId(ActorRef self) {
+        try {
+            return URLDecoder.decode(self.path().name(), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     @Override
     public void preStart() {
         log.info("DeviceGroup {} started", groupId);
+        deviceCounts = metrics.registerGroup(groupId);
+        if (!recoveredDevices.isEmpty()) {
+            recoverDevices();
+        }
+        publishDeviceCounts();
+        getContext().getSystem().eventStream().subscribe(getSelf(), AlertRules.class);
+        onAlertRules(alerts.rules());
+        // A restarted group may no longer have the rules its devices report for
+        updateReportReadings();
+    }
+
+    private void recoverDevices() {
+        for (Map.Entry<String, DeviceState> entry : recoveredDevices.entrySet()) {
+            String deviceId = entry.getKey();
+            DeviceState state = entry.getValue();
+            members = members.with(deviceId);
+            if (compactStore != null || passivation) {
+                // With passivation on, devices are only given an actor once a message arrives for them
+                CompactDeviceStore store = stashStore();
+                int slot = store.intern(deviceId);
+                if (state.hasReading()) {
+                    store.record(slot, state.requestId, state.value, state.timestamp);
+                }
+            } else {
+                startDevice(deviceId, state.hasReading(), state.requestId, state.value);
+            }
+        }
+        log.info("DeviceGroup {} recovered {} devices", groupId, recoveredDevices.size());
+    }
+
+    @Override
+    public SupervisorStrategy supervisorStrategy() {
+        return supervisorStrategy;
+    }
+
+    // Unlike Akka's default, leaves the children running and hands the device tables to
+    // the next incarnation, so a restarted group keeps its members and their actors.
+    // Akka restarts the surviving children once the group is back, and devices carry
+    // their own state across that restart. Sharded groups restart as Akka does by default.
+    @Override
+    public void preRestart(Throwable reason, Optional<Object> message) throws Exception {
+        flushRollup();
+        if (restartState == null) {
+            super.preRestart(reason, message);
+            return;
+        }
+        restartState.save(this);
+        postStop();
     }
 
     @Override
     public void postStop() {
+        if (deviceCounts != null) {
+            metrics.unregisterGroup(groupId, deviceCounts);
+        }
         log.info("DeviceGroup {} stopped", groupId);
     }
 
+    private void publishDeviceCounts() {
+        if (deviceCounts != null) {
+            deviceCounts.update(members.size(), registry.size());
+        }
+    }
+
     private void onTrackDevice(RequestTrackDevice trackMsg) {
         if (this.groupId.equals(trackMsg.groupId)) {
-            ActorRef deviceActor = deviceIdToActor.get(trackMsg.deviceId);
-            if (deviceActor != null) {
-                deviceActor.forward(trackMsg, getContext());
+            if (deliver(trackMsg.deviceId, trackMsg, getSender())) {
+                return;
+            }
+            if (compactStore != null) {
+                if (!compactStore.contains(trackMsg.deviceId)) {
+                    compactStore.intern(trackMsg.deviceId);
+                    members = members.with(trackMsg.deviceId);
+                    invalidateSnapshot();
+                    publishDeviceCounts();
+                    if (journal != null) {
+                        journal.deviceTracked(groupId, trackMsg.deviceId);
+                    }
+                }
+                getSender().tell(new DeviceRegistered(trackMsg.requestId), getSelf());
             } else {
                 log.info("Creating device actor for {}", trackMsg.deviceId);
-                deviceActor = getContext().actorOf(Device.props(groupId, trackMsg.deviceId), "device-" + trackMsg.deviceId);
-                getContext().watch(deviceActor);
-                actorToDeviceId.put(deviceActor, trackMsg.deviceId);
-                deviceIdToActor.put(trackMsg.deviceId, deviceActor);
+                members = members.with(trackMsg.deviceId);
+                invalidateSnapshot();
+                ActorRef deviceActor = startDevice(trackMsg.deviceId, false, 0L, 0.0);
+                if (journal != null) {
+                    journal.deviceTracked(groupId, trackMsg.deviceId);
+                }
                 deviceActor.forward(trackMsg, getContext());
             }
         } else {
@@ -57,28 +265,666 @@ public class DeviceGroup extends AbstractActor {
         }
     }
 
+    // Like RequestTrackDevice for many devices at once, without a log line or reply per
+    // device. Devices start out as rows, like passivated ones, and only get an actor once
+    // a message arrives for them, so provisioning does not pay for actors that may sit
+    // idle.
+    private void onProvisionGroupDevices(ProvisionGroupDevices p) {
+        if (!this.groupId.equals(p.groupId)) {
+            log.warning("Ignoring provisioning for {}. This actor is responsible for {}.", p.groupId, groupId);
+            return;
+        }
+        // Sorted, so that duplicates are adjacent and the new ids merge into members at once
+        String[] ids = p.deviceIds.toArray(new String[0]);
+        Arrays.sort(ids);
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            String deviceId = ids[i];
+            if ((i > 0 && deviceId.equals(ids[i - 1])) || members.contains(deviceId)) {
+                continue;
+            }
+            created.add(deviceId);
+            stashStore().intern(deviceId);
+            if (journal != null) {
+                journal.deviceTracked(groupId, deviceId);
+            }
+        }
+        members = members.withAll(created);
+        if (!created.isEmpty()) {
+            invalidateSnapshot();
+        }
+        publishDeviceCounts();
+        getSender().tell(new GroupDevicesProvisioned(groupId, ids.length, created.size()), getSelf());
+    }
+
+    // Seeded with the device's last state when it has a reading
+    private ActorRef startDevice(String deviceId, boolean hasReading, long requestId, double value) {
+        Props deviceProps = hasReading
+                ? Device.props(groupId, deviceId, groupFeed(), reportReadings, requestId, value)
+                : Device.props(groupId, deviceId, groupFeed(), reportReadings);
+        Props deployed = settings.deploy(deviceProps, IotMetrics.Tier.DEVICE);
+        ActorRef deviceActor = getContext().actorOf(
+                metrics.meter(deployed, IotMetrics.Tier.DEVICE), DEVICE_PREFIX + deviceId);
+        getContext().watch(deviceActor);
+        int handle = registry.intern(deviceId);
+        if (actors.length < registry.capacity()) {
+            actors = Arrays.copyOf(actors, registry.capacity());
+            latest = Arrays.copyOf(latest, registry.capacity());
+            passivating = Arrays.copyOf(passivating, registry.capacity());
+        }
+        actors[handle] = deviceActor;
+        latest[handle] = hasReading ? value : Double.NaN;
+        publishDeviceCounts();
+        return deviceActor;
+    }
+
+    // Handle of a device actor of this group, NO_HANDLE for any other ref
+    private int handleOf(ActorRef deviceActor) {
+        String name = deviceActor.path().name();
+        if (!name.startsWith(DEVICE_PREFIX)) {
+            return IdRegistry.NO_HANDLE;
+        }
+        int handle = registry.handleOf(name, DEVICE_PREFIX.length());
+        return handle != IdRegistry.NO_HANDLE && deviceActor.equals(actors[handle]) ? handle : IdRegistry.NO_HANDLE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<BufferedMessage>[] newBuffers(int length) {
+        return (List<BufferedMessage>[]) new List<?>[length];
+    }
+
+    // Sends a message to the actor of a device, starting the actor again if the device
+    // was passivated and holding the message back while its actor is stopping.
+    // False when the device has no actor; compact groups then use the device's row.
+    private boolean deliver(String deviceId, Object message, ActorRef sender) {
+        int handle = registry.handleOf(deviceId);
+        ActorRef deviceActor = null;
+        if (handle != IdRegistry.NO_HANDLE) {
+            List<BufferedMessage> buffered = passivating[handle];
+            if (buffered != null) {
+                buffered.add(new BufferedMessage(message, sender));
+                return true;
+            }
+            deviceActor = actors[handle];
+        } else if (passivatedStore != null && passivatedStore.contains(deviceId)) {
+            deviceActor = activate(deviceId);
+        }
+        if (deviceActor == null) {
+            return false;
+        }
+        deviceActor.tell(message, sender);
+        return true;
+    }
+
+    // Starts an actor for a device from the state stashed in its row
+    private ActorRef activate(String deviceId) {
+        CompactDeviceStore store = stashStore();
+        int slot = store.slotOf(deviceId);
+        boolean hasReading = store.hasReading(slot);
+        long requestId = store.requestId(slot);
+        double value = store.reading(slot);
+        if (store == passivatedStore) {
+            store.remove(deviceId);
+        }
+        return startDevice(deviceId, hasReading, requestId, value);
+    }
+
+    private CompactDeviceStore stashStore() {
+        if (compactStore != null) {
+            return compactStore;
+        }
+        if (passivatedStore == null) {
+            passivatedStore = new CompactDeviceStore();
+        }
+        return passivatedStore;
+    }
+
+    private void stash(String deviceId, long requestId, double value, boolean hasValue) {
+        CompactDeviceStore store = stashStore();
+        int slot = store.intern(deviceId);
+        if (hasValue) {
+            store.record(slot, requestId, value, System.currentTimeMillis());
+        }
+    }
+
+    private int compactSlotOf(String deviceId) {
+        return compactStore != null ? compactStore.slotOf(deviceId) : -1;
+    }
+
+    private void onPromoteDevice(PromoteDevice p) {
+        // The device itself answers, so the requester learns the new actor ref
+        RequestTrackDevice track = new RequestTrackDevice(groupId, p.deviceId);
+        if (deliver(p.deviceId, track, getSender())) {
+            return;
+        }
+        if (compactSlotOf(p.deviceId) < 0) {
+            log.warning("Cannot promote unknown device {}-{}", groupId, p.deviceId);
+            return;
+        }
+        log.info("Promoting device {} to an actor", p.deviceId);
+        activate(p.deviceId).tell(track, getSender());
+    }
+
+    private void onDeviceIdle(DeviceIdle idle) {
+        ActorRef deviceActor = getSender();
+        int handle = handleOf(deviceActor);
+        if (handle == IdRegistry.NO_HANDLE || passivating[handle] != null) {
+            return;
+        }
+        String deviceId = registry.idOf(handle);
+        passivationLog.info(logSource, "Passivating idle device {}-{}", groupId, deviceId);
+        // Until the actor has stopped, queries are answered from the state it reported
+        // as idle and messages for it are buffered
+        stash(deviceId, idle.requestId, idle.value, idle.hasValue);
+        passivating[handle] = new ArrayList<>();
+        passivatingCount++;
+        publishDeviceCounts();
+        deviceActor.tell(Device.Passivate.INSTANCE, getSelf());
+    }
+
+    private void onDevicePassivated(DevicePassivated p) {
+        int handle = handleOf(getSender());
+        if (handle != IdRegistry.NO_HANDLE) {
+            stash(registry.idOf(handle), p.requestId, p.value, p.hasValue);
+        }
+    }
+
+    private void invalidateSnapshot() {
+        if (snapshots != null) {
+            snapshots.invalidate();
+        }
+    }
+
+    // Takes in the readings device actors recorded without the group routing them, e.g.
+    // RecordTemperature sent straight to a device. Only devices with new readings report,
+    // so the snapshot is patched per changed device rather than rescanned.
+    private void onLatestTemperature(LatestTemperature t) {
+        int handle = handleOf(getSender());
+        if (handle == IdRegistry.NO_HANDLE) {
+            return;
+        }
+        latest[handle] = t.value;
+        if (snapshots != null) {
+            snapshots.reported(registry.idOf(handle), t.value);
+        }
+    }
+
+    // Devices report while the group needs their readings and are told when that changes
+    private void updateReportReadings() {
+        boolean wanted = snapshots != null || groupAlerts != null;
+        if (wanted != reportReadings) {
+            reportReadings = wanted;
+            tellDevices(wanted ? Device.ReportReadings.ON : Device.ReportReadings.OFF);
+        }
+    }
+
+    private void tellDevices(Object message) {
+        for (ActorRef deviceActor : actors) {
+            if (deviceActor != null) {
+                deviceActor.tell(message, getSelf());
+            }
+        }
+    }
+
+    // The last reading of a batch or single reading for a device of the group
+    private void patchSnapshot(String deviceId, double value) {
+        if (snapshots != null) {
+            snapshots.recorded(deviceId, value);
+        }
+    }
+
+    private void onRecordDeviceTemperature(RecordDeviceTemperature r) {
+        if (deliver(r.deviceId, new RecordTemperature(r.requestId, r.value), getSender())) {
+            patchSnapshot(r.deviceId, r.value);
+            return;
+        }
+        int slot = compactSlotOf(r.deviceId);
+        if (slot >= 0) {
+            long now = System.currentTimeMillis();
+            compactStore.record(slot, r.requestId, r.value, now);
+            patchSnapshot(r.deviceId, r.value);
+            rollUp(r.value);
+            publishUpdate(r.deviceId, r.requestId, r.value, now);
+            if (journal != null) {
+                journal.temperatureRecorded(groupId, r.deviceId, r.requestId, r.value, now);
+            }
+            getSender().tell(new TemperatureRecorded(r.requestId), getSelf());
+        } else {
+            log.warning("Dropping temperature reading for unknown device {}-{}", groupId, r.deviceId);
+        }
+    }
+
+    private void onReadDeviceTemperature(ReadDeviceTemperature r) {
+        if (deliver(r.deviceId, new ReadTemperature(r.requestId), getSender())) {
+            return;
+        }
+        int slot = compactSlotOf(r.deviceId);
+        if (slot >= 0) {
+            getSender().tell(new RespondTemperature(
+                    r.requestId, compactStore.reading(slot), compactStore.hasReading(slot)), getSelf());
+        } else {
+            log.warning("Ignoring temperature read for unknown device {}-{}", groupId, r.deviceId);
+        }
+    }
+
+    private void onRecordTemperatureBatch(RecordTemperatureBatch batch) {
+        boolean ownGroup = this.groupId.equals(batch.groupId);
+        if (ownGroup && deliver(batch.deviceId, batch, getSender())) {
+            patchSnapshot(batch.deviceId, batch.values[batch.values.length - 1]);
+            return;
+        }
+        int slot = ownGroup ? compactSlotOf(batch.deviceId) : -1;
+        if (slot < 0) {
+            log.warning("Dropping temperature batch for unknown device {}-{}", batch.groupId, batch.deviceId);
+            batch.drop(getSender(), getSelf());
+        } else {
+            long[] requestIds = batch.requestIds;
+            long highestRequestId = batch.highestRequestId();
+            double lastValue = batch.values[batch.values.length - 1];
+            long now = System.currentTimeMillis();
+            compactStore.record(slot, highestRequestId, lastValue, now);
+            patchSnapshot(batch.deviceId, lastValue);
+            for (int i = 0; i < requestIds.length; i++) {
+                rollUp(batch.values[i]);
+                publishUpdate(batch.deviceId, requestIds[i], batch.values[i], now);
+            }
+            if (journal != null) {
+                journal.temperatureRecorded(groupId, batch.deviceId, highestRequestId, lastValue, now);
+            }
+            if (batch.acknowledge) {
+                getSender().tell(new TemperatureBatchRecorded(highestRequestId), getSelf());
+            }
+        }
+    }
+
+    // Readings of devices without an actor; device actors send their own updates
+    private void publishUpdate(String deviceId, long requestId, double value, long timestamp) {
+        if (feedActive) {
+            feed.tell(new TemperatureUpdate(groupId, deviceId, requestId, value, timestamp), getSelf());
+        }
+    }
+
+    // Readings of devices without an actor; device actors send theirs as rollups. Skips
+    // NaN and infinite readings as devices do.
+    private void rollUp(double value) {
+        if (settings.rollupInterval.length() > 0 && Double.isFinite(value)) {
+            rollup.record(value);
+            if (rollupToParent) {
+                pendingParentRollup().record(value);
+            }
+        }
+    }
+
+    private void onRollup(TemperatureRollup deviceRollup) {
+        rollup.merge(deviceRollup);
+        if (rollupToParent) {
+            pendingParentRollup().merge(deviceRollup);
+        }
+    }
+
+    private TemperatureRollup pendingParentRollup() {
+        if (parentRollup == null) {
+            parentRollup = new TemperatureRollup();
+            getTimers().startSingleTimer(FlushRollup.INSTANCE, FlushRollup.INSTANCE, settings.rollupInterval);
+        }
+        return parentRollup;
+    }
+
+    private void flushRollup() {
+        if (parentRollup != null) {
+            getContext().getParent().tell(parentRollup, getSelf());
+            parentRollup = null;
+        }
+    }
+
+    private void onSubscribeTemperatures(SubscribeTemperatures s) {
+        if (feed == null) {
+            feed = getContext().actorOf(GroupTemperatureFeed.props(), "feed");
+        }
+        // Devices are told before the feed sees the subscription, so a reading sent to a
+        // device after the subscriber's TemperaturesSubscribed reaches the subscriber
+        updateFeedActive(true);
+        feed.forward(s, getContext());
+    }
+
+    private ActorRef groupFeed() {
+        return feedActive ? feed : null;
+    }
+
+    private void updateFeedActive(boolean active) {
+        if (active != feedActive) {
+            feedActive = active;
+            tellDevices(new Device.GroupFeed(groupFeed()));
+        }
+    }
+
     private void onDeviceList(RequestDeviceList r) {
-        getSender().tell(new ReplyDeviceList(r.requestId, deviceIdToActor.keySet()), getSelf());
+        getSender().tell(new ReplyDeviceList(r.requestId, members), getSelf());
+    }
+
+    private void onDeviceListPage(RequestDeviceListPage r) {
+        // One extra id tells whether there is a next page; no group holds Integer.MAX_VALUE ids
+        List<String> ids = members.page(r.prefix, r.afterId, Math.min(r.limit, Integer.MAX_VALUE - 1) + 1);
+        String nextAfterId = null;
+        if (ids.size() > r.limit) {
+            ids.remove(r.limit);
+            nextAfterId = ids.get(r.limit - 1);
+        }
+        getSender().tell(new ReplyDeviceListPage(r.requestId, ids, nextAfterId), getSelf());
+    }
+
+    private void onAllTemperatures(RequestAllTemperatures r) {
+        if (snapshots != null) {
+            if (snapshots.request(r.requestId, getSender(), getSelf(), System.nanoTime())) {
+                return;
+            }
+        }
+        // A snapshot for the cache is collected to the group, which answers every request waiting for it
+        ActorRef requester = snapshots != null ? getSelf() : getSender();
+        Map<String, TemperatureReading> knownReadings = new HashMap<>();
+        CompactDeviceStore store = compactStore != null ? compactStore : passivatedStore;
+        if (store != null) {
+            for (int slot = 0; slot < store.size(); slot++) {
+                int handle = registry.handleOf(store.idAt(slot));
+                if (handle == IdRegistry.NO_HANDLE || passivating[handle] != null) {
+                    knownReadings.put(store.idAt(slot), store.hasReading(slot)
+                            ? new Temperature(store.reading(slot))
+                            : TemperatureNotAvailable.INSTANCE);
+                }
+            }
+        }
+        Map<ActorRef, String> queried = new HashMap<>((registry.size() - passivatingCount) * 4 / 3 + 1);
+        for (int handle = 0; handle < actors.length; handle++) {
+            if (actors[handle] != null && passivating[handle] == null) {
+                queried.put(actors[handle], registry.idOf(handle));
+            }
+        }
+        if (queried.isEmpty()) {
+            requester.tell(new RespondAllTemperatures(r.requestId, knownReadings), getSelf());
+            return;
+        }
+        // Both maps were built for this query and are handed over to it
+        getContext().actorOf(DeviceGroupQuery.props(
+                queried, knownReadings, r.requestId, requester, settings.groupQueryTimeout
+        ));
+    }
+
+    private void onSnapshotCollected(RespondAllTemperatures collected) {
+        if (snapshots != null) {
+            snapshots.collected(collected.temperatures, getSelf(), System.nanoTime());
+        }
+    }
+
+    private void onAlertRules(AlertRules rules) {
+        if (groupAlerts == null ? !rules.hasGroupRules(groupId) : groupAlerts.rules == rules) {
+            return;
+        }
+        groupAlerts = rules.forGroup(
+                groupId, alerts.groupEvaluationIntervalMillis, groupAlerts, alerts, System.currentTimeMillis());
+        if (groupAlerts.isEmpty()) {
+            groupAlerts = null;
+            getTimers().cancel(EvaluateGroupAlerts.INSTANCE);
+        } else if (!getTimers().isTimerActive(EvaluateGroupAlerts.INSTANCE)) {
+            FiniteDuration interval = Duration.create(alerts.groupEvaluationIntervalMillis, TimeUnit.MILLISECONDS);
+            getTimers().startPeriodicTimer(EvaluateGroupAlerts.INSTANCE, EvaluateGroupAlerts.INSTANCE, interval);
+        }
+        updateReportReadings();
+    }
+
+    // Samples the average of the devices' last readings, the same readings a
+    // RequestAllTemperatures would collect, from what device actors reported
+    private void onEvaluateGroupAlerts(EvaluateGroupAlerts e) {
+        if (groupAlerts == null) {
+            return;
+        }
+        double sum = 0.0;
+        int count = 0;
+        for (int handle = 0; handle < actors.length; handle++) {
+            if (actors[handle] != null && passivating[handle] == null) {
+                double value = latest[handle];
+                if (!Double.isNaN(value)) {
+                    sum += value;
+                    count++;
+                }
+            }
+        }
+        CompactDeviceStore store = compactStore != null ? compactStore : passivatedStore;
+        if (store != null) {
+            for (int slot = 0; slot < store.size(); slot++) {
+                if (store.hasReading(slot)) {
+                    int handle = registry.handleOf(store.idAt(slot));
+                    if (handle == IdRegistry.NO_HANDLE || passivating[handle] != null) {
+                        sum += store.reading(slot);
+                        count++;
+                    }
+                }
+            }
+        }
+        groupAlerts.sample(count == 0 ? Double.NaN : sum / count, System.currentTimeMillis(), alerts, groupId);
     }
 
     private void onTerminated(Terminated t) {
-        ActorRef deviceActor = t.getActor();
-        String deviceId = actorToDeviceId.get(deviceActor);
+        int handle = handleOf(t.getActor());
+        if (handle == IdRegistry.NO_HANDLE) {
+            return;
+        }
+        String deviceId = registry.idOf(handle);
+        List<BufferedMessage> buffered = passivating[handle];
+        if (buffered != null) {
+            passivating[handle] = null;
+            passivatingCount--;
+        }
+        actors[handle] = null;
+        latest[handle] = Double.NaN;
+        registry.release(handle);
+        // Compact groups keep the row of a promoted device when its actor goes away
+        if (buffered == null && compactStore == null) {
+            members = members.without(deviceId);
+            invalidateSnapshot();
+        }
+        publishDeviceCounts();
+        if (buffered != null) {
+            log.info("Device actor for {} has been passivated", deviceId);
+            if (!buffered.isEmpty()) {
+                ActorRef reactivated = activate(deviceId);
+                for (BufferedMessage m : buffered) {
+                    reactivated.tell(m.message, m.sender);
+                }
+            }
+            return;
+        }
         log.info("Device actor for {} has been terminated", deviceId);
-        actorToDeviceId.remove(deviceActor);
-        deviceIdToActor.remove(deviceId);
+        if (journal != null && compactStore == null) {
+            journal.deviceRemoved(groupId, deviceId);
+        }
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(RequestTrackDevice.class, this::onTrackDevice)
+                .match(RecordDeviceTemperature.class, this::onRecordDeviceTemperature)
+                .match(ReadDeviceTemperature.class, this::onReadDeviceTemperature)
+                .match(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .match(PromoteDevice.class, this::onPromoteDevice)
+                .match(ProvisionGroupDevices.class, this::onProvisionGroupDevices)
+                .match(DeviceIdle.class, this::onDeviceIdle)
+                .match(DevicePassivated.class, this::onDevicePassivated)
+                .match(LatestTemperature.class, this::onLatestTemperature)
                 .match(RequestDeviceList.class, this::onDeviceList)
+                .match(RequestDeviceListPage.class, this::onDeviceListPage)
+                .match(RequestAllTemperatures.class, this::onAllTemperatures)
+                .match(RespondAllTemperatures.class, this::onSnapshotCollected)
                 .match(Terminated.class, this::onTerminated)
+                .match(AlertRules.class, this::onAlertRules)
+                .match(SubscribeTemperatures.class, this::onSubscribeTemperatures)
+                .match(GroupTemperatureFeed.SubscribersChanged.class, c -> updateFeedActive(c.any))
+                .match(RequestTemperatureUpdates.class, r -> {
+                    if (feed != null) {
+                        feed.forward(r, getContext());
+                    }
+                })
+                .match(UnsubscribeTemperatures.class, u -> {
+                    if (feed != null) {
+                        feed.forward(u, getContext());
+                    }
+                })
+                .match(EvaluateGroupAlerts.class, this::onEvaluateGroupAlerts)
+                .match(TemperatureRollup.class, this::onRollup)
+                .match(FlushRollup.class, f -> flushRollup())
+                .match(RequestRollup.class, r -> getSender().tell(rollup.respond(r), getSelf()))
                 .build();
     }
 
-    static final class RequestDeviceList {
+    static final class RecordDeviceTemperature implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String deviceId;
+        final long requestId;
+        final double value;
+
+        RecordDeviceTemperature(String deviceId, long requestId, double value) {
+            this.deviceId = deviceId;
+            this.requestId = requestId;
+            this.value = value;
+        }
+    }
+
+    static final class ReadDeviceTemperature implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String deviceId;
+        final long requestId;
+
+        ReadDeviceTemperature(String deviceId, long requestId) {
+            this.deviceId = deviceId;
+            this.requestId = requestId;
+        }
+    }
+
+    static final class PromoteDevice implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String deviceId;
+
+        PromoteDevice(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    static final class DeviceIdle {
+        final long requestId;
+        final double value;
+        final boolean hasValue;
+
+        DeviceIdle(long requestId, double value, boolean hasValue) {
+            this.requestId = requestId;
+            this.value = value;
+            this.hasValue = hasValue;
+        }
+    }
+
+    static final class DevicePassivated {
+        final long requestId;
+        final double value;
+        final boolean hasValue;
+
+        DevicePassivated(long requestId, double value, boolean hasValue) {
+            this.requestId = requestId;
+            this.value = value;
+            this.hasValue = hasValue;
+        }
+    }
+
+    // A device's reading at the time it reports, sent while its group asks for them with
+    // Device.ReportReadings
+    static final class LatestTemperature {
+        final double value;
+
+        LatestTemperature(double value) {
+            this.value = value;
+        }
+    }
+
+    private static final class EvaluateGroupAlerts {
+        static final EvaluateGroupAlerts INSTANCE = new EvaluateGroupAlerts();
+
+        private EvaluateGroupAlerts() {
+        }
+    }
+
+    private static final class FlushRollup {
+        static final FlushRollup INSTANCE = new FlushRollup();
+
+        private FlushRollup() {
+        }
+    }
+
+    private static final class BufferedMessage {
+        final Object message;
+        final ActorRef sender;
+
+        BufferedMessage(Object message, ActorRef sender) {
+            this.message = message;
+            this.sender = sender;
+        }
+    }
+
+    // Device tables preRestart hands to the next incarnation. It lives in the group's
+    // Props, so it goes away with the actor, and only the group's incarnations touch it,
+    // one after the other.
+    private static final class RestartState {
+        boolean saved;
+        IdRegistry registry;
+        ActorRef[] actors;
+        double[] latest;
+        DeviceIdSet members;
+        CompactDeviceStore compactStore;
+        List<BufferedMessage>[] passivating;
+        int passivatingCount;
+        CompactDeviceStore passivatedStore;
+        boolean reportReadings;
+        ActorRef feed;
+        boolean feedActive;
+        TemperatureRollup rollup;
+        GroupSnapshotCache snapshots;
+
+        void save(DeviceGroup group) {
+            this.saved = true;
+            this.registry = group.registry;
+            this.actors = group.actors;
+            this.latest = group.latest;
+            this.members = group.members;
+            this.compactStore = group.compactStore;
+            this.passivating = group.passivating;
+            this.passivatingCount = group.passivatingCount;
+            this.passivatedStore = group.passivatedStore;
+            this.reportReadings = group.reportReadings;
+            this.feed = group.feed;
+            this.feedActive = group.feedActive;
+            this.rollup = group.rollup;
+            this.snapshots = group.snapshots;
+        }
+
+        // Once the next incarnation has taken the tables over
+        void clear() {
+            saved = false;
+            registry = null;
+            actors = null;
+            latest = null;
+            members = null;
+            compactStore = null;
+            passivating = null;
+            passivatedStore = null;
+            feed = null;
+            rollup = null;
+            snapshots = null;
+        }
+    }
+
+    static final class RequestDeviceList implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
         final long requestId;
 
         RequestDeviceList(long requestId) {
@@ -86,7 +932,9 @@ public class DeviceGroup extends AbstractActor {
         }
     }
 
-    static final class ReplyDeviceList {
+    static final class ReplyDeviceList implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
         final long requestId;
         final Set<String> ids;
 
@@ -95,4 +943,134 @@ public class DeviceGroup extends AbstractActor {
             this.ids = ids;
         }
     }
-}
\ No newline at end of file
+
+    // Ids under prefix ("" for all) that sort after afterId (null for the first page)
+    static final class RequestDeviceListPage implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final String prefix;
+        final String afterId;
+        final int limit;
+
+        RequestDeviceListPage(long requestId, String prefix, String afterId, int limit) {
+            if (limit <= 0) {
+                throw new IllegalArgumentException("A page needs room for at least one id, got " + limit);
+            }
+            if (prefix == null) {
+                throw new IllegalArgumentException("A page needs a prefix, \"\" for every id");
+            }
+            this.requestId = requestId;
+            this.prefix = prefix;
+            this.afterId = afterId;
+            this.limit = limit;
+        }
+    }
+
+    static final class ReplyDeviceListPage implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final List<String> ids;
+        // Pass as afterId to get the next page, null on the last page
+        final String nextAfterId;
+
+        ReplyDeviceListPage(long requestId, List<String> ids, String nextAfterId) {
+            this.requestId = requestId;
+            this.ids = ids;
+            this.nextAfterId = nextAfterId;
+        }
+    }
+
+    static final class RequestAllTemperatures implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+
+        RequestAllTemperatures(long requestId) {
+            this.requestId = requestId;
+        }
+    }
+
+    static final class RespondAllTemperatures implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final Map<String, TemperatureReading> temperatures;
+
+        RespondAllTemperatures(long requestId, Map<String, TemperatureReading> temperatures) {
+            this.requestId = requestId;
+            this.temperatures = temperatures;
+        }
+    }
+
+    interface TemperatureReading extends IotMessage {
+    }
+
+    static final class Temperature implements TemperatureReading {
+        private static final long serialVersionUID = 1L;
+
+        final double value;
+
+        Temperature(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return Double.compare(((Temperature) o).value, value) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(value);
+        }
+
+        @Override
+        public String toString() {
+            return "Temperature{value=" + value + '}';
+        }
+    }
+
+    static final class TemperatureNotAvailable implements TemperatureReading {
+        private static final long serialVersionUID = 1L;
+
+        static final TemperatureNotAvailable INSTANCE = new TemperatureNotAvailable();
+
+        private TemperatureNotAvailable() {
+        }
+
+        // Keeps the instance unique when a reply comes from another node
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
+    static final class DeviceNotAvailable implements TemperatureReading {
+        private static final long serialVersionUID = 1L;
+
+        static final DeviceNotAvailable INSTANCE = new DeviceNotAvailable();
+
+        private DeviceNotAvailable() {
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
+    static final class DeviceTimedOut implements TemperatureReading {
+        private static final long serialVersionUID = 1L;
+
+        static final DeviceTimedOut INSTANCE = new DeviceTimedOut();
+
+        private DeviceTimedOut() {
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+}
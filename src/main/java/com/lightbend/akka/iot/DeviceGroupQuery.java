@@ -0,0 +1,127 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import com.lightbend.akka.iot.Device.ReadTemperature;
+import com.lightbend.akka.iot.Device.RespondTemperature;
+import com.lightbend.akka.iot.DeviceGroup.DeviceNotAvailable;
+import com.lightbend.akka.iot.DeviceGroup.DeviceTimedOut;
+import com.lightbend.akka.iot.DeviceGroup.RespondAllTemperatures;
+import com.lightbend.akka.iot.DeviceGroup.Temperature;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureNotAvailable;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureReading;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class DeviceGroupQuery extends AbstractActor {
+
+    // Copies actorToDeviceId here, on the caller's thread: the creator runs later on the
+    // query's dispatcher, while the caller may already be changing its map
+    public static Props props(Map<ActorRef, String> actorToDeviceId, long requestId, ActorRef requester,
+                              FiniteDuration timeout) {
+        return props(new HashMap<>(actorToDeviceId), Collections.emptyMap(), requestId, requester, timeout);
+    }
+
+    // Takes over both maps; the caller must not touch them afterwards
+    static Props props(Map<ActorRef, String> actorToDeviceId, Map<String, TemperatureReading> knownReadings,
+                       long requestId, ActorRef requester, FiniteDuration timeout) {
+        return Props.create(DeviceGroupQuery.class,
+                () -> new DeviceGroupQuery(actorToDeviceId, knownReadings, requestId, requester, timeout));
+    }
+
+    private final Map<ActorRef, String> pending;
+    private final Map<String, TemperatureReading> repliesSoFar;
+    private final long requestId;
+    private final ActorRef requester;
+    private final Cancellable queryTimeoutTimer;
+
+    private DeviceGroupQuery(Map<ActorRef, String> actorToDeviceId, Map<String, TemperatureReading> knownReadings,
+                             long requestId, ActorRef requester, FiniteDuration timeout) {
+        // Replies are tracked in place rather than through become(...) so that large groups
+        // do not pay for a map copy on every answer
+        this.pending = actorToDeviceId;
+        this.repliesSoFar = new HashMap<>((actorToDeviceId.size() + knownReadings.size()) * 4 / 3 + 1);
+        this.repliesSoFar.putAll(knownReadings);
+        this.requestId = requestId;
+        this.requester = requester;
+        this.queryTimeoutTimer = getContext().getSystem().scheduler().scheduleOnce(
+                timeout, getSelf(), CollectionTimeout.INSTANCE, getContext().dispatcher(), getSelf()
+        );
+    }
+
+    @Override
+    public void preStart() {
+        ReadTemperature read = new ReadTemperature(0L);
+        for (ActorRef deviceActor : pending.keySet()) {
+            getContext().watch(deviceActor);
+            deviceActor.tell(read, getSelf());
+        }
+        if (pending.isEmpty()) {
+            finish();
+        }
+    }
+
+    @Override
+    public void postStop() {
+        queryTimeoutTimer.cancel();
+    }
+
+    private void onRespondTemperature(RespondTemperature r) {
+        TemperatureReading reading = r.hasValue
+                ? new Temperature(r.value)
+                : TemperatureNotAvailable.INSTANCE;
+        receivedResponse(getSender(), reading);
+    }
+
+    private void onTerminated(Terminated t) {
+        receivedResponse(t.getActor(), DeviceNotAvailable.INSTANCE);
+    }
+
+    private void onCollectionTimeout(CollectionTimeout t) {
+        for (String deviceId : pending.values()) {
+            repliesSoFar.put(deviceId, DeviceTimedOut.INSTANCE);
+        }
+        pending.clear();
+        finish();
+    }
+
+    private void receivedResponse(ActorRef deviceActor, TemperatureReading reading) {
+        String deviceId = pending.remove(deviceActor);
+        if (deviceId == null) {
+            // A late Terminated for a device that already answered
+            return;
+        }
+        getContext().unwatch(deviceActor);
+        repliesSoFar.put(deviceId, reading);
+        if (pending.isEmpty()) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        requester.tell(new RespondAllTemperatures(requestId, repliesSoFar), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(RespondTemperature.class, this::onRespondTemperature)
+                .match(Terminated.class, this::onTerminated)
+                .match(CollectionTimeout.class, this::onCollectionTimeout)
+                .build();
+    }
+
+    static final class CollectionTimeout {
+        static final CollectionTimeout INSTANCE = new CollectionTimeout();
+
+        private CollectionTimeout() {
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.lightbend.akka.iot;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Immutable sorted set of device ids: a persistent AVL tree where with/without copy only
+// the O(log n) nodes on the path to the change and share the rest with the previous
+// version. Any version can be handed to other actors as is, and listing a page of ids
+// from a cursor or under a prefix only walks the part of the tree it returns.
+final class DeviceIdSet extends AbstractSet<String> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final DeviceIdSet EMPTY = new DeviceIdSet(null);
+
+    private final Node root;
+
+    private DeviceIdSet(Node root) {
+        this.root = root;
+    }
+
+    DeviceIdSet with(String id) {
+        Node updated = insert(root, id);
+        return updated == root ? this : new DeviceIdSet(updated);
+    }
+
+    // Adds ids that are sorted and not in the set yet. A batch that is large next to the set
+    // rebuilds a balanced tree in O(n + k) instead of copying a path per id.
+    DeviceIdSet withAll(List<String> sortedNewIds) {
+        if (sortedNewIds.size() * 8 < size()) {
+            DeviceIdSet set = this;
+            for (String id : sortedNewIds) {
+                set = set.with(id);
+            }
+            return set;
+        }
+        String[] ids = new String[size() + sortedNewIds.size()];
+        Iterator<String> existing = iterator();
+        String next = existing.hasNext() ? existing.next() : null;
+        int i = 0;
+        for (String id : sortedNewIds) {
+            while (next != null && next.compareTo(id) < 0) {
+                ids[i++] = next;
+                next = existing.hasNext() ? existing.next() : null;
+            }
+            ids[i++] = id;
+        }
+        while (next != null) {
+            ids[i++] = next;
+            next = existing.hasNext() ? existing.next() : null;
+        }
+        return new DeviceIdSet(build(ids, 0, ids.length));
+    }
+
+    DeviceIdSet without(String id) {
+        Node updated = remove(root, id);
+        return updated == root ? this : new DeviceIdSet(updated);
+    }
+
+    @Override
+    public int size() {
+        return root == null ? 0 : root.size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String id = (String) o;
+        Node node = root;
+        while (node != null) {
+            int c = id.compareTo(node.id);
+            if (c == 0) {
+                return true;
+            }
+            node = c < 0 ? node.left : node.right;
+        }
+        return false;
+    }
+
+    // Up to limit ids in order that start with prefix and sort after the given id (null for
+    // the first page)
+    List<String> page(String prefix, String after, int limit) {
+        List<String> ids = new ArrayList<>(Math.min(limit, size()));
+        if (limit > 0) {
+            collect(root, prefix, after, limit, ids);
+        }
+        return ids;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private final ArrayDeque<Node> path = new ArrayDeque<>();
+
+            {
+                pushLeft(root);
+            }
+
+            private void pushLeft(Node node) {
+                for (; node != null; node = node.left) {
+                    path.push(node);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node node = path.pop();
+                pushLeft(node.right);
+                return node.id;
+            }
+        };
+    }
+
+    // Serialized as the sorted ids, from which a balanced tree is rebuilt in O(n)
+    private Object writeReplace() {
+        return new SerializedForm(toArray(new String[0]));
+    }
+
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] ids;
+
+        SerializedForm(String[] ids) {
+            this.ids = ids;
+        }
+
+        private Object readResolve() {
+            return new DeviceIdSet(build(ids, 0, ids.length));
+        }
+    }
+
+    private static Node build(String[] sortedIds, int from, int to) {
+        if (from == to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        return new Node(sortedIds[middle], build(sortedIds, from, middle), build(sortedIds, middle + 1, to));
+    }
+
+    // False once the page is full or the walk has passed the prefix
+    private static boolean collect(Node node, String prefix, String after, int limit, List<String> ids) {
+        if (node == null) {
+            return true;
+        }
+        boolean inLowerBound = node.id.compareTo(prefix) >= 0 && (after == null || node.id.compareTo(after) > 0);
+        if (inLowerBound && !collect(node.left, prefix, after, limit, ids)) {
+            return false;
+        }
+        if (!node.id.startsWith(prefix) && node.id.compareTo(prefix) > 0) {
+            return false;
+        }
+        if (inLowerBound && node.id.startsWith(prefix)) {
+            ids.add(node.id);
+            if (ids.size() == limit) {
+                return false;
+            }
+        }
+        return collect(node.right, prefix, after, limit, ids);
+    }
+
+    private static Node insert(Node node, String id) {
+        if (node == null) {
+            return new Node(id, null, null);
+        }
+        int c = id.compareTo(node.id);
+        if (c < 0) {
+            Node left = insert(node.left, id);
+            return left == node.left ? node : balance(node.id, left, node.right);
+        } else if (c > 0) {
+            Node right = insert(node.right, id);
+            return right == node.right ? node : balance(node.id, node.left, right);
+        }
+        return node;
+    }
+
+    private static Node remove(Node node, String id) {
+        if (node == null) {
+            return null;
+        }
+        int c = id.compareTo(node.id);
+        if (c < 0) {
+            Node left = remove(node.left, id);
+            return left == node.left ? node : balance(node.id, left, node.right);
+        } else if (c > 0) {
+            Node right = remove(node.right, id);
+            return right == node.right ? node : balance(node.id, node.left, right);
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        Node successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.id, node.left, removeFirst(node.right));
+    }
+
+    private static Node removeFirst(Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.id, removeFirst(node.left), node.right);
+    }
+
+    private static Node balance(String id, Node left, Node right) {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if (leftHeight > rightHeight + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node(left.id, left.left, new Node(id, left.right, right));
+            }
+            Node pivot = left.right;
+            return new Node(pivot.id, new Node(left.id, left.left, pivot.left), new Node(id, pivot.right, right));
+        }
+        if (rightHeight > leftHeight + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node(right.id, new Node(id, left, right.left), right.right);
+            }
+            Node pivot = right.left;
+            return new Node(pivot.id, new Node(id, left, pivot.left), new Node(right.id, pivot.right, right.right));
+        }
+        return new Node(id, left, right);
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static final class Node {
+        final String id;
+        final Node left;
+        final Node right;
+        final int height;
+        final int size;
+
+        Node(String id, Node left, Node right) {
+            this.id = id;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = (left == null ? 0 : left.size) + (right == null ? 0 : right.size) + 1;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Append-only journal of device membership and readings, shared by all IoT actors
+// of an actor system.
+//
+// Events are appended to memory-mapped segment files. Writers reserve 4-byte aligned
+// space with a CAS on the segment position, mark it with a negative length right away
+// and publish the record by making the length positive once it is written, so appends
+// from many device actors never take a lock; only rolling over to a new segment does.
+// Replay skips records that were never published, and steps over reservations that
+// were never marked word by word, so a writer that died midway loses only its record.
+// A background thread forces dirty segments to disk once per flush interval (one fsync
+// for every write in that interval) and folds sealed segments into a snapshot of the
+// latest state per device. Recovery reads that snapshot and replays only the segments
+// written after it.
+final class DeviceJournal implements Extension {
+
+    private static final ExtensionId<DeviceJournal> ID = new AbstractExtensionId<DeviceJournal>() {
+        @Override
+        public DeviceJournal createExtension(ExtendedActorSystem system) {
+            IotSettings settings = IotSettings.get(system);
+            DeviceJournal journal = new DeviceJournal(
+                    settings.persistenceDirectory, settings.journalSegmentSize, settings.snapshotAfterSegments,
+                    Logging.getLogger(system, DeviceJournal.class));
+            journal.startFlushing(settings.journalFlushInterval.toMillis());
+            system.registerOnTermination(journal::close);
+            return journal;
+        }
+    };
+
+    static DeviceJournal get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    private static final byte DEVICE_TRACKED = 1;
+    private static final byte DEVICE_REMOVED = 2;
+    private static final byte TEMPERATURE_RECORDED = 3;
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x494f5453;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int snapshotAfterSegments;
+    private final LoggingAdapter log;
+
+    private final Object rollLock = new Object();
+    private volatile Segment current;
+    private final ConcurrentLinkedQueue<Segment> unflushed = new ConcurrentLinkedQueue<>();
+    private Map<String, Map<String, DeviceState>> recovered;
+    private ScheduledExecutorService flusher;
+
+    DeviceJournal(Path directory, int segmentSize, int snapshotAfterSegments, LoggingAdapter log) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.snapshotAfterSegments = snapshotAfterSegments;
+        this.log = log;
+        try {
+            Files.createDirectories(directory);
+            long snapshotIndex = latestIndex(SNAPSHOT_SUFFIX, Long.MAX_VALUE);
+            recovered = readState(snapshotIndex, Long.MAX_VALUE);
+            current = openSegment(Math.max(snapshotIndex, latestIndex(SEGMENT_SUFFIX, Long.MAX_VALUE) + 1));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open device journal in " + directory, e);
+        }
+    }
+
+    // Hands the state recovered at startup to its single consumer, the DeviceManager
+    synchronized Map<String, Map<String, DeviceState>> takeRecoveredState() {
+        Map<String, Map<String, DeviceState>> state = recovered;
+        recovered = Collections.emptyMap();
+        return state;
+    }
+
+    void deviceTracked(String groupId, String deviceId) {
+        append(DEVICE_TRACKED, groupId, deviceId, 0L, 0.0, 0L);
+    }
+
+    void deviceRemoved(String groupId, String deviceId) {
+        append(DEVICE_REMOVED, groupId, deviceId, 0L, 0.0, 0L);
+    }
+
+    void temperatureRecorded(String groupId, String deviceId, long requestId, double value, long timestamp) {
+        append(TEMPERATURE_RECORDED, groupId, deviceId, requestId, value, timestamp);
+    }
+
+    private void append(byte type, String groupId, String deviceId, long requestId, double value, long timestamp) {
+        int groupLength = utf8Length(groupId);
+        int deviceLength = utf8Length(deviceId);
+        int payload = 1 + 2 + groupLength + 2 + deviceLength + (type == TEMPERATURE_RECORDED ? 24 : 0);
+        int length = recordLength(payload);
+        if (length > segmentSize) {
+            throw new IllegalArgumentException("Journal record of " + length + " bytes exceeds the segment size");
+        }
+        for (; ; ) {
+            Segment segment = current;
+            segment.writers.incrementAndGet();
+            try {
+                int start = segment.position.getAndAdd(length);
+                if (start + length <= segmentSize) {
+                    MappedByteBuffer buffer = segment.buffer;
+                    // A negative length lets replay skip the record until it is complete
+                    buffer.putInt(start, -payload);
+                    int pos = start + 4;
+                    buffer.put(pos++, type);
+                    pos = putString(buffer, pos, groupId, groupLength);
+                    pos = putString(buffer, pos, deviceId, deviceLength);
+                    if (type == TEMPERATURE_RECORDED) {
+                        buffer.putLong(pos, requestId);
+                        buffer.putDouble(pos + 8, value);
+                        buffer.putLong(pos + 16, timestamp);
+                    }
+                    // A non-zero length marks the record as complete
+                    buffer.putInt(start, payload);
+                    return;
+                }
+            } finally {
+                segment.writers.decrementAndGet();
+            }
+            roll(segment);
+        }
+    }
+
+    private void roll(Segment full) {
+        synchronized (rollLock) {
+            if (current == full) {
+                try {
+                    // Sealed segments are queued before the switch, so everything below the
+                    // index of the current segment is known to the flusher
+                    unflushed.add(full);
+                    current = openSegment(full.index + 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not roll device journal segment", e);
+                }
+            }
+        }
+    }
+
+    void startFlushing(long intervalMillis) {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "iot-device-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAndSnapshot, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void flushAndSnapshot() {
+        Segment active = current;
+        for (Segment sealed; (sealed = unflushed.peek()) != null; unflushed.poll()) {
+            awaitWriters(sealed);
+            sealed.buffer.force();
+        }
+        active.buffer.force();
+        try {
+            snapshotIfNeeded(active.index);
+        } catch (IOException e) {
+            // Keeping the segments is always safe, the next round tries again
+            log.error(e, "Could not snapshot device journal in {}", directory);
+        }
+    }
+
+    synchronized void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        awaitWriters(current);
+        for (Segment sealed; (sealed = unflushed.poll()) != null; ) {
+            sealed.buffer.force();
+        }
+        current.buffer.force();
+    }
+
+    // Folds the sealed segments below upTo into a new snapshot once there are enough of them
+    private void snapshotIfNeeded(long upTo) throws IOException {
+        long snapshotIndex = latestIndex(SNAPSHOT_SUFFIX, Long.MAX_VALUE);
+        List<Path> sealed = new ArrayList<>();
+        for (Path segment : list(SEGMENT_SUFFIX)) {
+            long index = indexOf(segment);
+            if (index >= snapshotIndex && index < upTo) {
+                sealed.add(segment);
+            }
+        }
+        if (sealed.size() < snapshotAfterSegments) {
+            return;
+        }
+        writeSnapshot(upTo, readState(snapshotIndex, upTo));
+        for (Path path : list(SNAPSHOT_SUFFIX)) {
+            if (indexOf(path) < upTo) {
+                Files.deleteIfExists(path);
+            }
+        }
+        for (Path path : list(SEGMENT_SUFFIX)) {
+            if (indexOf(path) < upTo) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Snapshot with the given index plus all segments from that index up to (excluding) upTo
+    private Map<String, Map<String, DeviceState>> readState(long snapshotIndex, long upTo) throws IOException {
+        Map<String, Map<String, DeviceState>> state = new HashMap<>();
+        if (snapshotIndex > 0) {
+            readSnapshot(path(snapshotIndex, SNAPSHOT_SUFFIX), state);
+        }
+        List<Path> segments = list(SEGMENT_SUFFIX);
+        segments.sort(null);
+        for (Path segment : segments) {
+            long index = indexOf(segment);
+            if (index >= snapshotIndex && index < upTo) {
+                replaySegment(segment, state);
+            }
+        }
+        return state;
+    }
+
+    private static void replaySegment(Path segment, Map<String, Map<String, DeviceState>> state) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int limit = buffer.limit();
+            int pos = 0;
+            while (pos + 4 <= limit) {
+                int length = buffer.getInt(pos);
+                if (length == 0) {
+                    // The end of the records, or space whose writer died before marking it;
+                    // the next record, if any, starts at the next non-zero word
+                    pos += 4;
+                    continue;
+                }
+                int payload = Math.abs(length);
+                if (payload < 0 || payload > limit - pos - 4) {
+                    break;
+                }
+                if (length < 0) {
+                    pos += recordLength(payload);
+                    continue;
+                }
+                buffer.position(pos + 4);
+                byte type = buffer.get();
+                String groupId = getString(buffer);
+                String deviceId = getString(buffer);
+                if (type == DEVICE_REMOVED) {
+                    Map<String, DeviceState> devices = state.get(groupId);
+                    if (devices != null) {
+                        devices.remove(deviceId);
+                        if (devices.isEmpty()) {
+                            state.remove(groupId);
+                        }
+                    }
+                } else {
+                    DeviceState device = state.computeIfAbsent(groupId, g -> new HashMap<>())
+                            .computeIfAbsent(deviceId, d -> new DeviceState());
+                    if (type == TEMPERATURE_RECORDED) {
+                        device.requestId = buffer.getLong();
+                        device.value = buffer.getDouble();
+                        device.timestamp = buffer.getLong();
+                    }
+                }
+                pos += recordLength(payload);
+            }
+        }
+    }
+
+    // Length prefix plus payload, rounded up to whole words so that replay can step over
+    // unmarked space word by word and still land on the next record
+    private static int recordLength(int payload) {
+        return (4 + payload + 3) & ~3;
+    }
+
+    private void writeSnapshot(long index, Map<String, Map<String, DeviceState>> state) throws IOException {
+        Path tmp = directory.resolve(String.format("%020d%s.tmp", index, SNAPSHOT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            buffer.putInt(SNAPSHOT_MAGIC);
+            buffer.putInt(state.size());
+            for (Map.Entry<String, Map<String, DeviceState>> group : state.entrySet()) {
+                byte[] groupId = group.getKey().getBytes(StandardCharsets.UTF_8);
+                buffer = ensureRoom(channel, buffer, 6 + groupId.length);
+                buffer.putShort((short) groupId.length).put(groupId);
+                buffer.putInt(group.getValue().size());
+                for (Map.Entry<String, DeviceState> device : group.getValue().entrySet()) {
+                    byte[] deviceId = device.getKey().getBytes(StandardCharsets.UTF_8);
+                    buffer = ensureRoom(channel, buffer, 26 + deviceId.length);
+                    DeviceState d = device.getValue();
+                    buffer.putShort((short) deviceId.length).put(deviceId);
+                    buffer.putLong(d.requestId).putDouble(d.value).putLong(d.timestamp);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, path(index, SNAPSHOT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static ByteBuffer ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private static void readSnapshot(Path snapshot, Map<String, Map<String, DeviceState>> state) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a device journal snapshot: " + snapshot);
+            }
+            for (int groups = buffer.getInt(); groups > 0; groups--) {
+                String groupId = getString(buffer);
+                int deviceCount = buffer.getInt();
+                Map<String, DeviceState> devices = new HashMap<>(deviceCount * 4 / 3 + 1);
+                for (int i = 0; i < deviceCount; i++) {
+                    String deviceId = getString(buffer);
+                    DeviceState device = new DeviceState();
+                    device.requestId = buffer.getLong();
+                    device.value = buffer.getDouble();
+                    device.timestamp = buffer.getLong();
+                    devices.put(deviceId, device);
+                }
+                state.put(groupId, devices);
+            }
+        }
+    }
+
+    private Segment openSegment(long index) throws IOException {
+        try (FileChannel channel = FileChannel.open(path(index, SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(index, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    private static void awaitWriters(Segment segment) {
+        while (segment.writers.get() > 0) {
+            Thread.yield();
+        }
+    }
+
+    private long latestIndex(String suffix, long below) throws IOException {
+        long latest = 0L;
+        for (Path path : list(suffix)) {
+            long index = indexOf(path);
+            if (index < below) {
+                latest = Math.max(latest, index);
+            }
+        }
+        return latest;
+    }
+
+    private List<Path> list(String suffix) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + suffix)) {
+            stream.forEach(paths::add);
+        }
+        return paths;
+    }
+
+    private Path path(long index, String suffix) {
+        return directory.resolve(String.format("%020d%s", index, suffix));
+    }
+
+    private static long indexOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Encodes straight into the mapped segment so appends do not allocate
+    private static int putString(ByteBuffer buffer, int pos, String s, int utf8Length) {
+        buffer.putShort(pos, (short) utf8Length);
+        pos += 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put(pos++, (byte) c);
+            } else if (c < 0x800) {
+                buffer.put(pos++, (byte) (0xc0 | (c >> 6)));
+                buffer.put(pos++, (byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c)) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put(pos++, (byte) (0xf0 | (cp >> 18)));
+                buffer.put(pos++, (byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buffer.put(pos++, (byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buffer.put(pos++, (byte) (0x80 | (cp & 0x3f)));
+            } else {
+                buffer.put(pos++, (byte) (0xe0 | (c >> 12)));
+                buffer.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put(pos++, (byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        return pos;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static final class DeviceState {
+        long requestId;
+        double value;
+        // Zero while the device has no reading
+        long timestamp;
+
+        boolean hasReading() {
+            return timestamp != 0L;
+        }
+    }
+
+    private static final class Segment {
+        final long index;
+        final MappedByteBuffer buffer;
+        final AtomicInteger position = new AtomicInteger();
+        final AtomicInteger writers = new AtomicInteger();
+
+        Segment(long index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -1,28 +1,114 @@
 package com.lightbend.akka.iot;
 
-import akka.actor.AbstractActor;
+import akka.actor.AbstractActorWithTimers;
 import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
 import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.SupervisorStrategy;
 import akka.actor.Terminated;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.routing.ConsistentHashingPool;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.DeviceJournal.DeviceState;
+import com.lightbend.akka.iot.TemperatureRollup.RequestRollup;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-class DeviceManager extends AbstractActor {
+class DeviceManager extends AbstractActorWithTimers {
+    private static final String GROUP_PREFIX = "group-";
 
     public static Props props() {
-        return Props.create(DeviceManager.class, DeviceManager::new);
+        return Props.create(DeviceManager.class, () -> new DeviceManager(false, null));
+    }
+
+    // Splits the manager into shards that each own the groups whose id hashes to them.
+    // Routing happens on the sender's thread, so the router adds no mailbox of its own.
+    // Shards do not recover journaled groups themselves, the creator of the router sends
+    // them a RecoverGroup for each one (see IotSupervisor). The router restarts a failed
+    // shard as configured by iot.supervision.manager instead of escalating to its parent.
+    static Props shardedProps(ActorSystem system, int shards) {
+        return shardedProps(system, shards, shardProps());
+    }
+
+    static Props shardedProps(ActorSystem system, int shards, Props shardProps) {
+        SupervisorStrategy shardSupervision = new BackoffSupervisorStrategy(
+                IotSettings.get(system).managerSupervision, IotMetrics.get(system).tier(IotMetrics.Tier.MANAGER));
+        return new ConsistentHashingPool(shards)
+                .withHashMapper(DeviceManager::shardKey)
+                .withSupervisorStrategy(shardSupervision)
+                .props(shardProps);
+    }
+
+    static Props shardProps() {
+        return shardProps(null);
+    }
+
+    // Each shard only sees the rollups of its own groups, so they pass them on to rollupTo,
+    // which keeps the fleet's
+    static Props shardProps(ActorRef rollupTo) {
+        return Props.create(DeviceManager.class, () -> new DeviceManager(true, rollupTo));
+    }
+
+    static Object shardKey(Object message) {
+        if (message instanceof RequestTrackDevice) {
+            return ((RequestTrackDevice) message).groupId;
+        } else if (message instanceof RecordTemperatureBatch) {
+            return ((RecordTemperatureBatch) message).groupId;
+        } else if (message instanceof RecoverGroup) {
+            return ((RecoverGroup) message).groupId;
+        } else if (message instanceof GroupMessage) {
+            return ((GroupMessage) message).groupId;
+        } else if (message instanceof ProvisionGroupDevices) {
+            return ((ProvisionGroupDevices) message).groupId;
+        } else if (message instanceof ProvisionDevices) {
+            // Any one shard carries these out, through the router
+            return ((ProvisionDevices) message).requestId;
+        } else if (message instanceof RequestRollup) {
+            return ((RequestRollup) message).requestId;
+        }
+        // Lands on one shard, which rejects it
+        return message.getClass().getName();
     }
 
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
-    private final Map<String, ActorRef> groupIdToActor = new HashMap<>();
-    private final Map<ActorRef, String> actorToGroupId = new HashMap<>();
+    // Group actors by handle; as in DeviceGroup, a group actor's name leads back to its handle
+    private final IdRegistry registry = new IdRegistry();
+    private ActorRef[] groups = new ActorRef[registry.capacity()];
+    private final IotSettings settings = IotSettings.get(getContext().getSystem());
+    private final IotMetrics metrics = IotMetrics.get(getContext().getSystem());
+    private final SupervisorStrategy supervisorStrategy =
+            new BackoffSupervisorStrategy(settings.groupSupervision, metrics.tier(IotMetrics.Tier.GROUP));
+    private final boolean sharded;
+    // Every reading of the groups so far, and those rollupTo has not been sent yet
+    private final TemperatureRollup rollup = new TemperatureRollup();
+    private final ActorRef rollupTo;
+    private TemperatureRollup pendingRollup;
+
+    private DeviceManager(boolean sharded, ActorRef rollupTo) {
+        this.sharded = sharded;
+        this.rollupTo = rollupTo;
+    }
 
     @Override
     public void preStart() {
         log.info("DeviceManager started");
+        if (!sharded && settings.persistenceEnabled) {
+            Map<String, Map<String, DeviceState>> recovered =
+                    DeviceJournal.get(getContext().getSystem()).takeRecoveredState();
+            recovered.forEach(this::startGroup);
+            log.info("Recovered {} device groups from the journal", recovered.size());
+        }
     }
 
     @Override
@@ -30,47 +116,331 @@ class DeviceManager extends AbstractActor {
         log.info("DeviceManager stopped");
     }
 
+    @Override
+    public SupervisorStrategy supervisorStrategy() {
+        return supervisorStrategy;
+    }
+
     private void onTrackDevice(RequestTrackDevice trackMsg) {
         String groupId = trackMsg.groupId;
-        ActorRef ref = groupIdToActor.get(groupId);
+        ActorRef ref = groupActorOf(groupId);
         if (ref != null) {
             ref.forward(trackMsg, getContext());
         } else {
             log.info("Creating device group actor for {}", groupId);
-            ActorRef groupActor = getContext().actorOf(DeviceGroup.props(groupId), "group-" + groupId);
-            getContext().watch(groupActor);
-            groupActor.forward(trackMsg, getContext());
-            groupIdToActor.put(groupId, groupActor);
-            actorToGroupId.put(groupActor, groupId);
+            startGroup(groupId, Collections.emptyMap()).forward(trackMsg, getContext());
+        }
+    }
+
+    // Provisioning creates groups without a log line each
+    private void onProvisionGroupDevices(ProvisionGroupDevices p) {
+        ActorRef ref = groupActorOf(p.groupId);
+        if (ref == null) {
+            ref = startGroup(p.groupId, Collections.emptyMap());
+        }
+        ref.forward(p, getContext());
+    }
+
+    private ActorRef startGroup(String groupId, Map<String, DeviceState> recoveredDevices) {
+        Props deployed = settings.deploy(
+                DeviceGroup.props(groupId, settings.compactGroups, recoveredDevices), IotMetrics.Tier.GROUP);
+        ActorRef groupActor = getContext().actorOf(
+                metrics.meter(deployed, IotMetrics.Tier.GROUP), GROUP_PREFIX + groupId);
+        getContext().watch(groupActor);
+        int handle = registry.intern(groupId);
+        if (groups.length < registry.capacity()) {
+            groups = Arrays.copyOf(groups, registry.capacity());
+        }
+        groups[handle] = groupActor;
+        return groupActor;
+    }
+
+    private ActorRef groupActorOf(String groupId) {
+        int handle = registry.handleOf(groupId);
+        return handle != IdRegistry.NO_HANDLE ? groups[handle] : null;
+    }
+
+    private void onRecoverGroup(RecoverGroup r) {
+        if (registry.handleOf(r.groupId) != IdRegistry.NO_HANDLE) {
+            log.warning("Ignoring recovery of device group {} that is already running", r.groupId);
+        } else {
+            startGroup(r.groupId, r.devices);
         }
     }
 
+    private void onRecordTemperatureBatch(RecordTemperatureBatch batch) {
+        ActorRef groupActor = groupActorOf(batch.groupId);
+        if (groupActor != null) {
+            groupActor.forward(batch, getContext());
+        } else {
+            log.warning("Dropping temperature batch for unknown group {}", batch.groupId);
+            batch.drop(getSender(), getSelf());
+        }
+    }
+
+    private void onGroupMessage(GroupMessage m) {
+        ActorRef groupActor = groupActorOf(m.groupId);
+        if (groupActor != null) {
+            groupActor.forward(m.message, getContext());
+        } else {
+            log.warning("Dropping {} for unknown group {}", m.message.getClass().getSimpleName(), m.groupId);
+        }
+    }
+
+    private void onRollup(TemperatureRollup groupRollup) {
+        rollup.merge(groupRollup);
+        if (rollupTo != null) {
+            if (pendingRollup == null) {
+                pendingRollup = new TemperatureRollup();
+                getTimers().startSingleTimer(FlushRollup.INSTANCE, FlushRollup.INSTANCE, settings.rollupInterval);
+            }
+            pendingRollup.merge(groupRollup);
+        }
+    }
+
+    private void flushRollup() {
+        if (pendingRollup != null) {
+            rollupTo.tell(pendingRollup, getSelf());
+            pendingRollup = null;
+        }
+    }
+
+    // A shard only knows its own groups: it provisions through its router and leaves
+    // fleet rollups to rollupTo, which merges those of every shard
+    private void onProvisionDevices(ProvisionDevices p) {
+        ActorRef registry = sharded ? getContext().getParent() : getSelf();
+        getContext().actorOf(DeviceProvisioning.props(registry, p, getSender()));
+    }
+
+    private void onRequestRollup(RequestRollup r) {
+        if (!sharded) {
+            getSender().tell(rollup.respond(r), getSelf());
+        } else if (rollupTo != null) {
+            rollupTo.forward(r, getContext());
+        } else {
+            reject(r);
+        }
+    }
+
+    // Answers messages this manager cannot handle with a failure, rather than leaving an
+    // asking sender to time out
+    private void reject(Object message) {
+        log.warning("Rejecting {} that this device manager does not take", message.getClass().getSimpleName());
+        getSender().tell(new Status.Failure(new IllegalArgumentException(
+                "A device manager does not take " + message.getClass().getName())), getSelf());
+    }
+
     private void onTerminated(Terminated t) {
         ActorRef groupActor = t.getActor();
-        String groupId = actorToGroupId.get(groupActor);
-        log.info("Device group actor for {} has been terminated", groupId);
-        actorToGroupId.remove(groupActor);
-        groupIdToActor.remove(groupId);
+        String name = groupActor.path().name();
+        int handle = name.startsWith(GROUP_PREFIX)
+                ? registry.handleOf(name, GROUP_PREFIX.length())
+                : IdRegistry.NO_HANDLE;
+        if (handle == IdRegistry.NO_HANDLE || !groupActor.equals(groups[handle])) {
+            return;
+        }
+        log.info("Device group actor for {} has been terminated", registry.idOf(handle));
+        groups[handle] = null;
+        registry.release(handle);
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(RequestTrackDevice.class, this::onTrackDevice)
+                .match(RecordTemperatureBatch.class, this::onRecordTemperatureBatch)
+                .match(RecoverGroup.class, this::onRecoverGroup)
+                .match(GroupMessage.class, this::onGroupMessage)
+                .match(ProvisionGroupDevices.class, this::onProvisionGroupDevices)
+                .match(ProvisionDevices.class, this::onProvisionDevices)
                 .match(Terminated.class, this::onTerminated)
+                .match(TemperatureRollup.class, this::onRollup)
+                .match(FlushRollup.class, f -> flushRollup())
+                .match(RequestRollup.class, this::onRequestRollup)
+                .matchAny(this::reject)
                 .build();
     }
 
-    static final class RequestTrackDevice {
+    static final class RequestTrackDevice implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
         final String groupId;
         final String deviceId;
+        // Echoed in DeviceRegistered, 0 for senders that do not match up replies
+        final long requestId;
 
         RequestTrackDevice(String groupId, String deviceId) {
+            this(groupId, deviceId, 0L);
+        }
+
+        RequestTrackDevice(String groupId, String deviceId, long requestId) {
             this.groupId = groupId;
             this.deviceId = deviceId;
+            this.requestId = requestId;
         }
     }
 
-    static final class DeviceRegistered {
+    static final class DeviceRegistered implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+
+        DeviceRegistered() {
+            this(0L);
+        }
+
+        DeviceRegistered(long requestId) {
+            this.requestId = requestId;
+        }
+    }
+
+    // A message for the DeviceGroup with the given id, for senders that only know the
+    // group's id. Accepted by a DeviceManager and by the cluster's shard region alike.
+    static final class GroupMessage implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final Object message;
+
+        GroupMessage(String groupId, Object message) {
+            this.groupId = groupId;
+            this.message = message;
+        }
+    }
+
+    // Registers many devices at once, e.g. at cold start, without RequestTrackDevice round
+    // trips and per-device log lines. Devices that exist already are left alone. Answered
+    // with ProvisioningProgress while it runs and DevicesProvisioned at the end, or
+    // ProvisioningTimedOut when groups leave batches unanswered past
+    // iot.provisioning.timeout. Accepted by a DeviceManager and by the IotSupervisor, which
+    // provisions through whichever registry it runs.
+    static final class ProvisionDevices implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final Map<String, List<String>> devicesByGroup;
+
+        ProvisionDevices(long requestId, Map<String, List<String>> devicesByGroup) {
+            this.requestId = requestId;
+            this.devicesByGroup = devicesByGroup;
+        }
+
+        // One groupId,deviceId per line; blank lines and lines starting with # are skipped
+        static ProvisionDevices fromFile(long requestId, Path file) throws IOException {
+            Map<String, List<String>> devicesByGroup = new LinkedHashMap<>();
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                int comma = trimmed.indexOf(',');
+                if (comma <= 0 || comma == trimmed.length() - 1) {
+                    throw new IOException("Expected groupId,deviceId on line " + lineNumber + " of " + file);
+                }
+                devicesByGroup.computeIfAbsent(trimmed.substring(0, comma).trim(), g -> new ArrayList<>())
+                        .add(trimmed.substring(comma + 1).trim());
+            }
+            return new ProvisionDevices(requestId, devicesByGroup);
+        }
+    }
+
+    static final class ProvisioningProgress implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final int devicesDone;
+        final int devicesTotal;
+        final long elapsedMillis;
+
+        ProvisioningProgress(long requestId, int devicesDone, int devicesTotal, long elapsedMillis) {
+            this.requestId = requestId;
+            this.devicesDone = devicesDone;
+            this.devicesTotal = devicesTotal;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    static final class DevicesProvisioned implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final int groups;
+        final int devices;
+        // Devices that did not exist before
+        final int created;
+        final long elapsedMillis;
+
+        DevicesProvisioned(long requestId, int groups, int devices, int created, long elapsedMillis) {
+            this.requestId = requestId;
+            this.groups = groups;
+            this.devices = devices;
+            this.created = created;
+            this.elapsedMillis = elapsedMillis;
+        }
+    }
+
+    // One batch of a ProvisionDevices, for the group with the given id
+    static final class ProvisionGroupDevices implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final List<String> deviceIds;
+
+        ProvisionGroupDevices(String groupId, List<String> deviceIds) {
+            this.groupId = groupId;
+            this.deviceIds = deviceIds;
+        }
+    }
+
+    // Instead of DevicesProvisioned when batches were not acknowledged in time; the devices
+    // of those batches may or may not exist
+    static final class ProvisioningTimedOut implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final int devicesDone;
+        final int devicesTotal;
+        // Unacknowledged batches by group id
+        final Map<String, Integer> missingBatches;
+
+        ProvisioningTimedOut(long requestId, int devicesDone, int devicesTotal, Map<String, Integer> missingBatches) {
+            this.requestId = requestId;
+            this.devicesDone = devicesDone;
+            this.devicesTotal = devicesTotal;
+            this.missingBatches = missingBatches;
+        }
+    }
+
+    static final class GroupDevicesProvisioned implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final int requested;
+        final int created;
+
+        GroupDevicesProvisioned(String groupId, int requested, int created) {
+            this.groupId = groupId;
+            this.requested = requested;
+            this.created = created;
+        }
+    }
+
+    private static final class FlushRollup {
+        static final FlushRollup INSTANCE = new FlushRollup();
+
+        private FlushRollup() {
+        }
+    }
+
+    static final class RecoverGroup {
+        final String groupId;
+        final Map<String, DeviceState> devices;
+
+        RecoverGroup(String groupId, Map<String, DeviceState> devices) {
+            this.groupId = groupId;
+            this.devices = devices;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,138 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.lightbend.akka.iot.DeviceManager.DevicesProvisioned;
+import com.lightbend.akka.iot.DeviceManager.GroupDevicesProvisioned;
+import com.lightbend.akka.iot.DeviceManager.ProvisionDevices;
+import com.lightbend.akka.iot.DeviceManager.ProvisionGroupDevices;
+import com.lightbend.akka.iot.DeviceManager.ProvisioningProgress;
+import com.lightbend.akka.iot.DeviceManager.ProvisioningTimedOut;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Carries out one ProvisionDevices: sends every group its device ids in batches of
+// iot.provisioning.batch-size through the registry (a DeviceManager, its shard router or
+// the cluster's shard region), all at once so that groups work through them in parallel.
+// Reports progress every iot.provisioning.progress-interval and the total when the last
+// batch is acknowledged, or the unacknowledged batches once iot.provisioning.timeout
+// has passed.
+final class DeviceProvisioning extends AbstractActorWithTimers {
+
+    static Props props(ActorRef registry, ProvisionDevices request, ActorRef requester) {
+        return Props.create(DeviceProvisioning.class, () -> new DeviceProvisioning(registry, request, requester));
+    }
+
+    private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private final IotSettings settings = IotSettings.get(getContext().getSystem());
+    private final ActorRef registry;
+    private final ProvisionDevices request;
+    private final ActorRef requester;
+    private final long startNanos = System.nanoTime();
+    private int pendingBatches;
+    // Unacknowledged batches by group id
+    private final Map<String, Integer> pendingByGroup = new LinkedHashMap<>();
+    private int devicesTotal;
+    private int devicesDone;
+    private int devicesCreated;
+
+    private DeviceProvisioning(ActorRef registry, ProvisionDevices request, ActorRef requester) {
+        this.registry = registry;
+        this.request = request;
+        this.requester = requester;
+    }
+
+    @Override
+    public void preStart() {
+        int batchSize = settings.provisioningBatchSize;
+        for (Map.Entry<String, List<String>> group : request.devicesByGroup.entrySet()) {
+            List<String> deviceIds = group.getValue();
+            devicesTotal += deviceIds.size();
+            for (int from = 0; from < deviceIds.size(); from += batchSize) {
+                // A copy, as views of a list do not serialize for groups on other nodes
+                List<String> batch = new ArrayList<>(
+                        deviceIds.subList(from, Math.min(deviceIds.size(), from + batchSize)));
+                registry.tell(new ProvisionGroupDevices(group.getKey(), batch), getSelf());
+                pendingBatches++;
+                pendingByGroup.merge(group.getKey(), 1, Integer::sum);
+            }
+        }
+        log.info("Provisioning {} devices in {} groups", devicesTotal, request.devicesByGroup.size());
+        if (pendingBatches == 0) {
+            finish();
+            return;
+        }
+        if (settings.provisioningProgressInterval.length() > 0) {
+            getTimers().startPeriodicTimer(
+                    ReportProgress.INSTANCE, ReportProgress.INSTANCE, settings.provisioningProgressInterval);
+        }
+        if (settings.provisioningTimeout.length() > 0) {
+            getTimers().startSingleTimer(Deadline.INSTANCE, Deadline.INSTANCE, settings.provisioningTimeout);
+        }
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000L;
+    }
+
+    private void onGroupDevicesProvisioned(GroupDevicesProvisioned p) {
+        devicesDone += p.requested;
+        devicesCreated += p.created;
+        pendingByGroup.computeIfPresent(p.groupId, (groupId, batches) -> batches > 1 ? batches - 1 : null);
+        if (--pendingBatches == 0) {
+            finish();
+        }
+    }
+
+    private void onReportProgress(ReportProgress r) {
+        long elapsed = elapsedMillis();
+        log.info("Provisioned {} of {} devices in {} ms", devicesDone, devicesTotal, elapsed);
+        requester.tell(new ProvisioningProgress(request.requestId, devicesDone, devicesTotal, elapsed), getSelf());
+    }
+
+    private void onDeadline(Deadline d) {
+        log.warning("Provisioning gave up after {} with {} of {} devices done, unacknowledged batches by group: {}",
+                settings.provisioningTimeout, devicesDone, devicesTotal, pendingByGroup);
+        requester.tell(new ProvisioningTimedOut(
+                request.requestId, devicesDone, devicesTotal, new LinkedHashMap<>(pendingByGroup)), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    private void finish() {
+        long elapsed = elapsedMillis();
+        log.info("Provisioned {} devices ({} new) in {} groups in {} ms",
+                devicesTotal, devicesCreated, request.devicesByGroup.size(), elapsed);
+        requester.tell(new DevicesProvisioned(
+                request.requestId, request.devicesByGroup.size(), devicesTotal, devicesCreated, elapsed), getSelf());
+        getContext().stop(getSelf());
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(GroupDevicesProvisioned.class, this::onGroupDevicesProvisioned)
+                .match(ReportProgress.class, this::onReportProgress)
+                .match(Deadline.class, this::onDeadline)
+                .build();
+    }
+
+    private static final class ReportProgress {
+        static final ReportProgress INSTANCE = new ReportProgress();
+
+        private ReportProgress() {
+        }
+    }
+
+    private static final class Deadline {
+        static final Deadline INSTANCE = new Deadline();
+
+        private Deadline() {
+        }
+    }
+}
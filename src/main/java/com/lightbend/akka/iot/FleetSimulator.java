@@ -0,0 +1,317 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.pattern.PatternsCS;
+import com.lightbend.akka.iot.Device.RespondTemperature;
+import com.lightbend.akka.iot.Device.TemperatureRecorded;
+import com.lightbend.akka.iot.DeviceGroup.ReadDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
+import com.lightbend.akka.iot.DeviceManager.DeviceRegistered;
+import com.lightbend.akka.iot.DeviceManager.GroupMessage;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Simulates a device fleet against an IotSupervisor started in this JVM, configured as
+// usual through application.conf or -D options. Every device is tracked with
+// RequestTrackDevice first; then the fleet sends RecordDeviceTemperature and, for
+// readPercent of the requests, ReadDeviceTemperature through the registry at a fixed
+// rate, whether or not earlier requests have been answered (open loop).
+//
+// Latency is measured from the time a request was due to be sent, not the time it was
+// sent, so a stall in the system under test counts against every request it delayed
+// rather than only the one in flight (coordinated omission). Each request's due time
+// travels as its request id, which every reply carries back.
+//
+//   FleetSimulator [groups] [devicesPerGroup] [readingsPerDevicePerSecond] [readPercent] [seconds] [warmupSeconds] [senders]
+public class FleetSimulator {
+
+    public static void main(String[] args) throws Exception {
+        Fleet fleet = new Fleet(
+                args.length > 0 ? Integer.parseInt(args[0]) : 10,
+                args.length > 1 ? Integer.parseInt(args[1]) : 1000,
+                args.length > 2 ? Double.parseDouble(args[2]) : 1.0,
+                args.length > 3 ? Integer.parseInt(args[3]) : 10,
+                args.length > 4 ? Integer.parseInt(args[4]) : 30,
+                args.length > 5 ? Integer.parseInt(args[5]) : 5,
+                args.length > 6 ? Integer.parseInt(args[6]) : 2);
+        ActorSystem system = ActorSystem.create("iot-system");
+        try {
+            ActorRef supervisor = system.actorOf(IotSupervisor.props(), "iot-supervisor");
+            ActorRef registry = (ActorRef) PatternsCS.ask(
+                    supervisor, IotSupervisor.RequestDeviceRegistry.INSTANCE, 10_000L).toCompletableFuture().get();
+            System.out.println(run(system, registry, fleet));
+        } finally {
+            system.terminate();
+        }
+    }
+
+    static final class Fleet {
+        final int groups;
+        final int devicesPerGroup;
+        final double readingsPerDevicePerSecond;
+        final int readPercent;
+        final int seconds;
+        final int warmupSeconds;
+        final int senders;
+
+        Fleet(int groups, int devicesPerGroup, double readingsPerDevicePerSecond, int readPercent, int seconds,
+              int warmupSeconds, int senders) {
+            if (groups < 1 || devicesPerGroup < 1 || readingsPerDevicePerSecond <= 0.0 || senders < 1) {
+                throw new IllegalArgumentException("A fleet needs devices, a positive rate and a sender");
+            }
+            if (readPercent < 0 || readPercent > 100) {
+                throw new IllegalArgumentException("readPercent must be between 0 and 100, got " + readPercent);
+            }
+            this.groups = groups;
+            this.devicesPerGroup = devicesPerGroup;
+            this.readingsPerDevicePerSecond = readingsPerDevicePerSecond;
+            this.readPercent = readPercent;
+            this.seconds = seconds;
+            this.warmupSeconds = warmupSeconds;
+            this.senders = senders;
+        }
+
+        int devices() {
+            return groups * devicesPerGroup;
+        }
+
+        double requestsPerSecond() {
+            return devices() * readingsPerDevicePerSecond;
+        }
+    }
+
+    // Tracks the whole fleet, then runs the load for warmup plus measured seconds. Fails
+    // with a CompletionException when tracking stalls.
+    static Result run(ActorSystem system, ActorRef registry, Fleet fleet) throws InterruptedException {
+        long trackStart = System.nanoTime();
+        CompletableFuture<Void> tracked = new CompletableFuture<>();
+        system.actorOf(Tracker.props(registry, fleet, tracked));
+        tracked.join();
+        long trackNanos = System.nanoTime() - trackStart;
+
+        Load load = new Load(fleet, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        List<Thread> threads = new ArrayList<>();
+        for (int s = 0; s < fleet.senders; s++) {
+            int sender = s;
+            ActorRef replies = system.actorOf(Replies.props(load));
+            Thread thread = new Thread(() -> load.send(sender, registry, replies), "fleet-sender-" + s);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Replies still on their way; anything later counts as unanswered
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (load.answered.sum() < load.sent.sum() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        return new Result(fleet, trackNanos, load);
+    }
+
+    // Schedule and counters of the load phase, shared by the sender threads and their reply actors
+    static final class Load {
+        final Fleet fleet;
+        final long startNanos;
+        final long measureFromNanos;
+        final long endNanos;
+        final double intervalNanos;
+        final LongAdder sent = new LongAdder();
+        final LongAdder answered = new LongAdder();
+        final LongAdder measured = new LongAdder();
+        final LatencyHistogram recordLatency = new LatencyHistogram();
+        final LatencyHistogram readLatency = new LatencyHistogram();
+        final AtomicLong maxSendLagNanos = new AtomicLong();
+
+        Load(Fleet fleet, long startNanos) {
+            this.fleet = fleet;
+            this.startNanos = startNanos;
+            this.measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(fleet.warmupSeconds);
+            this.endNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(fleet.seconds);
+            this.intervalNanos = 1e9 / fleet.requestsPerSecond();
+        }
+
+        // Request i is due at startNanos + i * intervalNanos and goes to device i modulo the
+        // fleet size; sender s takes every senders-th request from i = s on. It reads when
+        // (i + 61 * (i / devices)) % 100 is below readPercent: shifting by a multiple of the
+        // round i / devices moves the reads to other devices every round, so each device is
+        // both read and written even when the fleet size is a multiple of 100
+        void send(int sender, ActorRef registry, ActorRef replies) {
+            int devices = fleet.devices();
+            long maxLag = 0;
+            for (long i = sender; ; i += fleet.senders) {
+                long dueOffset = (long) (i * intervalNanos);
+                long due = startNanos + dueOffset;
+                if (due >= endNanos) {
+                    break;
+                }
+                long now = System.nanoTime();
+                if (now < due) {
+                    // Parking overshoots by tens of microseconds, so the last stretch is spun
+                    if (due - now > 100_000L) {
+                        LockSupport.parkNanos(due - now - 50_000L);
+                    }
+                    while (System.nanoTime() < due) {
+                        // Spin until due
+                    }
+                } else {
+                    maxLag = Math.max(maxLag, now - due);
+                }
+                int device = (int) (i % devices);
+                String groupId = "group-" + device / fleet.devicesPerGroup;
+                String deviceId = "device-" + device % fleet.devicesPerGroup;
+                Object request = (i + 61 * (i / devices)) % 100 < fleet.readPercent
+                        ? new ReadDeviceTemperature(deviceId, dueOffset)
+                        : new RecordDeviceTemperature(deviceId, dueOffset,
+                        15.0 + ThreadLocalRandom.current().nextDouble(20.0));
+                registry.tell(new GroupMessage(groupId, request), replies);
+                sent.increment();
+            }
+            maxSendLagNanos.accumulateAndGet(maxLag, Math::max);
+        }
+
+        void answered(long dueOffset, LatencyHistogram histogram) {
+            answered.increment();
+            long due = startNanos + dueOffset;
+            if (due >= measureFromNanos) {
+                histogram.record(System.nanoTime() - due);
+                measured.increment();
+            }
+        }
+    }
+
+    private static final class Replies extends AbstractActor {
+
+        static Props props(Load load) {
+            return Props.create(Replies.class, () -> new Replies(load));
+        }
+
+        private final Load load;
+
+        private Replies(Load load) {
+            this.load = load;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(TemperatureRecorded.class, r -> load.answered(r.requestId, load.recordLatency))
+                    .match(RespondTemperature.class, r -> load.answered(r.requestId, load.readLatency))
+                    .build();
+        }
+    }
+
+    // Tracks every device of the fleet with at most WINDOW registrations outstanding, and
+    // gives up when no DeviceRegistered has arrived for STALL_TIMEOUT
+    private static final class Tracker extends AbstractActor {
+        private static final int WINDOW = 10_000;
+        private static final FiniteDuration STALL_TIMEOUT = FiniteDuration.create(10, TimeUnit.SECONDS);
+
+        static Props props(ActorRef registry, Fleet fleet, CompletableFuture<Void> tracked) {
+            return Props.create(Tracker.class, () -> new Tracker(registry, fleet, tracked));
+        }
+
+        private final ActorRef registry;
+        private final Fleet fleet;
+        private final CompletableFuture<Void> tracked;
+        private int next;
+        private int registered;
+
+        private Tracker(ActorRef registry, Fleet fleet, CompletableFuture<Void> tracked) {
+            this.registry = registry;
+            this.fleet = fleet;
+            this.tracked = tracked;
+        }
+
+        @Override
+        public void preStart() {
+            while (next < Math.min(WINDOW, fleet.devices())) {
+                trackNext();
+            }
+            getContext().setReceiveTimeout(STALL_TIMEOUT);
+        }
+
+        private void trackNext() {
+            registry.tell(new RequestTrackDevice(
+                    "group-" + next / fleet.devicesPerGroup, "device-" + next % fleet.devicesPerGroup), getSelf());
+            next++;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(DeviceRegistered.class, r -> {
+                        if (++registered == fleet.devices()) {
+                            tracked.complete(null);
+                            getContext().stop(getSelf());
+                        } else if (next < fleet.devices()) {
+                            trackNext();
+                        }
+                    })
+                    .match(ReceiveTimeout.class, t -> {
+                        tracked.completeExceptionally(new IllegalStateException(
+                                "Tracked " + registered + " of " + fleet.devices() + " devices, no registration for "
+                                        + STALL_TIMEOUT));
+                        getContext().stop(getSelf());
+                    })
+                    .build();
+        }
+    }
+
+    static final class Result {
+        final Fleet fleet;
+        final long trackNanos;
+        final Load load;
+
+        Result(Fleet fleet, long trackNanos, Load load) {
+            this.fleet = fleet;
+            this.trackNanos = trackNanos;
+            this.load = load;
+        }
+
+        long unanswered() {
+            return load.sent.sum() - load.answered.sum();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            double trackSeconds = trackNanos / 1e9;
+            out.append(String.format("Tracked %d devices in %d groups in %.2f s (%.0f devices/s)%n",
+                    fleet.devices(), fleet.groups, trackSeconds, fleet.devices() / trackSeconds));
+            out.append(String.format("Offered %.0f requests/s (%d%% reads) for %d s after %d s of warm-up%n",
+                    fleet.requestsPerSecond(), fleet.readPercent, fleet.seconds, fleet.warmupSeconds));
+            out.append(String.format("Sent %d, answered %d, unanswered %d; %.0f answers/s measured%n",
+                    load.sent.sum(), load.answered.sum(), unanswered(),
+                    load.measured.sum() / (double) Math.max(1, fleet.seconds)));
+            out.append(String.format("Latency from due time (ms)      p50      p90      p99    p99.9      max%n"));
+            latency(out, "RecordDeviceTemperature", load.recordLatency);
+            latency(out, "ReadDeviceTemperature", load.readLatency);
+            out.append(String.format("Senders fell behind schedule by up to %.2f ms%s",
+                    load.maxSendLagNanos.get() / 1e6,
+                    load.maxSendLagNanos.get() > TimeUnit.MILLISECONDS.toNanos(10)
+                            ? "; add senders if this keeps growing" : ""));
+            return out.toString();
+        }
+
+        private static void latency(StringBuilder out, String name, LatencyHistogram histogram) {
+            out.append(String.format("  %-28s %8.3f %8.3f %8.3f %8.3f %8.3f  (%d)%n", name,
+                    histogram.valueAtPercentile(50.0) / 1e6, histogram.valueAtPercentile(90.0) / 1e6,
+                    histogram.valueAtPercentile(99.0) / 1e6, histogram.valueAtPercentile(99.9) / 1e6,
+                    histogram.max() / 1e6, histogram.count()));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import com.lightbend.akka.iot.DeviceGroup.RespondAllTemperatures;
+import com.lightbend.akka.iot.DeviceGroup.Temperature;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureReading;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The last RequestAllTemperatures answer of a DeviceGroup, served again until it is
+// iot.group.snapshot-ttl old. Requests that arrive while the group is collecting one
+// wait for it rather than starting another collection. Readings the group routes or
+// records itself are patched in, and so are readings sent straight to a device actor,
+// once the device reports them to the group. The next request copies the snapshot once
+// with the patches applied, so answers already sent never change. Not thread-safe,
+// owned by the group.
+final class GroupSnapshotCache {
+
+    private final long ttlNanos;
+    private final IotMetrics.SnapshotMetrics metrics;
+    // Null while there is no snapshot
+    private Map<String, TemperatureReading> snapshot;
+    private long expiresAtNanos;
+    private final Map<String, TemperatureReading> patches = new HashMap<>();
+    // Requests waiting for the collection in flight, null while there is none
+    private List<Waiter> waiting;
+    // Bumped when the group's devices change; a collection started before that is not kept
+    private long version;
+    private long collectingVersion;
+
+    GroupSnapshotCache(long ttlNanos, IotMetrics.SnapshotMetrics metrics) {
+        this.ttlNanos = ttlNanos;
+        this.metrics = metrics;
+    }
+
+    // True when the request was answered or waits for the collection in flight. False when
+    // the group has to collect a snapshot and pass it to collected(...); the request then
+    // waits for that one.
+    boolean request(long requestId, ActorRef requester, ActorRef group, long nowNanos) {
+        if (snapshot != null && nowNanos - expiresAtNanos < 0) {
+            if (!patches.isEmpty()) {
+                snapshot = new HashMap<>(snapshot);
+                snapshot.putAll(patches);
+                patches.clear();
+            }
+            requester.tell(new RespondAllTemperatures(requestId, snapshot), group);
+            metrics.hit();
+            return true;
+        }
+        if (waiting != null) {
+            waiting.add(new Waiter(requestId, requester));
+            metrics.coalesce();
+            return true;
+        }
+        metrics.miss();
+        snapshot = null;
+        patches.clear();
+        waiting = new ArrayList<>();
+        waiting.add(new Waiter(requestId, requester));
+        collectingVersion = version;
+        return false;
+    }
+
+    void collected(Map<String, TemperatureReading> readings, ActorRef group, long nowNanos) {
+        if (waiting == null) {
+            return;
+        }
+        Map<String, TemperatureReading> current = readings;
+        if (!patches.isEmpty()) {
+            current = new HashMap<>(readings);
+            current.putAll(patches);
+            patches.clear();
+        }
+        for (Waiter waiter : waiting) {
+            waiter.requester.tell(new RespondAllTemperatures(waiter.requestId, current), group);
+        }
+        waiting = null;
+        if (collectingVersion == version) {
+            snapshot = current;
+            expiresAtNanos = nowNanos + ttlNanos;
+        }
+    }
+
+    void recorded(String deviceId, double value) {
+        if (snapshot != null || waiting != null) {
+            patches.put(deviceId, new Temperature(value));
+        }
+    }
+
+    // A device's last reading as its actor reported it; only patched in when it is not
+    // what the snapshot already holds, e.g. after the group routed that reading itself
+    void reported(String deviceId, double value) {
+        if (snapshot == null && waiting == null) {
+            return;
+        }
+        TemperatureReading current = patches.get(deviceId);
+        if (current == null && snapshot != null) {
+            current = snapshot.get(deviceId);
+        }
+        if (!(current instanceof Temperature) || Double.compare(((Temperature) current).value, value) != 0) {
+            patches.put(deviceId, new Temperature(value));
+        }
+    }
+
+    // Devices were added or removed
+    void invalidate() {
+        version++;
+        snapshot = null;
+        if (waiting == null) {
+            patches.clear();
+        }
+    }
+
+    private static final class Waiter {
+        final long requestId;
+        final ActorRef requester;
+
+        Waiter(long requestId, ActorRef requester) {
+            this.requestId = requestId;
+            this.requester = requester;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import com.lightbend.akka.iot.TemperatureFeed.RequestTemperatureUpdates;
+import com.lightbend.akka.iot.TemperatureFeed.SubscribeTemperatures;
+import com.lightbend.akka.iot.TemperatureFeed.TemperatureUpdate;
+import com.lightbend.akka.iot.TemperatureFeed.UnsubscribeTemperatures;
+
+// Subscribers to all readings of a group. Started by the DeviceGroup on its first
+// subscription; while there are subscribers, devices send their updates straight here,
+// so readings do not pass through the group a second time. The feed tells the group
+// with SubscribersChanged when it gains its first subscriber or loses its last, and the
+// group tells its devices.
+final class GroupTemperatureFeed extends AbstractActor {
+
+    static Props props() {
+        return Props.create(GroupTemperatureFeed.class, () -> new GroupTemperatureFeed());
+    }
+
+    private final TemperatureFeed feed = new TemperatureFeed();
+
+    private GroupTemperatureFeed() {
+    }
+
+    @Override
+    public void postStop() {
+        if (!feed.isEmpty()) {
+            getContext().getParent().tell(SubscribersChanged.NONE, getSelf());
+        }
+    }
+
+    private void onSubscribe(SubscribeTemperatures s) {
+        getContext().watch(getSender());
+        if (feed.isEmpty()) {
+            getContext().getParent().tell(SubscribersChanged.SOME, getSelf());
+        }
+        feed.subscribe(getSender(), s, getSelf());
+    }
+
+    private void onUnsubscribe(UnsubscribeTemperatures u) {
+        getContext().unwatch(getSender());
+        removed(getSender());
+    }
+
+    private void removed(ActorRef subscriber) {
+        if (feed.unsubscribe(subscriber) && feed.isEmpty()) {
+            getContext().getParent().tell(SubscribersChanged.NONE, getSelf());
+        }
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(TemperatureUpdate.class, u -> feed.publish(u, getSelf()))
+                .match(RequestTemperatureUpdates.class, r -> feed.request(getSender(), r.n, getSelf()))
+                .match(SubscribeTemperatures.class, this::onSubscribe)
+                .match(UnsubscribeTemperatures.class, this::onUnsubscribe)
+                .match(Terminated.class, t -> removed(t.getActor()))
+                .build();
+    }
+
+    static final class SubscribersChanged {
+        static final SubscribersChanged SOME = new SubscribersChanged(true);
+        static final SubscribersChanged NONE = new SubscribersChanged(false);
+
+        final boolean any;
+
+        private SubscribersChanged(boolean any) {
+            this.any = any;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.lightbend.akka.iot;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.lightbend.akka.iot.IotLogging.DEBUG;
+import static com.lightbend.akka.iot.IotLogging.DOUBLE;
+import static com.lightbend.akka.iot.IotLogging.INFO;
+import static com.lightbend.akka.iot.IotLogging.LONG;
+import static com.lightbend.akka.iot.IotLogging.STRING;
+
+// A log category for code that runs once per message. Overloads take primitive
+// arguments so that nothing is boxed, and an event is only handed to the IotLogging
+// ring when its level is enabled both here and on the event stream, it is picked by
+// sampling (one in sample-every) and the category is under max-per-second.
+// Obtained from IotLogging.logger(category, logClass); thread safe.
+final class HotPathLog {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final IotLogging logging;
+    private final Class<?> logClass;
+    private final int level;
+    private final int sampleEvery;
+    private final int maxPerSecond;
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger inWindow = new AtomicInteger();
+
+    HotPathLog(IotLogging logging, Class<?> logClass, int level, int sampleEvery, int maxPerSecond) {
+        this.logging = logging;
+        this.logClass = logClass;
+        this.level = level;
+        this.sampleEvery = sampleEvery;
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    boolean isEnabled(int eventLevel) {
+        return eventLevel <= level && eventLevel <= logging.busLevel();
+    }
+
+    void info(String source, String template, double arg1, long arg2) {
+        if (admit(INFO)) {
+            logging.publish(INFO, source, logClass, template,
+                    DOUBLE, Double.doubleToRawLongBits(arg1), null, LONG, arg2, null);
+        }
+    }
+
+    void info(String source, String template, String arg1, String arg2) {
+        if (admit(INFO)) {
+            logging.publish(INFO, source, logClass, template, STRING, 0L, arg1, STRING, 0L, arg2);
+        }
+    }
+
+    void debug(String source, String template, long arg1, long arg2) {
+        if (admit(DEBUG)) {
+            logging.publish(DEBUG, source, logClass, template, LONG, arg1, null, LONG, arg2, null);
+        }
+    }
+
+    private boolean admit(int eventLevel) {
+        if (!isEnabled(eventLevel)) {
+            return false;
+        }
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return false;
+        }
+        if (maxPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= SECOND && windowStart.compareAndSet(start, now)) {
+            inWindow.set(0);
+        }
+        // Read first so that a category over its limit stops writing the shared counter
+        return inWindow.get() < maxPerSecond && inWindow.incrementAndGet() <= maxPerSecond;
+    }
+}
@@ -0,0 +1,123 @@
+package com.lightbend.akka.iot;
+
+import java.util.Arrays;
+
+// Ids at int positions chosen by the owner, with an open addressing index from id to
+// position. Backs the dense handles of IdRegistry and the slots of CompactDeviceStore.
+// Not thread safe: owned by a single actor.
+final class IdIndex {
+
+    static final int NO_POSITION = -1;
+
+    private String[] ids;
+    // Position + 1 per bucket, 0 marks a free bucket
+    private int[] buckets;
+
+    IdIndex(int capacity) {
+        ids = new String[capacity];
+        buckets = new int[tableSizeFor(capacity)];
+    }
+
+    int capacity() {
+        return ids.length;
+    }
+
+    // Null for a free position
+    String idAt(int position) {
+        return ids[position];
+    }
+
+    int positionOf(String id) {
+        int mask = buckets.length - 1;
+        for (int bucket = mix(id.hashCode()) & mask; ; bucket = (bucket + 1) & mask) {
+            int entry = buckets[bucket];
+            if (entry == 0) {
+                return NO_POSITION;
+            }
+            if (ids[entry - 1].equals(id)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    // Position of the id that name holds from the given offset on, e.g. an actor name
+    // after its prefix, without cutting it out of the name
+    int positionOf(String name, int offset) {
+        int length = name.length() - offset;
+        int hash = 0;
+        for (int i = offset; i < name.length(); i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        int mask = buckets.length - 1;
+        for (int bucket = mix(hash) & mask; ; bucket = (bucket + 1) & mask) {
+            int entry = buckets[bucket];
+            if (entry == 0) {
+                return NO_POSITION;
+            }
+            String id = ids[entry - 1];
+            if (id.length() == length && id.regionMatches(0, name, offset, length)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    // The position must be free and below capacity()
+    void put(int position, String id) {
+        ids[position] = id;
+        insert(position);
+    }
+
+    void remove(int position) {
+        int mask = buckets.length - 1;
+        int bucket = mix(ids[position].hashCode()) & mask;
+        while (buckets[bucket] != position + 1) {
+            bucket = (bucket + 1) & mask;
+        }
+        // Backward shift deletion keeps probe sequences intact without tombstones
+        int hole = bucket;
+        for (int next = (hole + 1) & mask; buckets[next] != 0; next = (next + 1) & mask) {
+            int home = mix(ids[buckets[next] - 1].hashCode()) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                buckets[hole] = buckets[next];
+                hole = next;
+            }
+        }
+        buckets[hole] = 0;
+        ids[position] = null;
+    }
+
+    // Moves the id at from to the free position to
+    void move(int from, int to) {
+        String id = ids[from];
+        remove(from);
+        put(to, id);
+    }
+
+    void grow(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        buckets = new int[tableSizeFor(capacity)];
+        for (int position = 0; position < capacity; position++) {
+            if (ids[position] != null) {
+                insert(position);
+            }
+        }
+    }
+
+    private void insert(int position) {
+        int mask = buckets.length - 1;
+        int bucket = mix(ids[position].hashCode()) & mask;
+        while (buckets[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        buckets[bucket] = position + 1;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        // At most half full
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,84 @@
+package com.lightbend.akka.iot;
+
+import java.util.Arrays;
+
+// Hands out a dense int handle per id so that per-id state can live in plain arrays
+// indexed by handle rather than in maps keyed by strings. A handle stays the same until
+// it is released, and released handles are reused, so arrays never need to be longer
+// than the largest number of ids registered at once.
+// Not thread safe: owned by a single actor.
+final class IdRegistry {
+
+    static final int NO_HANDLE = IdIndex.NO_POSITION;
+
+    private final IdIndex index;
+    // Released handles, reused before new ones are handed out
+    private int[] free;
+    private int freeCount;
+    // Handles handed out so far, released or not
+    private int limit;
+    private int size;
+
+    IdRegistry() {
+        this(16);
+    }
+
+    IdRegistry(int expectedSize) {
+        int capacity = Math.max(4, expectedSize);
+        index = new IdIndex(capacity);
+        free = new int[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Upper bound of the handles in use; arrays indexed by handle need this many entries
+    int capacity() {
+        return index.capacity();
+    }
+
+    int handleOf(String id) {
+        return index.positionOf(id);
+    }
+
+    // Handle of the id that name holds from the given offset on
+    int handleOf(String name, int offset) {
+        return index.positionOf(name, offset);
+    }
+
+    int intern(String id) {
+        int handle = handleOf(id);
+        if (handle != NO_HANDLE) {
+            return handle;
+        }
+        if (freeCount > 0) {
+            handle = free[--freeCount];
+        } else {
+            if (limit == index.capacity()) {
+                int capacity = index.capacity() * 2;
+                index.grow(capacity);
+                free = Arrays.copyOf(free, capacity);
+            }
+            handle = limit++;
+        }
+        index.put(handle, id);
+        size++;
+        return handle;
+    }
+
+    // Null for a handle that is not in use
+    String idOf(int handle) {
+        return handle >= 0 && handle < limit ? index.idAt(handle) : null;
+    }
+
+    boolean release(int handle) {
+        if (idOf(handle) == null) {
+            return false;
+        }
+        index.remove(handle);
+        free[freeCount++] = handle;
+        size--;
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package com.lightbend.akka.iot;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Client for trying out an IngestServer: each connection streams frames for its own
+// slice of devices as fast as the server lets it write. A comma-separated list of ports
+// spreads the connections over several nodes of a cluster.
+//
+//   IngestLoadGenerator [host] [port[,port...]] [connections] [groups] [devicesPerGroup] [readingsPerFrame] [seconds]
+public class IngestLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        String[] ports = (args.length > 1 ? args[1] : "9099").split(",");
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int groups = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int devicesPerGroup = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        int readingsPerFrame = args.length > 5 ? Integer.parseInt(args[5]) : 16;
+        int seconds = args.length > 6 ? Integer.parseInt(args[6]) : 30;
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        LongAdder readings = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            InetSocketAddress address = new InetSocketAddress(host, Integer.parseInt(ports[c % ports.length]));
+            Thread thread = new Thread(() -> {
+                try {
+                    stream(address, connection, connections, groups, devicesPerGroup, readingsPerFrame, deadline,
+                            readings);
+                } catch (IOException e) {
+                    System.err.println("Connection " + connection + " failed: " + e);
+                }
+            }, "ingest-load-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("Sent %d readings in %d s (%.0f readings/s)%n",
+                readings.sum(), seconds, readings.sum() / (double) seconds);
+    }
+
+    private static void stream(InetSocketAddress address, int connection, int connections, int groups,
+                               int devicesPerGroup, int readingsPerFrame, long deadline, LongAdder readings)
+            throws IOException {
+        double[] values = new double[readingsPerFrame];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long requestId = 0;
+        int device = connection;
+        int devices = groups * devicesPerGroup;
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            while (System.nanoTime() < deadline) {
+                for (int i = 0; i < readingsPerFrame; i++) {
+                    values[i] = 15.0 + ThreadLocalRandom.current().nextDouble(20.0);
+                }
+                String groupId = "group-" + (device / devicesPerGroup);
+                String deviceId = "device-" + (device % devicesPerGroup);
+                if (buffer.remaining() < frameSize(groupId, deviceId, readingsPerFrame)) {
+                    writeFully(channel, buffer);
+                }
+                writeFrame(buffer, groupId, deviceId, requestId, values, readingsPerFrame);
+                requestId += readingsPerFrame;
+                readings.add(readingsPerFrame);
+                // Each connection walks its own devices so that their readings stay in order
+                device += connections;
+                if (device >= devices) {
+                    device = connection;
+                }
+            }
+            writeFully(channel, buffer);
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    static int frameSize(String groupId, String deviceId, int count) {
+        return IngestServer.HEADER_SIZE + 1 + utf8Length(groupId) + 1 + utf8Length(deviceId) + 8 + 2
+                + count * IngestServer.READING_SIZE;
+    }
+
+    // Appends one frame in the layout documented on IngestServer
+    static void writeFrame(ByteBuffer buffer, String groupId, String deviceId, long firstRequestId,
+                           double[] values, int count) {
+        byte[] group = groupId.getBytes(StandardCharsets.UTF_8);
+        byte[] device = deviceId.getBytes(StandardCharsets.UTF_8);
+        if (group.length > 255 || device.length > 255 || count < 1 || count > 0xFFFF) {
+            throw new IllegalArgumentException("Ids must fit in 255 bytes and a frame holds 1 to 65535 readings");
+        }
+        buffer.putInt(frameSize(groupId, deviceId, count) - IngestServer.HEADER_SIZE);
+        buffer.put((byte) group.length).put(group);
+        buffer.put((byte) device.length).put(device);
+        buffer.putLong(firstRequestId);
+        buffer.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            buffer.putDouble(values[i]);
+        }
+    }
+
+    private static int utf8Length(String id) {
+        return id.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -0,0 +1,409 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.lightbend.akka.iot.Device.Overloaded;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.Device.TemperatureBatchDropped;
+import com.lightbend.akka.iot.Device.TemperatureBatchRecorded;
+import com.lightbend.akka.iot.DeviceManager.DeviceRegistered;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// TCP endpoint that turns binary frames into RecordTemperatureBatch messages for the
+// device manager. Every frame carries the readings of one device (big endian):
+//
+//   int32   length of the rest of the frame
+//   uint8   group id length, followed by the UTF-8 group id
+//   uint8   device id length, followed by the UTF-8 device id
+//   int64   request id of the first reading, the others count up from it
+//   uint16  number of readings, at least one
+//   float64 reading, repeated
+//
+// A single selector thread owns all sockets. Frames are decoded straight out of pooled
+// direct buffers; a connection only holds on to a buffer while it has a partial frame.
+// Devices are tracked the first time a connection sends for them, and again after a batch
+// of theirs was dropped; a connection remembers up to max-tracked-devices of them. Each
+// batch asks for an acknowledgement, and a connection whose devices have fallen behind by
+// max-batches-in-flight batches stops reading from its socket until they catch up,
+// which pushes back on the sender through TCP flow control.
+final class IngestServer implements Closeable {
+
+    static final int HEADER_SIZE = 4;
+    static final int READING_SIZE = 8;
+
+    static IngestServer start(ActorSystem system, ActorRef deviceManager, InetSocketAddress address)
+            throws IOException {
+        IngestServer server = new IngestServer(system, deviceManager, IotSettings.get(system));
+        server.bind(address);
+        return server;
+    }
+
+    private final ActorSystem system;
+    private final ActorRef deviceManager;
+    private final LoggingAdapter log;
+    private final int bufferSize;
+    private final int maxBatchesInFlight;
+    private final int maxTrackedDevices;
+    private final ArrayDeque<ByteBuffer> bufferPool = new ArrayDeque<>();
+    private final int maxPooledBuffers;
+    private final ConcurrentLinkedQueue<Connection> resumable = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> connections = new HashSet<>();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean closed;
+
+    private IngestServer(ActorSystem system, ActorRef deviceManager, IotSettings settings) {
+        this.system = system;
+        this.deviceManager = deviceManager;
+        this.log = Logging.getLogger(system, IngestServer.class);
+        this.bufferSize = settings.ingestBufferSize;
+        this.maxPooledBuffers = settings.ingestMaxPooledBuffers;
+        this.maxBatchesInFlight = settings.ingestMaxBatchesInFlight;
+        this.maxTrackedDevices = settings.ingestMaxTrackedDevices;
+    }
+
+    private void bind(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new Thread(this::run, "iot-ingest-" + address.getPort());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    InetSocketAddress localAddress() throws IOException {
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection connection;
+                while ((connection = resumable.poll()) != null) {
+                    connection.resume();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Connection) key.attachment()).read();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error(e, "Ingest selector failed");
+        } finally {
+            for (Connection connection : new HashSet<>(connections)) {
+                connection.close();
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            log.debug("Accepted ingest connection from {}", channel.getRemoteAddress());
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.pollFirst();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        if (bufferPool.size() < maxPooledBuffers) {
+            bufferPool.addFirst(buffer);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    // Selector thread state of one client socket; only inFlight and untrack are touched by
+    // other threads
+    private final class Connection {
+        private final SocketChannel channel;
+        private final ActorRef acknowledgements;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final NameDecoder groupIds = new NameDecoder();
+        private final NameDecoder deviceIds = new NameDecoder();
+        private final Map<String, Set<String>> tracked = new HashMap<>();
+        private int trackedCount;
+        // Devices whose batches were dropped, to be tracked again on their next frame
+        private final ConcurrentLinkedQueue<TemperatureBatchDropped> untrack = new ConcurrentLinkedQueue<>();
+        private SelectionKey key;
+        // Holds a partial frame, or whole frames while reading is paused
+        private ByteBuffer pending;
+        private boolean paused;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.acknowledgements = system.actorOf(
+                    Props.create(Acknowledgements.class, () -> new Acknowledgements(this)),
+                    "ingest-connection-" + connectionIds.incrementAndGet());
+        }
+
+        void read() {
+            ByteBuffer buffer = pending != null ? pending : acquireBuffer();
+            pending = null;
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                log.debug("Ingest connection failed: {}", e.getMessage());
+                read = -1;
+            }
+            if (read < 0) {
+                releaseBuffer(buffer);
+                close();
+                return;
+            }
+            buffer.flip();
+            decode(buffer);
+        }
+
+        // Records every whole frame in the buffer, then keeps what is left over
+        private void decode(ByteBuffer buffer) {
+            while (!paused && buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 0 || length > buffer.capacity() - HEADER_SIZE) {
+                    log.warning("Closing ingest connection that sent a frame of {} bytes", length);
+                    releaseBuffer(buffer);
+                    close();
+                    return;
+                }
+                if (buffer.remaining() < HEADER_SIZE + length) {
+                    break;
+                }
+                if (!decodeFrame(buffer, length)) {
+                    releaseBuffer(buffer);
+                    close();
+                    return;
+                }
+            }
+            if (buffer.hasRemaining()) {
+                buffer.compact();
+                pending = buffer;
+            } else {
+                releaseBuffer(buffer);
+            }
+        }
+
+        private boolean decodeFrame(ByteBuffer buffer, int length) {
+            int end = buffer.position() + HEADER_SIZE + length;
+            buffer.position(buffer.position() + HEADER_SIZE);
+            String groupId = groupIds.decode(buffer, end);
+            String deviceId = groupId == null ? null : deviceIds.decode(buffer, end);
+            if (deviceId == null || end - buffer.position() < 10) {
+                log.warning("Closing ingest connection that sent a malformed frame");
+                return false;
+            }
+            long firstRequestId = buffer.getLong();
+            int count = buffer.getShort() & 0xFFFF;
+            if (count == 0 || end - buffer.position() != count * READING_SIZE) {
+                log.warning("Closing ingest connection that sent a frame with a wrong reading count");
+                return false;
+            }
+            long[] requestIds = new long[count];
+            double[] values = new double[count];
+            for (int i = 0; i < count; i++) {
+                requestIds[i] = firstRequestId + i;
+                values[i] = buffer.getDouble();
+            }
+
+            track(groupId, deviceId);
+            deviceManager.tell(
+                    new RecordTemperatureBatch(groupId, deviceId, requestIds, values, true), acknowledgements);
+            if (inFlight.incrementAndGet() >= maxBatchesInFlight) {
+                pause();
+            }
+            return true;
+        }
+
+        private void track(String groupId, String deviceId) {
+            TemperatureBatchDropped dropped;
+            while ((dropped = untrack.poll()) != null) {
+                Set<String> devices = tracked.get(dropped.groupId);
+                if (devices != null && devices.remove(dropped.deviceId)) {
+                    trackedCount--;
+                }
+            }
+            Set<String> trackedDevices = tracked.get(groupId);
+            if (trackedDevices == null) {
+                trackedDevices = new HashSet<>();
+                tracked.put(groupId, trackedDevices);
+            }
+            if (trackedDevices.add(deviceId)) {
+                deviceManager.tell(new RequestTrackDevice(groupId, deviceId), acknowledgements);
+                if (++trackedCount > maxTrackedDevices) {
+                    // Tracking again is harmless, so forget them all rather than keep an LRU order
+                    tracked.clear();
+                    trackedCount = 0;
+                }
+            }
+        }
+
+        private void pause() {
+            paused = true;
+            key.interestOps(0);
+        }
+
+        // Called from the selector thread once the devices have caught up
+        void resume() {
+            if (!paused || !key.isValid()) {
+                return;
+            }
+            paused = false;
+            if (pending != null) {
+                ByteBuffer buffer = pending;
+                pending = null;
+                buffer.flip();
+                decode(buffer);
+            }
+            if (!paused && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        // Called by the acknowledgement actor
+        void batchDropped(TemperatureBatchDropped dropped) {
+            untrack.add(dropped);
+            batchRecorded();
+        }
+
+        // Called by the acknowledgement actor
+        void batchRecorded() {
+            if (inFlight.decrementAndGet() == maxBatchesInFlight / 2) {
+                resumable.add(this);
+                selector.wakeup();
+            }
+        }
+
+        void close() {
+            if (pending != null) {
+                releaseBuffer(pending);
+                pending = null;
+            }
+            key.cancel();
+            closeQuietly(channel);
+            connections.remove(this);
+            acknowledgements.tell(PoisonPill.getInstance(), ActorRef.noSender());
+        }
+    }
+
+    private static final class Acknowledgements extends AbstractActor {
+        private final Connection connection;
+
+        private Acknowledgements(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(TemperatureBatchRecorded.class, r -> connection.batchRecorded())
+                    // Shed by an overloaded device or group: done with, like a recorded batch
+                    .match(Overloaded.class, r -> connection.batchRecorded())
+                    .match(TemperatureBatchDropped.class, connection::batchDropped)
+                    .match(DeviceRegistered.class, r -> {
+                    })
+                    .build();
+        }
+    }
+
+    // Decodes length prefixed ids, handing back the previous String when a frame repeats
+    // the id of the one before it, which is the common case of a device streaming readings
+    private static final class NameDecoder {
+        private final byte[] bytes = new byte[255];
+        private final byte[] lastBytes = new byte[255];
+        private int lastLength = -1;
+        private String last;
+
+        // Null when the id runs past the end of the frame
+        String decode(ByteBuffer buffer, int frameEnd) {
+            if (frameEnd - buffer.position() < 1) {
+                return null;
+            }
+            int length = buffer.get() & 0xFF;
+            if (frameEnd - buffer.position() < length) {
+                return null;
+            }
+            buffer.get(bytes, 0, length);
+            if (length == lastLength && rangeEquals(length)) {
+                return last;
+            }
+            System.arraycopy(bytes, 0, lastBytes, 0, length);
+            lastLength = length;
+            last = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            return last;
+        }
+
+        private boolean rangeEquals(int length) {
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != lastBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.event.EventStream;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Alert rules evaluated where the readings are: device rules by each Device as it records
+// a reading, group rules by each DeviceGroup from the last readings of its devices every
+// iot.alerts.group-evaluation-interval. setRules compiles the rules once into an
+// AlertRules snapshot that actors pick up on their next reading or evaluation, so rule
+// changes need no restart. Raised and cleared alerts are published on the event stream:
+//   system.eventStream().subscribe(subscriber, IotAlerts.Alert.class)
+final class IotAlerts implements Extension {
+
+    private static final ExtensionId<IotAlerts> ID = new AbstractExtensionId<IotAlerts>() {
+        @Override
+        public IotAlerts createExtension(ExtendedActorSystem system) {
+            return new IotAlerts(system.eventStream(), system.settings().config()
+                    .getDuration("iot.alerts.group-evaluation-interval", TimeUnit.MILLISECONDS));
+        }
+    };
+
+    static IotAlerts get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    private final EventStream eventStream;
+    final long groupEvaluationIntervalMillis;
+    private volatile AlertRules rules = AlertRules.EMPTY;
+
+    private IotAlerts(EventStream eventStream, long groupEvaluationIntervalMillis) {
+        this.eventStream = eventStream;
+        this.groupEvaluationIntervalMillis = groupEvaluationIntervalMillis;
+    }
+
+    AlertRules rules() {
+        return rules;
+    }
+
+    // Replaces all rules. Groups are told through the event stream so that they can start
+    // or stop evaluating; devices notice on their next reading.
+    void setRules(List<? extends Rule> rules) {
+        AlertRules compiled = AlertRules.compile(rules);
+        this.rules = compiled;
+        eventStream.publish(compiled);
+    }
+
+    void publish(Alert alert) {
+        eventStream.publish(alert);
+    }
+
+    abstract static class Rule implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String id;
+        // Null for the devices of every group
+        final String groupId;
+
+        Rule(String id, String groupId) {
+            this.id = id;
+            this.groupId = groupId;
+        }
+
+        boolean appliesTo(String groupId) {
+            return this.groupId == null || this.groupId.equals(groupId);
+        }
+    }
+
+    // A device's readings stay above (or below) threshold for at least forMillis. Raised by
+    // the reading that completes the period, cleared by the first reading on the other side.
+    static final class DeviceThreshold extends Rule {
+        private static final long serialVersionUID = 1L;
+
+        final boolean above;
+        final double threshold;
+        final long forMillis;
+
+        DeviceThreshold(String id, String groupId, boolean above, double threshold, long forMillis) {
+            super(id, groupId);
+            this.above = above;
+            this.threshold = threshold;
+            this.forMillis = forMillis;
+        }
+    }
+
+    // The average of the last readings of a group's devices rises by more than perMinute
+    // degrees per minute, measured over windowMillis
+    static final class GroupAverageRising extends Rule {
+        private static final long serialVersionUID = 1L;
+
+        final double perMinute;
+        final long windowMillis;
+
+        GroupAverageRising(String id, String groupId, double perMinute, long windowMillis) {
+            super(id, groupId);
+            this.perMinute = perMinute;
+            this.windowMillis = windowMillis;
+        }
+    }
+
+    static final class Alert implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String ruleId;
+        final String groupId;
+        // Null for group rules
+        final String deviceId;
+        // False when the condition no longer holds
+        final boolean raised;
+        // The reading, or for group rules the average's rise per minute; NaN when the
+        // alert is cleared because its rule was removed
+        final double value;
+        final long timestamp;
+
+        Alert(String ruleId, String groupId, String deviceId, boolean raised, double value, long timestamp) {
+            this.ruleId = ruleId;
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.raised = raised;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "Alert{rule=" + ruleId + ", group=" + groupId + ", device=" + deviceId +
+                    (raised ? ", raised" : ", cleared") + ", value=" + value + '}';
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.lightbend.akka.iot;
+
+import akka.Done;
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.lightbend.akka.iot.Device.Overloaded;
+import com.lightbend.akka.iot.Device.RespondTemperature;
+import com.lightbend.akka.iot.Device.TemperatureRecorded;
+import com.lightbend.akka.iot.DeviceGroup.ReadDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.ReplyDeviceList;
+import com.lightbend.akka.iot.DeviceGroup.RequestDeviceList;
+import com.lightbend.akka.iot.DeviceManager.DeviceRegistered;
+import com.lightbend.akka.iot.DeviceManager.GroupMessage;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// CompletionStage API over a device registry (a DeviceManager or the cluster's shard
+// region) for code outside the actors. Unlike ask, a request allocates no actor and no
+// timer: the caller's thread registers the pending stage under a fresh request id and
+// sends the request with one long-lived correlator actor as sender, which completes the
+// stage when the reply with that id comes back. Any number of requests can be in flight
+// at once. One periodic sweep fails requests that got no reply within iot.client.timeout,
+// e.g. those for unknown devices, which the registry drops. A record shed by a
+// PriorityMailbox fails with a RejectedExecutionException. Requests made once the client
+// is closed fail at once with an IllegalStateException. Safe to use from any thread.
+public final class IotClient implements AutoCloseable {
+
+    private final ActorRef registry;
+    private final ActorRef correlator;
+    private final Map<Long, Pending<?>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1L);
+    // Set by close() and by the correlator when it stops, e.g. with the actor system
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final long timeoutNanos;
+
+    private IotClient(ActorSystem system, ActorRef registry) {
+        this.registry = registry;
+        FiniteDuration timeout = IotSettings.get(system).clientTimeout;
+        this.timeoutNanos = timeout.toNanos();
+        this.correlator = system.actorOf(Correlator.props(pending, closed, timeout));
+    }
+
+    // registry is what IotSupervisor answers RequestDeviceRegistry with
+    public static IotClient create(ActorSystem system, ActorRef registry) {
+        return new IotClient(system, registry);
+    }
+
+    public CompletionStage<Done> track(String groupId, String deviceId) {
+        Pending<Done> reply = register();
+        send(reply, new RequestTrackDevice(groupId, deviceId, reply.requestId));
+        return reply;
+    }
+
+    public CompletionStage<Done> record(String groupId, String deviceId, double value) {
+        Pending<Done> reply = register();
+        send(reply, new GroupMessage(groupId, new RecordDeviceTemperature(deviceId, reply.requestId, value)));
+        return reply;
+    }
+
+    // Empty while the device has no reading
+    public CompletionStage<OptionalDouble> read(String groupId, String deviceId) {
+        Pending<OptionalDouble> reply = register();
+        send(reply, new GroupMessage(groupId, new ReadDeviceTemperature(deviceId, reply.requestId)));
+        return reply;
+    }
+
+    // Ids of every device of the group
+    public CompletionStage<Set<String>> list(String groupId) {
+        Pending<Set<String>> reply = register();
+        send(reply, new GroupMessage(groupId, new RequestDeviceList(reply.requestId)));
+        return reply;
+    }
+
+    // Requests in flight
+    public int pendingRequests() {
+        return pending.size();
+    }
+
+    // Stops the correlator; requests still in flight fail with a TimeoutException
+    @Override
+    public void close() {
+        closed.set(true);
+        correlator.tell(Close.INSTANCE, ActorRef.noSender());
+    }
+
+    private <T> Pending<T> register() {
+        Pending<T> reply = new Pending<>(nextRequestId.getAndIncrement(), System.nanoTime() + timeoutNanos);
+        if (closed.get()) {
+            reply.completeExceptionally(new IllegalStateException("IotClient closed"));
+            return reply;
+        }
+        pending.put(reply.requestId, reply);
+        // The correlator sets closed before it fails what is pending, so a request that
+        // raced with it is either failed there or seen as closed here
+        if (closed.get() && pending.remove(reply.requestId) != null) {
+            reply.completeExceptionally(new IllegalStateException("IotClient closed"));
+        }
+        return reply;
+    }
+
+    // Requests that failed on registering are not sent
+    private void send(Pending<?> reply, Object request) {
+        if (!reply.isDone()) {
+            registry.tell(request, correlator);
+        }
+    }
+
+    private static final class Pending<T> extends CompletableFuture<T> {
+        final long requestId;
+        final long deadlineNanos;
+
+        Pending(long requestId, long deadlineNanos) {
+            this.requestId = requestId;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private static final class Correlator extends AbstractActorWithTimers {
+
+        static Props props(Map<Long, Pending<?>> pending, AtomicBoolean closed, FiniteDuration timeout) {
+            return Props.create(Correlator.class, () -> new Correlator(pending, closed, timeout));
+        }
+
+        private final Map<Long, Pending<?>> pending;
+        private final AtomicBoolean closed;
+        private final FiniteDuration timeout;
+
+        private Correlator(Map<Long, Pending<?>> pending, AtomicBoolean closed, FiniteDuration timeout) {
+            this.pending = pending;
+            this.closed = closed;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public void preStart() {
+            // Requests fail between one and 1.25 timeouts after they were sent
+            FiniteDuration interval = FiniteDuration.create(
+                    Math.max(1L, timeout.toMillis() / 4), TimeUnit.MILLISECONDS);
+            getTimers().startPeriodicTimer(Sweep.INSTANCE, Sweep.INSTANCE, interval);
+        }
+
+        @Override
+        public void postStop() {
+            closed.set(true);
+            Iterator<Pending<?>> replies = pending.values().iterator();
+            while (replies.hasNext()) {
+                Pending<?> reply = replies.next();
+                replies.remove();
+                reply.completeExceptionally(new TimeoutException("IotClient closed"));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(long requestId, Object value) {
+            Pending<Object> reply = (Pending<Object>) pending.remove(requestId);
+            if (reply != null) {
+                reply.complete(value);
+            }
+        }
+
+        private void fail(long requestId, Throwable cause) {
+            Pending<?> reply = pending.remove(requestId);
+            if (reply != null) {
+                reply.completeExceptionally(cause);
+            }
+        }
+
+        private void onSweep(Sweep s) {
+            long now = System.nanoTime();
+            Iterator<Pending<?>> replies = pending.values().iterator();
+            while (replies.hasNext()) {
+                Pending<?> reply = replies.next();
+                if (now - reply.deadlineNanos >= 0) {
+                    replies.remove();
+                    reply.completeExceptionally(new TimeoutException(
+                            "No reply to request " + reply.requestId + " within " + timeout));
+                }
+            }
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(DeviceRegistered.class, r -> complete(r.requestId, Done.getInstance()))
+                    .match(TemperatureRecorded.class, r -> complete(r.requestId, Done.getInstance()))
+                    .match(Overloaded.class, r -> fail(r.requestId,
+                            new RejectedExecutionException("Reading " + r.requestId + " shed by an overloaded mailbox")))
+                    .match(RespondTemperature.class, r ->
+                            complete(r.requestId, r.hasValue ? OptionalDouble.of(r.value) : OptionalDouble.empty()))
+                    .match(ReplyDeviceList.class, r -> complete(r.requestId, r.ids))
+                    .match(Sweep.class, this::onSweep)
+                    .match(Close.class, c -> getContext().stop(getSelf()))
+                    .build();
+        }
+    }
+
+    private static final class Sweep {
+        static final Sweep INSTANCE = new Sweep();
+
+        private Sweep() {
+        }
+    }
+
+    private static final class Close {
+        static final Close INSTANCE = new Close();
+
+        private Close() {
+        }
+    }
+}
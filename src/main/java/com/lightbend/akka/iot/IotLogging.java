@@ -0,0 +1,227 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.event.Logging;
+import akka.event.LoggingBus;
+import com.typesafe.config.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Logging for the message hot paths of the IoT actors. HotPathLog call sites copy their
+// primitive arguments into a preallocated ring buffer slot without boxing or formatting;
+// a single appender thread formats the events and publishes them to the actor system's
+// event stream, so they end up in the regular Akka loggers. The ring is lossy: when the
+// appender falls behind, events are dropped and a count of them is logged instead. An
+// appender with nothing to do parks until a producer hands it the next event.
+final class IotLogging implements Extension {
+
+    private static final ExtensionId<IotLogging> ID = new AbstractExtensionId<IotLogging>() {
+        @Override
+        public IotLogging createExtension(ExtendedActorSystem system) {
+            IotLogging logging = new IotLogging(system.eventStream(),
+                    system.settings().config().getConfig("iot.logging"), system.name());
+            system.registerOnTermination(logging::stop);
+            return logging;
+        }
+    };
+
+    static IotLogging get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    static final int ERROR = Logging.ErrorLevel();
+    static final int WARNING = Logging.WarningLevel();
+    static final int INFO = Logging.InfoLevel();
+    static final int DEBUG = Logging.DebugLevel();
+
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte STRING = 3;
+
+    private final LoggingBus bus;
+    private final Config categories;
+    private final Map<String, HotPathLog> loggers = new ConcurrentHashMap<>();
+
+    private final Event[] ring;
+    private final int mask;
+    // Next sequence to hand out to a producer, and next one the appender will read
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread appender;
+    private volatile boolean running = true;
+    // Set by the appender before it parks; producers that see it unpark the appender
+    private volatile boolean sleeping;
+
+    private IotLogging(LoggingBus bus, Config config, String systemName) {
+        this.bus = bus;
+        this.categories = config.getConfig("categories").withFallback(config.getConfig("default-category")
+                .atKey("default"));
+        int size = Integer.highestOneBit(Math.max(2, config.getInt("ring-buffer-size") * 2 - 1));
+        this.ring = new Event[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = size - 1;
+        this.appender = new Thread(this::drain, "iot-log-appender-" + systemName);
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    // One logger per category and class; the category's config lives under iot.logging.categories
+    HotPathLog logger(String category, Class<?> logClass) {
+        return loggers.computeIfAbsent(category + '/' + logClass.getName(), key -> {
+            Config config = categories.hasPath(category)
+                    ? categories.getConfig(category).withFallback(categories.getConfig("default"))
+                    : categories.getConfig("default");
+            return new HotPathLog(this, logClass, Logging.levelFor(config.getString("level")).get().asInt(),
+                    config.getInt("sample-every"), config.getInt("max-per-second"));
+        });
+    }
+
+    int busLevel() {
+        return bus.logLevel();
+    }
+
+    void publish(int level, String source, Class<?> logClass, String template,
+                 byte kind1, long bits1, Object ref1, byte kind2, long bits2, Object ref2) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.increment();
+                wakeAppender();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Event event = ring[(int) sequence & mask];
+        event.level = level;
+        event.source = source;
+        event.logClass = logClass;
+        event.template = template;
+        event.kind1 = kind1;
+        event.bits1 = bits1;
+        event.ref1 = ref1;
+        event.kind2 = kind2;
+        event.bits2 = bits2;
+        event.ref2 = ref2;
+        event.published = sequence + 1;
+        wakeAppender();
+    }
+
+    // The appender sets sleeping before its last look at the ring, and producers publish
+    // before they look at sleeping, so one of them always sees the other
+    private void wakeAppender() {
+        if (sleeping) {
+            sleeping = false;
+            LockSupport.unpark(appender);
+        }
+    }
+
+    private void drain() {
+        long next = 0;
+        long reportedDrops = 0;
+        StringBuilder message = new StringBuilder(128);
+        while (running || claimed.get() != next) {
+            Event event = ring[(int) next & mask];
+            if (event.published != next + 1) {
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    bus.publish(new Logging.Warning("IotLogging", IotLogging.class,
+                            "Dropped " + (drops - reportedDrops) + " hot path log events"));
+                    reportedDrops = drops;
+                }
+                sleeping = true;
+                if (event.published != next + 1 && running && dropped.sum() == reportedDrops) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+                continue;
+            }
+            message.setLength(0);
+            format(event, message);
+            bus.publish(logEvent(event.level, event.source, event.logClass, message.toString()));
+            event.source = null;
+            event.ref1 = null;
+            event.ref2 = null;
+            consumed = ++next;
+        }
+    }
+
+    private static void format(Event event, StringBuilder out) {
+        String template = event.template;
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf("{}", start)) >= 0) {
+            out.append(template, start, placeholder);
+            if (argument == 0) {
+                appendArgument(out, event.kind1, event.bits1, event.ref1);
+            } else if (argument == 1) {
+                appendArgument(out, event.kind2, event.bits2, event.ref2);
+            } else {
+                out.append("{}");
+            }
+            argument++;
+            start = placeholder + 2;
+        }
+        out.append(template, start, template.length());
+    }
+
+    private static void appendArgument(StringBuilder out, byte kind, long bits, Object ref) {
+        switch (kind) {
+            case LONG:
+                out.append(bits);
+                break;
+            case DOUBLE:
+                out.append(Double.longBitsToDouble(bits));
+                break;
+            default:
+                out.append(ref);
+        }
+    }
+
+    private static Logging.LogEvent logEvent(int level, String source, Class<?> logClass, String message) {
+        if (level == ERROR) {
+            return new Logging.Error(source, logClass, message);
+        } else if (level == WARNING) {
+            return new Logging.Warning(source, logClass, message);
+        } else if (level == INFO) {
+            return new Logging.Info(source, logClass, message);
+        }
+        return new Logging.Debug(source, logClass, message);
+    }
+
+    private void stop() {
+        running = false;
+        LockSupport.unpark(appender);
+        try {
+            appender.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Event {
+        volatile long published;
+        int level;
+        String source;
+        Class<?> logClass;
+        String template;
+        byte kind1;
+        long bits1;
+        Object ref1;
+        byte kind2;
+        long bits2;
+        Object ref2;
+    }
+}
@@ -0,0 +1,9 @@
+package com.lightbend.akka.iot;
+
+import java.io.Serializable;
+
+// Messages of the device protocol that can travel between the nodes of a cluster (see
+// ClusterDeviceRegistry): requests, their replies and everything they carry. Serialized
+// with IotSerializer, which needs to know every concrete message type.
+interface IotMessage extends Serializable {
+}
@@ -0,0 +1,291 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Message counts, mailbox depth and enqueue-to-processing latency per actor tier, plus
+// the number of devices in every group, the use of the groups' snapshot caches and the
+// readings shed by PriorityMailboxes. Actors of a tier are only measured when they
+// are created with meter(...), which puts them on a MeteredMailbox; with
+// iot.metrics.enabled off it returns the props untouched and nothing is recorded.
+public final class IotMetrics implements Extension {
+
+    private static final ExtensionId<IotMetrics> ID = new AbstractExtensionId<IotMetrics>() {
+        @Override
+        public IotMetrics createExtension(ExtendedActorSystem system) {
+            return new IotMetrics(system, system.settings().config().getConfig("iot.metrics"));
+        }
+    };
+
+    public static IotMetrics get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    public enum Tier {
+        MANAGER, GROUP, DEVICE;
+
+        public final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    public final boolean enabled;
+    private final TierMetrics[] tiers = new TierMetrics[Tier.values().length];
+    private final Map<String, GroupDevices> groups = new ConcurrentHashMap<>();
+    private final SnapshotMetrics snapshots = new SnapshotMetrics();
+    private final SheddingMetrics shedding = new SheddingMetrics();
+    private final List<MetricsReporter> reporters = new ArrayList<>();
+
+    private IotMetrics(ExtendedActorSystem system, Config config) {
+        this.enabled = config.getBoolean("enabled");
+        for (Tier tier : Tier.values()) {
+            tiers[tier.ordinal()] = new TierMetrics(tier);
+        }
+        if (enabled) {
+            FiniteDuration second = FiniteDuration.create(1, TimeUnit.SECONDS);
+            system.scheduler().schedule(second, second, this::updateRates, system.dispatcher());
+            startReporters(system, config.getStringList("reporters"));
+            system.registerOnTermination(this::stopReporters);
+        }
+    }
+
+    Props meter(Props props, Tier tier) {
+        return enabled ? props.withMailbox("iot.metrics.mailboxes." + tier.label) : props;
+    }
+
+    public TierMetrics tier(Tier tier) {
+        return tiers[tier.ordinal()];
+    }
+
+    public SnapshotMetrics snapshots() {
+        return snapshots;
+    }
+
+    public SheddingMetrics shedding() {
+        return shedding;
+    }
+
+    public Map<String, GroupDevices> groups() {
+        return Collections.unmodifiableMap(groups);
+    }
+
+    // Null when metrics are off
+    GroupDevices registerGroup(String groupId) {
+        if (!enabled) {
+            return null;
+        }
+        GroupDevices devices = new GroupDevices();
+        groups.put(groupId, devices);
+        return devices;
+    }
+
+    void unregisterGroup(String groupId, GroupDevices devices) {
+        groups.remove(groupId, devices);
+    }
+
+    private void updateRates() {
+        for (TierMetrics tier : tiers) {
+            tier.updateRate();
+        }
+    }
+
+    private void startReporters(ActorSystem system, List<String> names) {
+        LoggingAdapter log = Logging.getLogger(system, IotMetrics.class);
+        for (String name : names) {
+            String className = "jmx".equals(name) ? JmxMetricsReporter.class.getName()
+                    : "prometheus".equals(name) ? PrometheusMetricsReporter.class.getName()
+                    : name;
+            try {
+                MetricsReporter reporter = (MetricsReporter) Class.forName(className).getDeclaredConstructor()
+                        .newInstance();
+                reporter.start(system, this);
+                reporters.add(reporter);
+            } catch (Exception e) {
+                log.error(e, "Could not start metrics reporter {}", name);
+            }
+        }
+    }
+
+    private void stopReporters() {
+        for (MetricsReporter reporter : reporters) {
+            reporter.stop();
+        }
+    }
+
+    public static final class TierMetrics {
+        public final Tier tier;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder depth = new LongAdder();
+        // Counted by the BackoffSupervisorStrategy of the tier's parents whether or not
+        // metrics are enabled
+        private final LongAdder restarts = new LongAdder();
+        private final LongAdder backoffs = new LongAdder();
+        private final LongAdder restartBudgetsExhausted = new LongAdder();
+        private long lastCount;
+        private volatile double messagesPerSecond;
+
+        private TierMetrics(Tier tier) {
+            this.tier = tier;
+        }
+
+        void enqueued() {
+            depth.increment();
+        }
+
+        void dequeued(long queuedNanos) {
+            depth.decrement();
+            latency.record(queuedNanos);
+        }
+
+        void restarted(long backoffMillis) {
+            restarts.increment();
+            if (backoffMillis > 0L) {
+                backoffs.increment();
+            }
+        }
+
+        void restartBudgetExhausted() {
+            restartBudgetsExhausted.increment();
+        }
+
+        public long messages() {
+            return latency.count();
+        }
+
+        // Actors of the tier restarted after a failure
+        public long restarts() {
+            return restarts.sum();
+        }
+
+        // Restarts that waited for a backoff first
+        public long backoffs() {
+            return backoffs.sum();
+        }
+
+        // Actors of the tier stopped because they failed more often than their restart budget allows
+        public long restartBudgetsExhausted() {
+            return restartBudgetsExhausted.sum();
+        }
+
+        // Over the last second
+        public double messagesPerSecond() {
+            return messagesPerSecond;
+        }
+
+        public long mailboxDepth() {
+            return depth.sum();
+        }
+
+        // Nanoseconds from enqueue until the actor picks the message up
+        public LatencyHistogram latency() {
+            return latency;
+        }
+
+        private void updateRate() {
+            long count = messages();
+            messagesPerSecond = count - lastCount;
+            lastCount = count;
+        }
+    }
+
+    // RequestAllTemperatures of all groups, counted by their GroupSnapshotCache whether or
+    // not metrics are enabled
+    public static final class SnapshotMetrics {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder coalesced = new LongAdder();
+
+        private SnapshotMetrics() {
+        }
+
+        void hit() {
+            hits.increment();
+        }
+
+        void miss() {
+            misses.increment();
+        }
+
+        void coalesce() {
+            coalesced.increment();
+        }
+
+        // Answered from a cached snapshot
+        public long hits() {
+            return hits.sum();
+        }
+
+        // Answered by asking the devices
+        public long misses() {
+            return misses.sum();
+        }
+
+        // Answered with a snapshot that was being collected for an earlier request
+        public long coalesced() {
+            return coalesced.sum();
+        }
+    }
+
+    // Readings shed by the PriorityMailboxes of all actors, counted whether or not metrics
+    // are enabled; a batch counts with all of its readings
+    public static final class SheddingMetrics {
+        private final LongAdder collapsed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private SheddingMetrics() {
+        }
+
+        void collapsed(int readings) {
+            collapsed.add(readings);
+        }
+
+        void rejected(int readings) {
+            rejected.add(readings);
+        }
+
+        // Replaced by a newer reading of the same device while queued
+        public long collapsed() {
+            return collapsed.sum();
+        }
+
+        // Turned away because the mailbox was over its high-water mark
+        public long rejected() {
+            return rejected.sum();
+        }
+    }
+
+    // Written by the owning DeviceGroup, read by reporters
+    public static final class GroupDevices {
+        private volatile int devices;
+        private volatile int actors;
+
+        void update(int devices, int actors) {
+            this.devices = devices;
+            this.actors = actors;
+        }
+
+        // Every tracked device, including passivated and compact ones
+        public int devices() {
+            return devices;
+        }
+
+        public int actors() {
+            return actors;
+        }
+    }
+}
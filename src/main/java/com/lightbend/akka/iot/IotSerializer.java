@@ -0,0 +1,767 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.SerializerWithStringManifest;
+import akka.serialization.Serializers;
+import com.lightbend.akka.iot.Device.Overloaded;
+import com.lightbend.akka.iot.Device.ReadTemperature;
+import com.lightbend.akka.iot.Device.ReadTemperatureStats;
+import com.lightbend.akka.iot.Device.RecordTemperature;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.Device.RespondTemperature;
+import com.lightbend.akka.iot.Device.RespondTemperatureStats;
+import com.lightbend.akka.iot.Device.TemperatureBatchDropped;
+import com.lightbend.akka.iot.Device.TemperatureBatchRecorded;
+import com.lightbend.akka.iot.Device.TemperatureRecorded;
+import com.lightbend.akka.iot.DeviceGroup.DeviceNotAvailable;
+import com.lightbend.akka.iot.DeviceGroup.DeviceTimedOut;
+import com.lightbend.akka.iot.DeviceGroup.PromoteDevice;
+import com.lightbend.akka.iot.DeviceGroup.ReadDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.ReplyDeviceList;
+import com.lightbend.akka.iot.DeviceGroup.ReplyDeviceListPage;
+import com.lightbend.akka.iot.DeviceGroup.RequestAllTemperatures;
+import com.lightbend.akka.iot.DeviceGroup.RequestDeviceList;
+import com.lightbend.akka.iot.DeviceGroup.RequestDeviceListPage;
+import com.lightbend.akka.iot.DeviceGroup.RespondAllTemperatures;
+import com.lightbend.akka.iot.DeviceGroup.Temperature;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureNotAvailable;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureReading;
+import com.lightbend.akka.iot.DeviceManager.DeviceRegistered;
+import com.lightbend.akka.iot.DeviceManager.DevicesProvisioned;
+import com.lightbend.akka.iot.DeviceManager.GroupDevicesProvisioned;
+import com.lightbend.akka.iot.DeviceManager.GroupMessage;
+import com.lightbend.akka.iot.DeviceManager.ProvisionDevices;
+import com.lightbend.akka.iot.DeviceManager.ProvisionGroupDevices;
+import com.lightbend.akka.iot.DeviceManager.ProvisioningProgress;
+import com.lightbend.akka.iot.DeviceManager.ProvisioningTimedOut;
+import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import com.lightbend.akka.iot.IotAlerts.Alert;
+import com.lightbend.akka.iot.IotAlerts.DeviceThreshold;
+import com.lightbend.akka.iot.IotAlerts.GroupAverageRising;
+import com.lightbend.akka.iot.TemperatureFeed.OverflowPolicy;
+import com.lightbend.akka.iot.TemperatureFeed.RequestTemperatureUpdates;
+import com.lightbend.akka.iot.TemperatureFeed.SubscribeTemperatures;
+import com.lightbend.akka.iot.TemperatureFeed.TemperatureUpdate;
+import com.lightbend.akka.iot.TemperatureFeed.TemperatureUpdatesDropped;
+import com.lightbend.akka.iot.TemperatureFeed.TemperaturesSubscribed;
+import com.lightbend.akka.iot.TemperatureFeed.UnsubscribeTemperatures;
+import com.lightbend.akka.iot.TemperatureRollup.RequestRollup;
+import com.lightbend.akka.iot.TemperatureRollup.RespondRollup;
+
+import java.io.NotSerializableException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Binary serializer for every IotMessage, bound in reference.conf. The manifest names the
+// message type; the payload lists its fields in a fixed order:
+//
+//   int, long  unsigned LEB128 varint (negative values take the full 5 or 10 bytes)
+//   double     8 bytes, big endian
+//   boolean    1 byte
+//   String     varint UTF-8 length, then the bytes; nullable fields store length + 1, 0 for null
+//   arrays and collections  varint element count, then the elements
+//
+// With Artery, messages are written straight into its buffers (ByteBufferSerializer); for
+// the byte array API they are written into a per-thread buffer and copied out once.
+// A GroupMessage carries its message with the message's own serializer, unless that is
+// this one.
+public final class IotSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+
+    static final int IDENTIFIER = 7301;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final String READ_TEMPERATURE = "RT";
+    private static final String RESPOND_TEMPERATURE = "RTR";
+    private static final String RECORD_TEMPERATURE = "WT";
+    private static final String TEMPERATURE_RECORDED = "WTR";
+    private static final String RECORD_TEMPERATURE_BATCH = "WB";
+    private static final String TEMPERATURE_BATCH_RECORDED = "WBR";
+    private static final String TEMPERATURE_BATCH_DROPPED = "WBD";
+    private static final String OVERLOADED = "WO";
+    private static final String READ_TEMPERATURE_STATS = "ST";
+    private static final String RESPOND_TEMPERATURE_STATS = "STR";
+    private static final String RECORD_DEVICE_TEMPERATURE = "GWT";
+    private static final String READ_DEVICE_TEMPERATURE = "GRT";
+    private static final String PROMOTE_DEVICE = "GP";
+    private static final String REQUEST_DEVICE_LIST = "GL";
+    private static final String REPLY_DEVICE_LIST = "GLR";
+    private static final String REQUEST_DEVICE_LIST_PAGE = "GLP";
+    private static final String REPLY_DEVICE_LIST_PAGE = "GLPR";
+    private static final String REQUEST_ALL_TEMPERATURES = "GA";
+    private static final String RESPOND_ALL_TEMPERATURES = "GAR";
+    private static final String TEMPERATURE = "T";
+    private static final String TEMPERATURE_NOT_AVAILABLE = "TNA";
+    private static final String DEVICE_NOT_AVAILABLE = "DNA";
+    private static final String DEVICE_TIMED_OUT = "DTO";
+    private static final String REQUEST_TRACK_DEVICE = "MT";
+    private static final String DEVICE_REGISTERED = "MTR";
+    private static final String GROUP_MESSAGE = "MG";
+    private static final String PROVISION_DEVICES = "MP";
+    private static final String PROVISIONING_PROGRESS = "MPP";
+    private static final String DEVICES_PROVISIONED = "MPR";
+    private static final String PROVISIONING_TIMED_OUT = "MPT";
+    private static final String PROVISION_GROUP_DEVICES = "MPG";
+    private static final String GROUP_DEVICES_PROVISIONED = "MPGR";
+    private static final String DEVICE_THRESHOLD = "AD";
+    private static final String GROUP_AVERAGE_RISING = "AG";
+    private static final String ALERT = "A";
+    private static final String SUBSCRIBE_TEMPERATURES = "FS";
+    private static final String TEMPERATURES_SUBSCRIBED = "FSR";
+    private static final String REQUEST_TEMPERATURE_UPDATES = "FR";
+    private static final String UNSUBSCRIBE_TEMPERATURES = "FU";
+    private static final String TEMPERATURE_UPDATE = "FT";
+    private static final String TEMPERATURE_UPDATES_DROPPED = "FD";
+    private static final String REQUEST_ROLLUP = "RU";
+    private static final String RESPOND_ROLLUP = "RUR";
+
+    // Tags of the readings in a RespondAllTemperatures
+    private static final byte READING_TEMPERATURE = 0;
+    private static final byte READING_NOT_AVAILABLE = 1;
+    private static final byte READING_DEVICE_NOT_AVAILABLE = 2;
+    private static final byte READING_DEVICE_TIMED_OUT = 3;
+
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+
+    private final ExtendedActorSystem system;
+    // Looked up on first use, the extension is not ready while serializers are created
+    private volatile Serialization serialization;
+
+    public IotSerializer(ExtendedActorSystem system) {
+        this.system = system;
+    }
+
+    @Override
+    public int identifier() {
+        return IDENTIFIER;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof ReadTemperature) return READ_TEMPERATURE;
+        if (o instanceof RespondTemperature) return RESPOND_TEMPERATURE;
+        if (o instanceof RecordTemperature) return RECORD_TEMPERATURE;
+        if (o instanceof TemperatureRecorded) return TEMPERATURE_RECORDED;
+        if (o instanceof RecordTemperatureBatch) return RECORD_TEMPERATURE_BATCH;
+        if (o instanceof TemperatureBatchRecorded) return TEMPERATURE_BATCH_RECORDED;
+        if (o instanceof TemperatureBatchDropped) return TEMPERATURE_BATCH_DROPPED;
+        if (o instanceof Overloaded) return OVERLOADED;
+        if (o instanceof ReadTemperatureStats) return READ_TEMPERATURE_STATS;
+        if (o instanceof RespondTemperatureStats) return RESPOND_TEMPERATURE_STATS;
+        if (o instanceof RecordDeviceTemperature) return RECORD_DEVICE_TEMPERATURE;
+        if (o instanceof ReadDeviceTemperature) return READ_DEVICE_TEMPERATURE;
+        if (o instanceof PromoteDevice) return PROMOTE_DEVICE;
+        if (o instanceof RequestDeviceList) return REQUEST_DEVICE_LIST;
+        if (o instanceof ReplyDeviceList) return REPLY_DEVICE_LIST;
+        if (o instanceof RequestDeviceListPage) return REQUEST_DEVICE_LIST_PAGE;
+        if (o instanceof ReplyDeviceListPage) return REPLY_DEVICE_LIST_PAGE;
+        if (o instanceof RequestAllTemperatures) return REQUEST_ALL_TEMPERATURES;
+        if (o instanceof RespondAllTemperatures) return RESPOND_ALL_TEMPERATURES;
+        if (o instanceof Temperature) return TEMPERATURE;
+        if (o instanceof TemperatureNotAvailable) return TEMPERATURE_NOT_AVAILABLE;
+        if (o instanceof DeviceNotAvailable) return DEVICE_NOT_AVAILABLE;
+        if (o instanceof DeviceTimedOut) return DEVICE_TIMED_OUT;
+        if (o instanceof RequestTrackDevice) return REQUEST_TRACK_DEVICE;
+        if (o instanceof DeviceRegistered) return DEVICE_REGISTERED;
+        if (o instanceof GroupMessage) return GROUP_MESSAGE;
+        if (o instanceof ProvisionDevices) return PROVISION_DEVICES;
+        if (o instanceof ProvisioningProgress) return PROVISIONING_PROGRESS;
+        if (o instanceof DevicesProvisioned) return DEVICES_PROVISIONED;
+        if (o instanceof ProvisioningTimedOut) return PROVISIONING_TIMED_OUT;
+        if (o instanceof ProvisionGroupDevices) return PROVISION_GROUP_DEVICES;
+        if (o instanceof GroupDevicesProvisioned) return GROUP_DEVICES_PROVISIONED;
+        if (o instanceof DeviceThreshold) return DEVICE_THRESHOLD;
+        if (o instanceof GroupAverageRising) return GROUP_AVERAGE_RISING;
+        if (o instanceof Alert) return ALERT;
+        if (o instanceof SubscribeTemperatures) return SUBSCRIBE_TEMPERATURES;
+        if (o instanceof TemperaturesSubscribed) return TEMPERATURES_SUBSCRIBED;
+        if (o instanceof RequestTemperatureUpdates) return REQUEST_TEMPERATURE_UPDATES;
+        if (o instanceof UnsubscribeTemperatures) return UNSUBSCRIBE_TEMPERATURES;
+        if (o instanceof TemperatureUpdate) return TEMPERATURE_UPDATE;
+        if (o instanceof TemperatureUpdatesDropped) return TEMPERATURE_UPDATES_DROPPED;
+        if (o instanceof RequestRollup) return REQUEST_ROLLUP;
+        if (o instanceof RespondRollup) return RESPOND_ROLLUP;
+        throw new IllegalArgumentException("Cannot serialize " + o.getClass().getName() + " with " +
+                getClass().getName());
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteBuffer buffer = BUFFERS.get();
+        while (true) {
+            buffer.clear();
+            try {
+                toBinary(o, buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                BUFFERS.set(buffer);
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        return fromBinary(ByteBuffer.wrap(bytes), manifest);
+    }
+
+    @Override
+    public void toBinary(Object o, ByteBuffer buf) {
+        if (o instanceof ReadTemperature) {
+            putVarLong(buf, ((ReadTemperature) o).requestId);
+        } else if (o instanceof RespondTemperature) {
+            RespondTemperature m = (RespondTemperature) o;
+            putVarLong(buf, m.requestId);
+            buf.putDouble(m.value);
+            putBoolean(buf, m.hasValue);
+        } else if (o instanceof RecordTemperature) {
+            RecordTemperature m = (RecordTemperature) o;
+            putVarLong(buf, m.requestId);
+            buf.putDouble(m.value);
+        } else if (o instanceof TemperatureRecorded) {
+            putVarLong(buf, ((TemperatureRecorded) o).requestId);
+        } else if (o instanceof RecordTemperatureBatch) {
+            RecordTemperatureBatch m = (RecordTemperatureBatch) o;
+            putString(buf, m.groupId);
+            putString(buf, m.deviceId);
+            putVarInt(buf, m.values.length);
+            for (int i = 0; i < m.values.length; i++) {
+                putVarLong(buf, m.requestIds[i]);
+                buf.putDouble(m.values[i]);
+            }
+            putBoolean(buf, m.acknowledge);
+        } else if (o instanceof TemperatureBatchRecorded) {
+            putVarLong(buf, ((TemperatureBatchRecorded) o).highestRequestId);
+        } else if (o instanceof TemperatureBatchDropped) {
+            TemperatureBatchDropped m = (TemperatureBatchDropped) o;
+            putString(buf, m.groupId);
+            putString(buf, m.deviceId);
+            putVarLong(buf, m.highestRequestId);
+        } else if (o instanceof Overloaded) {
+            putVarLong(buf, ((Overloaded) o).requestId);
+        } else if (o instanceof ReadTemperatureStats) {
+            ReadTemperatureStats m = (ReadTemperatureStats) o;
+            putVarLong(buf, m.requestId);
+            putVarLong(buf, m.windowMillis);
+            putDoubles(buf, m.percentiles);
+        } else if (o instanceof RespondTemperatureStats) {
+            RespondTemperatureStats m = (RespondTemperatureStats) o;
+            putVarLong(buf, m.requestId);
+            putVarInt(buf, m.count);
+            buf.putDouble(m.min);
+            buf.putDouble(m.max);
+            buf.putDouble(m.average);
+            putDoubles(buf, m.percentiles);
+        } else if (o instanceof RecordDeviceTemperature) {
+            RecordDeviceTemperature m = (RecordDeviceTemperature) o;
+            putString(buf, m.deviceId);
+            putVarLong(buf, m.requestId);
+            buf.putDouble(m.value);
+        } else if (o instanceof ReadDeviceTemperature) {
+            ReadDeviceTemperature m = (ReadDeviceTemperature) o;
+            putString(buf, m.deviceId);
+            putVarLong(buf, m.requestId);
+        } else if (o instanceof PromoteDevice) {
+            putString(buf, ((PromoteDevice) o).deviceId);
+        } else if (o instanceof RequestDeviceList) {
+            putVarLong(buf, ((RequestDeviceList) o).requestId);
+        } else if (o instanceof ReplyDeviceList) {
+            ReplyDeviceList m = (ReplyDeviceList) o;
+            putVarLong(buf, m.requestId);
+            putStrings(buf, m.ids);
+        } else if (o instanceof RequestDeviceListPage) {
+            RequestDeviceListPage m = (RequestDeviceListPage) o;
+            putVarLong(buf, m.requestId);
+            putString(buf, m.prefix);
+            putNullableString(buf, m.afterId);
+            putVarInt(buf, m.limit);
+        } else if (o instanceof ReplyDeviceListPage) {
+            ReplyDeviceListPage m = (ReplyDeviceListPage) o;
+            putVarLong(buf, m.requestId);
+            putStrings(buf, m.ids);
+            putNullableString(buf, m.nextAfterId);
+        } else if (o instanceof RequestAllTemperatures) {
+            putVarLong(buf, ((RequestAllTemperatures) o).requestId);
+        } else if (o instanceof RespondAllTemperatures) {
+            RespondAllTemperatures m = (RespondAllTemperatures) o;
+            putVarLong(buf, m.requestId);
+            putVarInt(buf, m.temperatures.size());
+            for (Map.Entry<String, TemperatureReading> entry : m.temperatures.entrySet()) {
+                putString(buf, entry.getKey());
+                putReading(buf, entry.getValue());
+            }
+        } else if (o instanceof Temperature) {
+            buf.putDouble(((Temperature) o).value);
+        } else if (o instanceof TemperatureNotAvailable || o instanceof DeviceNotAvailable
+                || o instanceof DeviceTimedOut
+                || o instanceof TemperaturesSubscribed || o instanceof UnsubscribeTemperatures) {
+            // No fields
+        } else if (o instanceof RequestTrackDevice) {
+            RequestTrackDevice m = (RequestTrackDevice) o;
+            putString(buf, m.groupId);
+            putString(buf, m.deviceId);
+            putVarLong(buf, m.requestId);
+        } else if (o instanceof DeviceRegistered) {
+            putVarLong(buf, ((DeviceRegistered) o).requestId);
+        } else if (o instanceof GroupMessage) {
+            putGroupMessage(buf, (GroupMessage) o);
+        } else if (o instanceof ProvisionDevices) {
+            ProvisionDevices m = (ProvisionDevices) o;
+            putVarLong(buf, m.requestId);
+            putVarInt(buf, m.devicesByGroup.size());
+            for (Map.Entry<String, List<String>> group : m.devicesByGroup.entrySet()) {
+                putString(buf, group.getKey());
+                putStrings(buf, group.getValue());
+            }
+        } else if (o instanceof ProvisioningProgress) {
+            ProvisioningProgress m = (ProvisioningProgress) o;
+            putVarLong(buf, m.requestId);
+            putVarInt(buf, m.devicesDone);
+            putVarInt(buf, m.devicesTotal);
+            putVarLong(buf, m.elapsedMillis);
+        } else if (o instanceof DevicesProvisioned) {
+            DevicesProvisioned m = (DevicesProvisioned) o;
+            putVarLong(buf, m.requestId);
+            putVarInt(buf, m.groups);
+            putVarInt(buf, m.devices);
+            putVarInt(buf, m.created);
+            putVarLong(buf, m.elapsedMillis);
+        } else if (o instanceof ProvisioningTimedOut) {
+            ProvisioningTimedOut m = (ProvisioningTimedOut) o;
+            putVarLong(buf, m.requestId);
+            putVarInt(buf, m.devicesDone);
+            putVarInt(buf, m.devicesTotal);
+            putVarInt(buf, m.missingBatches.size());
+            for (Map.Entry<String, Integer> group : m.missingBatches.entrySet()) {
+                putString(buf, group.getKey());
+                putVarInt(buf, group.getValue());
+            }
+        } else if (o instanceof ProvisionGroupDevices) {
+            ProvisionGroupDevices m = (ProvisionGroupDevices) o;
+            putString(buf, m.groupId);
+            putStrings(buf, m.deviceIds);
+        } else if (o instanceof GroupDevicesProvisioned) {
+            GroupDevicesProvisioned m = (GroupDevicesProvisioned) o;
+            putString(buf, m.groupId);
+            putVarInt(buf, m.requested);
+            putVarInt(buf, m.created);
+        } else if (o instanceof DeviceThreshold) {
+            DeviceThreshold m = (DeviceThreshold) o;
+            putString(buf, m.id);
+            putNullableString(buf, m.groupId);
+            putBoolean(buf, m.above);
+            buf.putDouble(m.threshold);
+            putVarLong(buf, m.forMillis);
+        } else if (o instanceof GroupAverageRising) {
+            GroupAverageRising m = (GroupAverageRising) o;
+            putString(buf, m.id);
+            putNullableString(buf, m.groupId);
+            buf.putDouble(m.perMinute);
+            putVarLong(buf, m.windowMillis);
+        } else if (o instanceof Alert) {
+            Alert m = (Alert) o;
+            putString(buf, m.ruleId);
+            putString(buf, m.groupId);
+            putNullableString(buf, m.deviceId);
+            putBoolean(buf, m.raised);
+            buf.putDouble(m.value);
+            putVarLong(buf, m.timestamp);
+        } else if (o instanceof SubscribeTemperatures) {
+            SubscribeTemperatures m = (SubscribeTemperatures) o;
+            putVarInt(buf, m.bufferSize);
+            buf.put((byte) m.overflow.ordinal());
+        } else if (o instanceof RequestTemperatureUpdates) {
+            putVarLong(buf, ((RequestTemperatureUpdates) o).n);
+        } else if (o instanceof TemperatureUpdate) {
+            TemperatureUpdate m = (TemperatureUpdate) o;
+            putString(buf, m.groupId);
+            putString(buf, m.deviceId);
+            putVarLong(buf, m.requestId);
+            buf.putDouble(m.value);
+            putVarLong(buf, m.timestamp);
+        } else if (o instanceof TemperatureUpdatesDropped) {
+            putVarLong(buf, ((TemperatureUpdatesDropped) o).count);
+        } else if (o instanceof RequestRollup) {
+            RequestRollup m = (RequestRollup) o;
+            putVarLong(buf, m.requestId);
+            putDoubles(buf, m.percentiles);
+        } else if (o instanceof RespondRollup) {
+            RespondRollup m = (RespondRollup) o;
+            putVarLong(buf, m.requestId);
+            putVarLong(buf, m.count);
+            buf.putDouble(m.min);
+            buf.putDouble(m.max);
+            buf.putDouble(m.average);
+            putDoubles(buf, m.percentiles);
+        } else {
+            throw new IllegalArgumentException("Cannot serialize " + o.getClass().getName() + " with " +
+                    getClass().getName());
+        }
+    }
+
+    @Override
+    public Object fromBinary(ByteBuffer buf, String manifest) throws NotSerializableException {
+        switch (manifest) {
+            case READ_TEMPERATURE:
+                return new ReadTemperature(getVarLong(buf));
+            case RESPOND_TEMPERATURE:
+                return new RespondTemperature(getVarLong(buf), buf.getDouble(), getBoolean(buf));
+            case RECORD_TEMPERATURE:
+                return new RecordTemperature(getVarLong(buf), buf.getDouble());
+            case TEMPERATURE_RECORDED:
+                return new TemperatureRecorded(getVarLong(buf));
+            case RECORD_TEMPERATURE_BATCH: {
+                String groupId = getString(buf);
+                String deviceId = getString(buf);
+                int n = getVarInt(buf);
+                long[] requestIds = new long[n];
+                double[] values = new double[n];
+                for (int i = 0; i < n; i++) {
+                    requestIds[i] = getVarLong(buf);
+                    values[i] = buf.getDouble();
+                }
+                return new RecordTemperatureBatch(groupId, deviceId, requestIds, values, getBoolean(buf));
+            }
+            case TEMPERATURE_BATCH_RECORDED:
+                return new TemperatureBatchRecorded(getVarLong(buf));
+            case TEMPERATURE_BATCH_DROPPED:
+                return new TemperatureBatchDropped(getString(buf), getString(buf), getVarLong(buf));
+            case OVERLOADED:
+                return new Overloaded(getVarLong(buf));
+            case READ_TEMPERATURE_STATS:
+                return new ReadTemperatureStats(getVarLong(buf), getVarLong(buf), getDoubles(buf));
+            case RESPOND_TEMPERATURE_STATS:
+                return new RespondTemperatureStats(getVarLong(buf), getVarInt(buf), buf.getDouble(),
+                        buf.getDouble(), buf.getDouble(), getDoubles(buf));
+            case RECORD_DEVICE_TEMPERATURE:
+                return new RecordDeviceTemperature(getString(buf), getVarLong(buf), buf.getDouble());
+            case READ_DEVICE_TEMPERATURE:
+                return new ReadDeviceTemperature(getString(buf), getVarLong(buf));
+            case PROMOTE_DEVICE:
+                return new PromoteDevice(getString(buf));
+            case REQUEST_DEVICE_LIST:
+                return new RequestDeviceList(getVarLong(buf));
+            case REPLY_DEVICE_LIST: {
+                long requestId = getVarLong(buf);
+                List<String> ids = getStrings(buf);
+                ids.sort(null);
+                return new ReplyDeviceList(requestId, DeviceIdSet.EMPTY.withAll(ids));
+            }
+            case REQUEST_DEVICE_LIST_PAGE:
+                return new RequestDeviceListPage(getVarLong(buf), getString(buf), getNullableString(buf),
+                        getVarInt(buf));
+            case REPLY_DEVICE_LIST_PAGE:
+                return new ReplyDeviceListPage(getVarLong(buf), getStrings(buf), getNullableString(buf));
+            case REQUEST_ALL_TEMPERATURES:
+                return new RequestAllTemperatures(getVarLong(buf));
+            case RESPOND_ALL_TEMPERATURES: {
+                long requestId = getVarLong(buf);
+                int n = getVarInt(buf);
+                Map<String, TemperatureReading> temperatures = new HashMap<>(n * 4 / 3 + 1);
+                for (int i = 0; i < n; i++) {
+                    temperatures.put(getString(buf), getReading(buf));
+                }
+                return new RespondAllTemperatures(requestId, temperatures);
+            }
+            case TEMPERATURE:
+                return new Temperature(buf.getDouble());
+            case TEMPERATURE_NOT_AVAILABLE:
+                return TemperatureNotAvailable.INSTANCE;
+            case DEVICE_NOT_AVAILABLE:
+                return DeviceNotAvailable.INSTANCE;
+            case DEVICE_TIMED_OUT:
+                return DeviceTimedOut.INSTANCE;
+            case REQUEST_TRACK_DEVICE:
+                return new RequestTrackDevice(getString(buf), getString(buf), getVarLong(buf));
+            case DEVICE_REGISTERED:
+                return new DeviceRegistered(getVarLong(buf));
+            case GROUP_MESSAGE:
+                return getGroupMessage(buf);
+            case PROVISION_DEVICES: {
+                long requestId = getVarLong(buf);
+                int groups = getVarInt(buf);
+                Map<String, List<String>> devicesByGroup = new LinkedHashMap<>(groups * 4 / 3 + 1);
+                for (int i = 0; i < groups; i++) {
+                    devicesByGroup.put(getString(buf), getStrings(buf));
+                }
+                return new ProvisionDevices(requestId, devicesByGroup);
+            }
+            case PROVISIONING_PROGRESS:
+                return new ProvisioningProgress(getVarLong(buf), getVarInt(buf), getVarInt(buf), getVarLong(buf));
+            case DEVICES_PROVISIONED:
+                return new DevicesProvisioned(getVarLong(buf), getVarInt(buf), getVarInt(buf), getVarInt(buf),
+                        getVarLong(buf));
+            case PROVISIONING_TIMED_OUT: {
+                long requestId = getVarLong(buf);
+                int devicesDone = getVarInt(buf);
+                int devicesTotal = getVarInt(buf);
+                int groups = getVarInt(buf);
+                Map<String, Integer> missingBatches = new LinkedHashMap<>(groups * 4 / 3 + 1);
+                for (int i = 0; i < groups; i++) {
+                    missingBatches.put(getString(buf), getVarInt(buf));
+                }
+                return new ProvisioningTimedOut(requestId, devicesDone, devicesTotal, missingBatches);
+            }
+            case PROVISION_GROUP_DEVICES:
+                return new ProvisionGroupDevices(getString(buf), getStrings(buf));
+            case GROUP_DEVICES_PROVISIONED:
+                return new GroupDevicesProvisioned(getString(buf), getVarInt(buf), getVarInt(buf));
+            case DEVICE_THRESHOLD:
+                return new DeviceThreshold(getString(buf), getNullableString(buf), getBoolean(buf), buf.getDouble(),
+                        getVarLong(buf));
+            case GROUP_AVERAGE_RISING:
+                return new GroupAverageRising(getString(buf), getNullableString(buf), buf.getDouble(),
+                        getVarLong(buf));
+            case ALERT:
+                return new Alert(getString(buf), getString(buf), getNullableString(buf), getBoolean(buf),
+                        buf.getDouble(), getVarLong(buf));
+            case SUBSCRIBE_TEMPERATURES:
+                return new SubscribeTemperatures(getVarInt(buf), OverflowPolicy.values()[buf.get()]);
+            case TEMPERATURES_SUBSCRIBED:
+                return TemperaturesSubscribed.INSTANCE;
+            case REQUEST_TEMPERATURE_UPDATES:
+                return new RequestTemperatureUpdates(getVarLong(buf));
+            case UNSUBSCRIBE_TEMPERATURES:
+                return UnsubscribeTemperatures.INSTANCE;
+            case TEMPERATURE_UPDATE:
+                return new TemperatureUpdate(getString(buf), getString(buf), getVarLong(buf), buf.getDouble(),
+                        getVarLong(buf));
+            case TEMPERATURE_UPDATES_DROPPED:
+                return new TemperatureUpdatesDropped(getVarLong(buf));
+            case REQUEST_ROLLUP:
+                return new RequestRollup(getVarLong(buf), getDoubles(buf));
+            case RESPOND_ROLLUP:
+                return new RespondRollup(getVarLong(buf), getVarLong(buf), buf.getDouble(), buf.getDouble(),
+                        buf.getDouble(), getDoubles(buf));
+            default:
+                throw new NotSerializableException("Unknown manifest " + manifest + " for " + getClass().getName());
+        }
+    }
+
+    // The group id, then the serializer id and manifest of the message; messages of this
+    // serializer follow inline, others as a length-prefixed byte array
+    private void putGroupMessage(ByteBuffer buf, GroupMessage m) {
+        putString(buf, m.groupId);
+        Serializer serializer = serialization().findSerializerFor(m.message);
+        putVarInt(buf, serializer.identifier());
+        putString(buf, Serializers.manifestFor(serializer, m.message));
+        if (serializer.identifier() == IDENTIFIER) {
+            toBinary(m.message, buf);
+        } else {
+            byte[] bytes = serializer.toBinary(m.message);
+            putVarInt(buf, bytes.length);
+            buf.put(bytes);
+        }
+    }
+
+    private GroupMessage getGroupMessage(ByteBuffer buf) throws NotSerializableException {
+        String groupId = getString(buf);
+        int serializerId = getVarInt(buf);
+        String manifest = getString(buf);
+        if (serializerId == IDENTIFIER) {
+            return new GroupMessage(groupId, fromBinary(buf, manifest));
+        }
+        byte[] bytes = new byte[getVarInt(buf)];
+        buf.get(bytes);
+        return new GroupMessage(groupId, serialization().deserialize(bytes, serializerId, manifest).get());
+    }
+
+    private Serialization serialization() {
+        Serialization s = serialization;
+        if (s == null) {
+            s = SerializationExtension.get(system);
+            serialization = s;
+        }
+        return s;
+    }
+
+    private static void putReading(ByteBuffer buf, TemperatureReading reading) {
+        if (reading instanceof Temperature) {
+            buf.put(READING_TEMPERATURE);
+            buf.putDouble(((Temperature) reading).value);
+        } else if (reading instanceof TemperatureNotAvailable) {
+            buf.put(READING_NOT_AVAILABLE);
+        } else if (reading instanceof DeviceNotAvailable) {
+            buf.put(READING_DEVICE_NOT_AVAILABLE);
+        } else if (reading instanceof DeviceTimedOut) {
+            buf.put(READING_DEVICE_TIMED_OUT);
+        } else {
+            throw new IllegalArgumentException("Unknown temperature reading " + reading);
+        }
+    }
+
+    private static TemperatureReading getReading(ByteBuffer buf) throws NotSerializableException {
+        byte tag = buf.get();
+        switch (tag) {
+            case READING_TEMPERATURE:
+                return new Temperature(buf.getDouble());
+            case READING_NOT_AVAILABLE:
+                return TemperatureNotAvailable.INSTANCE;
+            case READING_DEVICE_NOT_AVAILABLE:
+                return DeviceNotAvailable.INSTANCE;
+            case READING_DEVICE_TIMED_OUT:
+                return DeviceTimedOut.INSTANCE;
+            default:
+                throw new NotSerializableException("Unknown temperature reading tag " + tag);
+        }
+    }
+
+    static void putVarLong(ByteBuffer buf, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void putVarInt(ByteBuffer buf, int value) {
+        putVarLong(buf, value & 0xffffffffL);
+    }
+
+    private static int getVarInt(ByteBuffer buf) {
+        return (int) getVarLong(buf);
+    }
+
+    private static void putBoolean(ByteBuffer buf, boolean value) {
+        buf.put(value ? (byte) 1 : (byte) 0);
+    }
+
+    private static boolean getBoolean(ByteBuffer buf) {
+        return buf.get() != 0;
+    }
+
+    private static void putDoubles(ByteBuffer buf, double[] values) {
+        putVarInt(buf, values.length);
+        for (double value : values) {
+            buf.putDouble(value);
+        }
+    }
+
+    private static double[] getDoubles(ByteBuffer buf) {
+        double[] values = new double[getVarInt(buf)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buf.getDouble();
+        }
+        return values;
+    }
+
+    private static void putStrings(ByteBuffer buf, java.util.Collection<String> values) {
+        putVarInt(buf, values.size());
+        for (String value : values) {
+            putString(buf, value);
+        }
+    }
+
+    private static List<String> getStrings(ByteBuffer buf) {
+        int n = getVarInt(buf);
+        List<String> values = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            values.add(getString(buf));
+        }
+        return values;
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        putVarInt(buf, utf8Length(s));
+        putUtf8(buf, s);
+    }
+
+    private static void putNullableString(ByteBuffer buf, String s) {
+        if (s == null) {
+            buf.put((byte) 0);
+        } else {
+            putVarInt(buf, utf8Length(s) + 1);
+            putUtf8(buf, s);
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        return utf8(buf, getVarInt(buf));
+    }
+
+    private static String getNullableString(ByteBuffer buf) {
+        int length = getVarInt(buf);
+        return length == 0 ? null : utf8(buf, length - 1);
+    }
+
+    // Heap buffers are decoded in place, direct ones through a copy
+    private static String utf8(ByteBuffer buf, int length) {
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Encodes without an intermediate byte array, as DeviceJournal does
+    private static void putUtf8(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xc0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c)) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xf0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                buf.put((byte) (0x80 | (cp & 0x3f)));
+            } else {
+                buf.put((byte) (0xe0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buf.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+}
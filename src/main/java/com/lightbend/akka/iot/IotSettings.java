@@ -0,0 +1,149 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionId;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+final class IotSettings implements Extension {
+
+    private static final ExtensionId<IotSettings> ID = new AbstractExtensionId<IotSettings>() {
+        @Override
+        public IotSettings createExtension(ExtendedActorSystem system) {
+            return new IotSettings(system.settings().config().getConfig("iot"));
+        }
+    };
+
+    static IotSettings get(ActorSystem system) {
+        return ID.get(system);
+    }
+
+    final int deviceHistoryCapacity;
+    // Zero when passivation is off
+    final FiniteDuration devicePassivateAfter;
+    final int managerShards;
+    final FiniteDuration groupQueryTimeout;
+    // Zero when group snapshots are not cached
+    final FiniteDuration groupSnapshotTtl;
+    final FiniteDuration groupReportInterval;
+    final boolean compactGroups;
+    // Zero when rollups are off
+    final FiniteDuration rollupInterval;
+    final FiniteDuration clientTimeout;
+    final boolean persistenceEnabled;
+    final Path persistenceDirectory;
+    final int journalSegmentSize;
+    final FiniteDuration journalFlushInterval;
+    final int snapshotAfterSegments;
+    final boolean ingestEnabled;
+    final String ingestInterface;
+    final int ingestPort;
+    final int ingestBufferSize;
+    final int ingestMaxPooledBuffers;
+    final int ingestMaxBatchesInFlight;
+    final int ingestMaxTrackedDevices;
+    // Empty when nothing is provisioned at start
+    final String provisioningFile;
+    final int provisioningBatchSize;
+    final FiniteDuration provisioningProgressInterval;
+    final FiniteDuration provisioningTimeout;
+    final boolean clusterEnabled;
+    final int clusterShards;
+    // Empty when every node hosts groups
+    final String clusterRole;
+    // Backoff and restart budget for BackoffSupervisorStrategy, per supervised tier
+    final Config managerSupervision;
+    final Config groupSupervision;
+    final Config deviceSupervision;
+    // Config paths of the dispatcher and mailbox of each tier, empty for Akka's defaults
+    final String managerDispatcher;
+    final String managerMailbox;
+    final String groupDispatcher;
+    final String groupMailbox;
+    final String deviceDispatcher;
+    final String deviceMailbox;
+
+    IotSettings(Config config) {
+        this.deviceHistoryCapacity = config.getInt("device.history-capacity");
+        this.devicePassivateAfter = "off".equals(config.getString("device.passivate-after"))
+                ? FiniteDuration.create(0L, TimeUnit.MILLISECONDS)
+                : duration(config, "device.passivate-after");
+        int shards = config.getInt("manager.shards");
+        this.managerShards = shards > 0 ? shards : Runtime.getRuntime().availableProcessors();
+        this.groupQueryTimeout = duration(config, "group.query-timeout");
+        this.groupSnapshotTtl = "off".equals(config.getString("group.snapshot-ttl"))
+                ? FiniteDuration.create(0L, TimeUnit.MILLISECONDS)
+                : duration(config, "group.snapshot-ttl");
+        this.groupReportInterval = duration(config, "group.report-interval");
+        this.compactGroups = config.getBoolean("group.compact");
+        this.rollupInterval = "off".equals(config.getString("rollup.interval"))
+                ? FiniteDuration.create(0L, TimeUnit.MILLISECONDS)
+                : duration(config, "rollup.interval");
+        this.clientTimeout = duration(config, "client.timeout");
+        this.persistenceEnabled = config.getBoolean("persistence.enabled");
+        this.persistenceDirectory = Paths.get(config.getString("persistence.directory"));
+        this.journalSegmentSize = config.getBytes("persistence.segment-size").intValue();
+        this.journalFlushInterval = duration(config, "persistence.flush-interval");
+        this.snapshotAfterSegments = config.getInt("persistence.snapshot-after-segments");
+        this.ingestEnabled = config.getBoolean("ingest.enabled");
+        this.ingestInterface = config.getString("ingest.interface");
+        this.ingestPort = config.getInt("ingest.port");
+        this.ingestBufferSize = config.getBytes("ingest.buffer-size").intValue();
+        this.ingestMaxPooledBuffers = config.getInt("ingest.max-pooled-buffers");
+        this.ingestMaxBatchesInFlight = config.getInt("ingest.max-batches-in-flight");
+        this.ingestMaxTrackedDevices = config.getInt("ingest.max-tracked-devices");
+        this.provisioningFile = config.getString("provisioning.file");
+        this.provisioningBatchSize = config.getInt("provisioning.batch-size");
+        this.provisioningProgressInterval = duration(config, "provisioning.progress-interval");
+        this.provisioningTimeout = duration(config, "provisioning.timeout");
+        if (provisioningBatchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "iot.provisioning.batch-size must be above 0, got " + provisioningBatchSize);
+        }
+        this.clusterEnabled = config.getBoolean("cluster.enabled");
+        this.clusterShards = config.getInt("cluster.shards");
+        this.clusterRole = config.getString("cluster.role");
+        this.managerSupervision = config.getConfig("supervision.manager");
+        this.groupSupervision = config.getConfig("supervision.group");
+        this.deviceSupervision = config.getConfig("supervision.device");
+        this.managerDispatcher = config.getString("manager.dispatcher");
+        this.managerMailbox = config.getString("manager.mailbox");
+        this.groupDispatcher = config.getString("group.dispatcher");
+        this.groupMailbox = config.getString("group.mailbox");
+        this.deviceDispatcher = config.getString("device.dispatcher");
+        this.deviceMailbox = config.getString("device.mailbox");
+    }
+
+    // Puts actors of the given tier on the dispatcher and mailbox configured for it
+    Props deploy(Props props, IotMetrics.Tier tier) {
+        String dispatcher;
+        String mailbox;
+        switch (tier) {
+            case MANAGER:
+                dispatcher = managerDispatcher;
+                mailbox = managerMailbox;
+                break;
+            case GROUP:
+                dispatcher = groupDispatcher;
+                mailbox = groupMailbox;
+                break;
+            default:
+                dispatcher = deviceDispatcher;
+                mailbox = deviceMailbox;
+        }
+        Props deployed = dispatcher.isEmpty() ? props : props.withDispatcher(dispatcher);
+        return mailbox.isEmpty() ? deployed : deployed.withMailbox(mailbox);
+    }
+
+    private static FiniteDuration duration(Config config, String path) {
+        return FiniteDuration.create(config.getDuration(path, TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,30 +1,105 @@
 package com.lightbend.akka.iot;
 
 import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import com.lightbend.akka.iot.DeviceJournal.DeviceState;
+import com.lightbend.akka.iot.DeviceManager.DevicesProvisioned;
+import com.lightbend.akka.iot.DeviceManager.ProvisionDevices;
+import com.lightbend.akka.iot.DeviceManager.ProvisioningProgress;
+import com.lightbend.akka.iot.DeviceManager.ProvisioningTimedOut;
+import com.lightbend.akka.iot.DeviceManager.RecoverGroup;
+import com.lightbend.akka.iot.TemperatureRollup.RequestRollup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Map;
 
 public class IotSupervisor extends AbstractActor {
     private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+    private IngestServer ingestServer;
+    private ActorRef deviceManager;
+    // Merged from the rollups of the DeviceManager shards
+    private final TemperatureRollup fleetRollup = new TemperatureRollup();
+    private final boolean clusterEnabled = IotSettings.get(getContext().getSystem()).clusterEnabled;
 
     public static Props props() {
         return Props.create(IotSupervisor.class, IotSupervisor::new);
     }
 
     @Override
-    public void preStart() {
+    public void preStart() throws IOException {
         log.info("IoT Application started");
+        IotSettings settings = IotSettings.get(getContext().getSystem());
+        IotMetrics metrics = IotMetrics.get(getContext().getSystem());
+        if (settings.clusterEnabled) {
+            deviceManager = ClusterDeviceRegistry.start(getContext().getSystem());
+        } else {
+            Props shardProps = settings.deploy(DeviceManager.shardProps(getSelf()), IotMetrics.Tier.MANAGER);
+            deviceManager = getContext().actorOf(DeviceManager.shardedProps(getContext().getSystem(),
+                    settings.managerShards, metrics.meter(shardProps, IotMetrics.Tier.MANAGER)),
+                    "device-manager");
+        }
+        if (settings.persistenceEnabled && settings.clusterEnabled) {
+            log.warning("Journaled groups are not recovered in cluster mode");
+        } else if (settings.persistenceEnabled) {
+            Map<String, Map<String, DeviceState>> recovered =
+                    DeviceJournal.get(getContext().getSystem()).takeRecoveredState();
+            recovered.forEach((groupId, devices) ->
+                    deviceManager.tell(new RecoverGroup(groupId, devices), getSelf()));
+            log.info("Recovering {} device groups from the journal", recovered.size());
+        }
+        if (!settings.provisioningFile.isEmpty()) {
+            ProvisionDevices provision = ProvisionDevices.fromFile(0L, Paths.get(settings.provisioningFile));
+            getContext().actorOf(DeviceProvisioning.props(deviceManager, provision, getSelf()), "provisioning");
+        }
+        if (settings.ingestEnabled) {
+            ingestServer = IngestServer.start(getContext().getSystem(), deviceManager,
+                    new InetSocketAddress(settings.ingestInterface, settings.ingestPort));
+            log.info("Accepting temperature readings on {}", ingestServer.localAddress());
+        }
     }
 
     @Override
     public void postStop() {
+        if (ingestServer != null) {
+            ingestServer.close();
+        }
         log.info("IoT Application stopped");
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
+                .match(ProvisionDevices.class, p ->
+                        getContext().actorOf(DeviceProvisioning.props(deviceManager, p, getSender())))
+                // Progress and results of provisioning at start, which DeviceProvisioning logs
+                .match(ProvisioningProgress.class, p -> {
+                })
+                .match(DevicesProvisioned.class, p -> {
+                })
+                .match(ProvisioningTimedOut.class, p -> {
+                })
+                .match(RequestDeviceRegistry.class, r -> getSender().tell(deviceManager, getSelf()))
+                .match(TemperatureRollup.class, fleetRollup::merge)
+                .match(RequestRollup.class, r -> {
+                    if (clusterEnabled) {
+                        log.warning("Fleet rollups are not kept in cluster mode, ask each group instead");
+                    }
+                    getSender().tell(fleetRollup.respond(r), getSelf());
+                })
                 .build();
     }
+
+    // Answered with the ActorRef that takes RequestTrackDevice and GroupMessage: the
+    // DeviceManager router, or the shard region in cluster mode
+    static final class RequestDeviceRegistry {
+        static final RequestDeviceRegistry INSTANCE = new RequestDeviceRegistry();
+
+        private RequestDeviceRegistry() {
+        }
+    }
 }
@@ -0,0 +1,220 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.IotMetrics.GroupDevices;
+import com.lightbend.akka.iot.IotMetrics.Tier;
+import com.lightbend.akka.iot.IotMetrics.TierMetrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Registers one MXBean per actor tier, one for the group device counts, one for the
+// group snapshot caches and one for load shedding under
+// com.lightbend.akka.iot:system=<actor system name>
+final class JmxMetricsReporter implements MetricsReporter {
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final List<ObjectName> registered = new ArrayList<>();
+
+    @Override
+    public void start(ActorSystem system, IotMetrics metrics) throws JMException {
+        String domain = "com.lightbend.akka.iot:system=" + ObjectName.quote(system.name());
+        for (Tier tier : Tier.values()) {
+            register(new TierBean(metrics.tier(tier)), domain + ",type=Tier,name=" + tier.label);
+        }
+        register(new GroupsBean(metrics), domain + ",type=Groups");
+        register(new SnapshotsBean(metrics.snapshots()), domain + ",type=Snapshots");
+        register(new SheddingBean(metrics.shedding()), domain + ",type=Shedding");
+    }
+
+    private void register(Object bean, String name) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        server.registerMBean(bean, objectName);
+        registered.add(objectName);
+    }
+
+    @Override
+    public void stop() {
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone
+            }
+        }
+        registered.clear();
+    }
+
+    public interface TierMXBean {
+        long getMessages();
+
+        double getMessagesPerSecond();
+
+        long getMailboxDepth();
+
+        double getLatencyP50Micros();
+
+        double getLatencyP99Micros();
+
+        double getLatencyP999Micros();
+
+        double getLatencyMaxMicros();
+
+        long getRestarts();
+
+        long getBackoffs();
+
+        long getRestartBudgetsExhausted();
+    }
+
+    public interface GroupsMXBean {
+        Map<String, Integer> getDevices();
+
+        Map<String, Integer> getDeviceActors();
+    }
+
+    public interface SnapshotsMXBean {
+        long getHits();
+
+        long getMisses();
+
+        long getCoalesced();
+    }
+
+    public interface SheddingMXBean {
+        long getCollapsed();
+
+        long getRejected();
+    }
+
+    private static final class TierBean implements TierMXBean {
+        private final TierMetrics metrics;
+
+        TierBean(TierMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getMessages() {
+            return metrics.messages();
+        }
+
+        @Override
+        public double getMessagesPerSecond() {
+            return metrics.messagesPerSecond();
+        }
+
+        @Override
+        public long getMailboxDepth() {
+            return metrics.mailboxDepth();
+        }
+
+        @Override
+        public double getLatencyP50Micros() {
+            return metrics.latency().valueAtPercentile(50.0) / 1000.0;
+        }
+
+        @Override
+        public double getLatencyP99Micros() {
+            return metrics.latency().valueAtPercentile(99.0) / 1000.0;
+        }
+
+        @Override
+        public double getLatencyP999Micros() {
+            return metrics.latency().valueAtPercentile(99.9) / 1000.0;
+        }
+
+        @Override
+        public double getLatencyMaxMicros() {
+            return metrics.latency().max() / 1000.0;
+        }
+
+        @Override
+        public long getRestarts() {
+            return metrics.restarts();
+        }
+
+        @Override
+        public long getBackoffs() {
+            return metrics.backoffs();
+        }
+
+        @Override
+        public long getRestartBudgetsExhausted() {
+            return metrics.restartBudgetsExhausted();
+        }
+    }
+
+    private static final class SnapshotsBean implements SnapshotsMXBean {
+        private final IotMetrics.SnapshotMetrics metrics;
+
+        SnapshotsBean(IotMetrics.SnapshotMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getHits() {
+            return metrics.hits();
+        }
+
+        @Override
+        public long getMisses() {
+            return metrics.misses();
+        }
+
+        @Override
+        public long getCoalesced() {
+            return metrics.coalesced();
+        }
+    }
+
+    private static final class SheddingBean implements SheddingMXBean {
+        private final IotMetrics.SheddingMetrics metrics;
+
+        SheddingBean(IotMetrics.SheddingMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getCollapsed() {
+            return metrics.collapsed();
+        }
+
+        @Override
+        public long getRejected() {
+            return metrics.rejected();
+        }
+    }
+
+    private static final class GroupsBean implements GroupsMXBean {
+        private final IotMetrics metrics;
+
+        GroupsBean(IotMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Map<String, Integer> getDevices() {
+            Map<String, Integer> devices = new TreeMap<>();
+            for (Map.Entry<String, GroupDevices> group : metrics.groups().entrySet()) {
+                devices.put(group.getKey(), group.getValue().devices());
+            }
+            return devices;
+        }
+
+        @Override
+        public Map<String, Integer> getDeviceActors() {
+            Map<String, Integer> actors = new TreeMap<>();
+            for (Map.Entry<String, GroupDevices> group : metrics.groups().entrySet()) {
+                actors.put(group.getKey(), group.getValue().actors());
+            }
+            return actors;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.lightbend.akka.iot.IotMetrics.Tier;
+import com.lightbend.akka.iot.IotMetrics.TierMetrics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// Unbounded mailbox that stamps every message on enqueue and reports how long it waited,
+// and how many messages are waiting, to the TierMetrics of the tier named in its config.
+// Configured under iot.metrics.mailboxes and applied by IotMetrics.meter(...). With a
+// mailbox-capacity above 0 it is bounded, and messages that do not fit go to dead letters.
+final class MeteredMailbox implements MailboxType, ProducesMessageQueue<MeteredMailbox.MeteredMessageQueue> {
+
+    private final Tier tier;
+    private final int capacity;
+
+    public MeteredMailbox(ActorSystem.Settings settings, Config config) {
+        this.tier = Tier.valueOf(config.getString("tier").toUpperCase(Locale.ROOT));
+        this.capacity = config.getInt("mailbox-capacity");
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        ActorSystem actorSystem = system.get();
+        return new MeteredMessageQueue(IotMetrics.get(actorSystem).tier(tier), capacity, actorSystem.deadLetters());
+    }
+
+    // Multi-producer single-consumer linked queue (Vyukov). The timestamp lives in the
+    // queue node, so metering costs no allocation beyond the node itself.
+    static final class MeteredMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+
+        private static final AtomicReferenceFieldUpdater<MeteredMessageQueue, Node> TAIL =
+                AtomicReferenceFieldUpdater.newUpdater(MeteredMessageQueue.class, Node.class, "tail");
+
+        private final TierMetrics metrics;
+        // 0 when unbounded, and then count is not kept
+        private final int capacity;
+        private final AtomicInteger count = new AtomicInteger();
+        private final ActorRef deadLetters;
+        // The consumer's stub node; its successor is the next message
+        private volatile Node head;
+        private volatile Node tail;
+
+        MeteredMessageQueue(TierMetrics metrics, int capacity, ActorRef deadLetters) {
+            this.metrics = metrics;
+            this.capacity = capacity;
+            this.deadLetters = deadLetters;
+            this.head = this.tail = new Node(null, 0L);
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            if (capacity > 0 && count.incrementAndGet() > capacity) {
+                count.decrementAndGet();
+                ActorRef sender = handle.sender() != null ? handle.sender() : deadLetters;
+                deadLetters.tell(new DeadLetter(handle.message(), sender, receiver), sender);
+                return;
+            }
+            Node node = new Node(handle, System.nanoTime());
+            metrics.enqueued();
+            TAIL.getAndSet(this, node).next = node;
+        }
+
+        @Override
+        public Envelope dequeue() {
+            Node current = head;
+            Node next = current.next;
+            if (next == null) {
+                if (tail == current) {
+                    return null;
+                }
+                // A producer has swapped the tail but not linked its node yet
+                while ((next = current.next) == null) {
+                    Thread.yield();
+                }
+            }
+            head = next;
+            Envelope envelope = next.envelope;
+            next.envelope = null;
+            if (capacity > 0) {
+                count.decrementAndGet();
+            }
+            metrics.dequeued(System.nanoTime() - next.enqueuedAt);
+            return envelope;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            int count = 0;
+            for (Node node = head.next; node != null; node = node.next) {
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return head != tail;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+
+        private static final class Node {
+            Envelope envelope;
+            final long enqueuedAt;
+            volatile Node next;
+
+            Node(Envelope envelope, long enqueuedAt) {
+                this.envelope = envelope;
+                this.enqueuedAt = enqueuedAt;
+            }
+        }
+    }
+}
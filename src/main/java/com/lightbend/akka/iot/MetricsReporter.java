@@ -0,0 +1,13 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorSystem;
+
+// Publishes IotMetrics. Reporters are listed in iot.metrics.reporters, either as one of
+// the built-in names (jmx, prometheus) or as the name of a class with a public no-arg
+// constructor. They are started with the metrics extension and stopped with the system.
+public interface MetricsReporter {
+
+    void start(ActorSystem system, IotMetrics metrics) throws Exception;
+
+    void stop();
+}
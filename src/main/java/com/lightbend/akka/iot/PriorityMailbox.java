@@ -0,0 +1,236 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.ControlMessage;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.lightbend.akka.iot.Device.Overloaded;
+import com.lightbend.akka.iot.Device.ReadTemperature;
+import com.lightbend.akka.iot.Device.ReadTemperatureStats;
+import com.lightbend.akka.iot.Device.RecordTemperature;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.DeviceGroup.ReadDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RequestAllTemperatures;
+import com.lightbend.akka.iot.DeviceGroup.RequestDeviceList;
+import com.lightbend.akka.iot.DeviceGroup.RequestDeviceListPage;
+import com.lightbend.akka.iot.DeviceGroup.RespondAllTemperatures;
+import com.lightbend.akka.iot.TemperatureRollup.RequestRollup;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Mailbox for devices and groups that lets queries (reads, device lists, group snapshots
+// and rollups) and akka.dispatch.ControlMessages overtake everything else, so they are
+// answered while readings pile up. All other messages keep their order among each other.
+// A query can therefore answer from state that queued readings are about to change.
+//
+// Once more than high-water-mark messages wait behind the queries, readings are shed as
+// configured by shedding: collapse replaces a queued reading of the same device with the
+// new one, reject turns the new one away. Either way the sender of the shed reading gets
+// an Overloaded reply instead of TemperatureRecorded, and the readings are counted in
+// IotMetrics.shedding(). Configured under iot.mailboxes.priority.
+final class PriorityMailbox implements MailboxType, ProducesMessageQueue<PriorityMailbox.PriorityMessageQueue> {
+
+    enum Shedding {
+        OFF, COLLAPSE, REJECT
+    }
+
+    private final int highWaterMark;
+    private final Shedding shedding;
+
+    public PriorityMailbox(ActorSystem.Settings settings, Config config) {
+        this.highWaterMark = config.getInt("high-water-mark");
+        this.shedding = Shedding.valueOf(config.getString("shedding").toUpperCase(Locale.ROOT));
+        if (highWaterMark <= 0) {
+            throw new IllegalArgumentException("PriorityMailbox needs a high-water-mark above 0, got " + highWaterMark);
+        }
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        ActorSystem actorSystem = system.get();
+        return new PriorityMessageQueue(highWaterMark, shedding, IotMetrics.get(actorSystem).shedding(),
+                actorSystem.deadLetters());
+    }
+
+    // Two queues under one lock: producers of a device or group are few and the lock is
+    // held for a few field updates, and collapsing needs to find and replace a queued
+    // reading, which a lock-free queue cannot do.
+    static final class PriorityMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+
+        private final int highWaterMark;
+        private final Shedding shedding;
+        private final IotMetrics.SheddingMetrics metrics;
+        private final ActorRef deadLetters;
+        private final ArrayDeque<Envelope> queries = new ArrayDeque<>();
+        private final ArrayDeque<Slot> ordered = new ArrayDeque<>();
+        // Newest queued reading of each device, kept when collapsing. Only replaced while no
+        // other message was queued after it (same epoch), so a collapsed reading never
+        // overtakes one.
+        private final Map<String, Slot> latest = new HashMap<>();
+        private long epoch;
+        // Id of the device this queue belongs to, from its actor name on its first RecordTemperature
+        private String ownDeviceId;
+        private volatile int size;
+
+        PriorityMessageQueue(int highWaterMark, Shedding shedding, IotMetrics.SheddingMetrics metrics,
+                             ActorRef deadLetters) {
+            this.highWaterMark = highWaterMark;
+            this.shedding = shedding;
+            this.metrics = metrics;
+            this.deadLetters = deadLetters;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            Object message = handle.message();
+            Envelope shed = null;
+            synchronized (this) {
+                String device;
+                if (isQuery(message)) {
+                    queries.add(handle);
+                    size++;
+                } else if ((device = deviceOf(message, receiver)) == null) {
+                    // Readings queued before this message can no longer be collapsed
+                    epoch++;
+                    ordered.add(new Slot(handle, null, epoch));
+                    size++;
+                } else if (ordered.size() >= highWaterMark && shedding == Shedding.REJECT) {
+                    shed = handle;
+                } else if (ordered.size() >= highWaterMark && shedding == Shedding.COLLAPSE
+                        && latest.containsKey(device) && latest.get(device).epoch == epoch) {
+                    Slot queued = latest.get(device);
+                    shed = queued.envelope;
+                    queued.envelope = handle;
+                } else {
+                    Slot slot = new Slot(handle, device, epoch);
+                    ordered.add(slot);
+                    if (shedding == Shedding.COLLAPSE) {
+                        latest.put(device, slot);
+                    }
+                    size++;
+                }
+            }
+            if (shed != null) {
+                shed(shed, receiver, shed == handle);
+            }
+        }
+
+        @Override
+        public Envelope dequeue() {
+            synchronized (this) {
+                Envelope envelope = queries.poll();
+                if (envelope == null) {
+                    Slot slot = ordered.poll();
+                    if (slot == null) {
+                        return null;
+                    }
+                    envelope = slot.envelope;
+                    if (slot.device != null && latest.get(slot.device) == slot) {
+                        latest.remove(slot.device);
+                    }
+                }
+                size--;
+                return envelope;
+            }
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return size;
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return size > 0;
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope envelope;
+            while ((envelope = dequeue()) != null) {
+                deadLetters.enqueue(owner, envelope);
+            }
+        }
+
+        private void shed(Envelope envelope, ActorRef receiver, boolean rejected) {
+            Object message = envelope.message();
+            long requestId;
+            int readings;
+            boolean reply = true;
+            if (message instanceof RecordTemperatureBatch) {
+                RecordTemperatureBatch batch = (RecordTemperatureBatch) message;
+                requestId = batch.highestRequestId();
+                readings = batch.values.length;
+                reply = batch.acknowledge;
+            } else if (message instanceof RecordDeviceTemperature) {
+                requestId = ((RecordDeviceTemperature) message).requestId;
+                readings = 1;
+            } else {
+                requestId = ((RecordTemperature) message).requestId;
+                readings = 1;
+            }
+            if (rejected) {
+                metrics.rejected(readings);
+            } else {
+                metrics.collapsed(readings);
+            }
+            ActorRef sender = envelope.sender();
+            if (reply && sender != null && !sender.equals(deadLetters)) {
+                sender.tell(new Overloaded(requestId), receiver);
+            }
+        }
+
+        private static boolean isQuery(Object message) {
+            return message instanceof ReadTemperature
+                    || message instanceof ReadDeviceTemperature
+                    || message instanceof ReadTemperatureStats
+                    || message instanceof RequestDeviceList
+                    || message instanceof RequestDeviceListPage
+                    || message instanceof RequestAllTemperatures
+                    // Answers the queries waiting for a group's snapshot
+                    || message instanceof RespondAllTemperatures
+                    || message instanceof RequestRollup
+                    || message instanceof ControlMessage;
+        }
+
+        // The id of the device a reading is for, null for any other message
+        private String deviceOf(Object message, ActorRef receiver) {
+            if (message instanceof RecordDeviceTemperature) {
+                return ((RecordDeviceTemperature) message).deviceId;
+            } else if (message instanceof RecordTemperatureBatch) {
+                return ((RecordTemperatureBatch) message).deviceId;
+            } else if (message instanceof RecordTemperature) {
+                // Only a device gets these, for itself
+                if (ownDeviceId == null) {
+                    String name = receiver.path().name();
+                    ownDeviceId = name.startsWith(DeviceGroup.DEVICE_PREFIX)
+                            ? name.substring(DeviceGroup.DEVICE_PREFIX.length()) : name;
+                }
+                return ownDeviceId;
+            }
+            return null;
+        }
+
+        private static final class Slot {
+            Envelope envelope;
+            final String device;
+            final long epoch;
+
+            Slot(Envelope envelope, String device, long epoch) {
+                this.envelope = envelope;
+                this.device = device;
+                this.epoch = epoch;
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorSystem;
+import com.lightbend.akka.iot.IotMetrics.GroupDevices;
+import com.lightbend.akka.iot.IotMetrics.Tier;
+import com.lightbend.akka.iot.IotMetrics.TierMetrics;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Serves the metrics in the Prometheus text format on
+// http://<iot.metrics.prometheus.interface>:<port>/metrics
+final class PrometheusMetricsReporter implements MetricsReporter {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private HttpServer server;
+
+    @Override
+    public void start(ActorSystem system, IotMetrics metrics) throws IOException {
+        Config config = system.settings().config().getConfig("iot.metrics.prometheus");
+        server = HttpServer.create(
+                new InetSocketAddress(config.getString("interface"), config.getInt("port")), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render(metrics).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    InetSocketAddress address() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void stop() {
+        server.stop(0);
+    }
+
+    static String render(IotMetrics metrics) {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP iot_messages_total Messages taken from the mailboxes of an actor tier\n");
+        out.append("# TYPE iot_messages_total counter\n");
+        for (Tier tier : Tier.values()) {
+            sample(out, "iot_messages_total", "tier", tier.label, metrics.tier(tier).messages());
+        }
+        out.append("# HELP iot_mailbox_depth Messages waiting in the mailboxes of an actor tier\n");
+        out.append("# TYPE iot_mailbox_depth gauge\n");
+        for (Tier tier : Tier.values()) {
+            sample(out, "iot_mailbox_depth", "tier", tier.label, metrics.tier(tier).mailboxDepth());
+        }
+        out.append("# HELP iot_message_latency_seconds Time from enqueue until an actor picks a message up\n");
+        out.append("# TYPE iot_message_latency_seconds summary\n");
+        for (Tier tier : Tier.values()) {
+            TierMetrics tierMetrics = metrics.tier(tier);
+            for (double quantile : QUANTILES) {
+                out.append("iot_message_latency_seconds{tier=\"").append(tier.label)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(tierMetrics.latency().valueAtPercentile(quantile * 100.0) / 1e9).append('\n');
+            }
+            sample(out, "iot_message_latency_seconds_sum", "tier", tier.label,
+                    tierMetrics.latency().sum() / 1e9);
+            sample(out, "iot_message_latency_seconds_count", "tier", tier.label, tierMetrics.latency().count());
+        }
+        out.append("# HELP iot_restarts_total Actors of a tier restarted after a failure\n");
+        out.append("# TYPE iot_restarts_total counter\n");
+        for (Tier tier : Tier.values()) {
+            sample(out, "iot_restarts_total", "tier", tier.label, metrics.tier(tier).restarts());
+        }
+        out.append("# HELP iot_restart_backoffs_total Restarts of a tier that waited for a backoff\n");
+        out.append("# TYPE iot_restart_backoffs_total counter\n");
+        for (Tier tier : Tier.values()) {
+            sample(out, "iot_restart_backoffs_total", "tier", tier.label, metrics.tier(tier).backoffs());
+        }
+        out.append("# HELP iot_restart_budgets_exhausted_total Actors of a tier stopped after too many restarts\n");
+        out.append("# TYPE iot_restart_budgets_exhausted_total counter\n");
+        for (Tier tier : Tier.values()) {
+            sample(out, "iot_restart_budgets_exhausted_total", "tier", tier.label,
+                    metrics.tier(tier).restartBudgetsExhausted());
+        }
+        out.append("# HELP iot_group_snapshot_requests_total RequestAllTemperatures by how the group answered\n");
+        out.append("# TYPE iot_group_snapshot_requests_total counter\n");
+        sample(out, "iot_group_snapshot_requests_total", "result", "hit", metrics.snapshots().hits());
+        sample(out, "iot_group_snapshot_requests_total", "result", "miss", metrics.snapshots().misses());
+        sample(out, "iot_group_snapshot_requests_total", "result", "coalesced", metrics.snapshots().coalesced());
+        out.append("# HELP iot_mailbox_shed_readings_total Readings shed by priority mailboxes over their high-water mark\n");
+        out.append("# TYPE iot_mailbox_shed_readings_total counter\n");
+        sample(out, "iot_mailbox_shed_readings_total", "policy", "collapse", metrics.shedding().collapsed());
+        sample(out, "iot_mailbox_shed_readings_total", "policy", "reject", metrics.shedding().rejected());
+        out.append("# HELP iot_group_devices Devices tracked by a group\n");
+        out.append("# TYPE iot_group_devices gauge\n");
+        for (Map.Entry<String, GroupDevices> group : metrics.groups().entrySet()) {
+            sample(out, "iot_group_devices", "group", group.getKey(), group.getValue().devices());
+        }
+        out.append("# HELP iot_group_device_actors Devices of a group that currently have an actor\n");
+        out.append("# TYPE iot_group_device_actors gauge\n");
+        for (Map.Entry<String, GroupDevices> group : metrics.groups().entrySet()) {
+            sample(out, "iot_group_device_actors", "group", group.getKey(), group.getValue().actors());
+        }
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String labelValue, Object value) {
+        out.append(name).append('{').append(label).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append("\"} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,264 @@
+package com.lightbend.akka.iot;
+
+import akka.actor.ActorRef;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Subscribers to the readings of a device (hosted by the Device) or of a whole group
+// (hosted by the group's GroupTemperatureFeed). Delivery is pull based: a subscriber gets
+// at most as many updates as it has asked for with RequestTemperatureUpdates, and the rest
+// wait in a buffer of its own that never holds more than bufferSize updates. When it is
+// full, DROP_OLDEST drops the oldest update and COALESCE keeps only the latest update of
+// each device (and drops the device updated longest ago when more devices than bufferSize
+// are waiting). A slow subscriber therefore costs bounded memory and never holds up the
+// publisher. Each reading is one TemperatureUpdate shared by all subscribers.
+// Not thread safe: owned by a single actor.
+final class TemperatureFeed {
+
+    private final List<Subscription> subscriptions = new ArrayList<>();
+
+    boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    void subscribe(ActorRef subscriber, SubscribeTemperatures s, ActorRef self) {
+        if (find(subscriber) == null) {
+            subscriptions.add(s.overflow == OverflowPolicy.COALESCE
+                    ? new CoalescingSubscription(subscriber, s.bufferSize)
+                    : new RingSubscription(subscriber, s.bufferSize));
+        }
+        subscriber.tell(TemperaturesSubscribed.INSTANCE, self);
+    }
+
+    void request(ActorRef subscriber, long n, ActorRef self) {
+        Subscription subscription = find(subscriber);
+        if (subscription != null && n > 0) {
+            subscription.demand = subscription.demand + n < 0 ? Long.MAX_VALUE : subscription.demand + n;
+            subscription.drain(self);
+        }
+    }
+
+    boolean unsubscribe(ActorRef subscriber) {
+        return subscriptions.remove(find(subscriber));
+    }
+
+    void publish(TemperatureUpdate update, ActorRef self) {
+        for (int i = 0; i < subscriptions.size(); i++) {
+            Subscription subscription = subscriptions.get(i);
+            // A subscriber with demand left has nothing buffered: drain stops at demand 0
+            if (subscription.demand > 0) {
+                subscription.demand--;
+                subscription.subscriber.tell(update, self);
+            } else {
+                subscription.buffer(update);
+            }
+        }
+    }
+
+    private Subscription find(ActorRef subscriber) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.subscriber.equals(subscriber)) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    private abstract static class Subscription {
+        final ActorRef subscriber;
+        final int bufferSize;
+        long demand;
+        // Updates dropped since the subscriber was last told
+        long dropped;
+
+        Subscription(ActorRef subscriber, int bufferSize) {
+            this.subscriber = subscriber;
+            this.bufferSize = bufferSize;
+        }
+
+        abstract boolean isEmpty();
+
+        abstract void buffer(TemperatureUpdate update);
+
+        abstract TemperatureUpdate poll();
+
+        void drain(ActorRef self) {
+            if (dropped > 0) {
+                subscriber.tell(new TemperatureUpdatesDropped(dropped), self);
+                dropped = 0;
+            }
+            while (demand > 0 && !isEmpty()) {
+                demand--;
+                subscriber.tell(poll(), self);
+            }
+        }
+    }
+
+    private static final class RingSubscription extends Subscription {
+        private final TemperatureUpdate[] ring;
+        private int head;
+        private int count;
+
+        RingSubscription(ActorRef subscriber, int bufferSize) {
+            super(subscriber, bufferSize);
+            this.ring = new TemperatureUpdate[bufferSize];
+        }
+
+        @Override
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        @Override
+        void buffer(TemperatureUpdate update) {
+            if (count == ring.length) {
+                ring[head] = update;
+                head = (head + 1) % ring.length;
+                dropped++;
+            } else {
+                ring[(head + count++) % ring.length] = update;
+            }
+        }
+
+        @Override
+        TemperatureUpdate poll() {
+            TemperatureUpdate update = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            count--;
+            return update;
+        }
+    }
+
+    private static final class CoalescingSubscription extends Subscription {
+        // In the order the devices were first buffered; an update of a buffered device
+        // replaces its value in place
+        private final LinkedHashMap<String, TemperatureUpdate> latest = new LinkedHashMap<>();
+
+        CoalescingSubscription(ActorRef subscriber, int bufferSize) {
+            super(subscriber, bufferSize);
+        }
+
+        @Override
+        boolean isEmpty() {
+            return latest.isEmpty();
+        }
+
+        @Override
+        void buffer(TemperatureUpdate update) {
+            if (latest.put(update.deviceId, update) != null) {
+                dropped++;
+            } else if (latest.size() > bufferSize) {
+                Iterator<TemperatureUpdate> eldest = latest.values().iterator();
+                eldest.next();
+                eldest.remove();
+                dropped++;
+            }
+        }
+
+        @Override
+        TemperatureUpdate poll() {
+            Iterator<Map.Entry<String, TemperatureUpdate>> eldest = latest.entrySet().iterator();
+            TemperatureUpdate update = eldest.next().getValue();
+            eldest.remove();
+            return update;
+        }
+    }
+
+    enum OverflowPolicy {
+        DROP_OLDEST, COALESCE
+    }
+
+    // Sent to a Device or DeviceGroup; the sender is the subscriber. It is answered with
+    // TemperaturesSubscribed, whose sender takes the subscriber's RequestTemperatureUpdates.
+    static final class SubscribeTemperatures implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final int bufferSize;
+        final OverflowPolicy overflow;
+
+        SubscribeTemperatures(int bufferSize, OverflowPolicy overflow) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("A subscription needs a buffer of at least one update, got "
+                        + bufferSize);
+            }
+            this.bufferSize = bufferSize;
+            this.overflow = overflow;
+        }
+    }
+
+    static final class TemperaturesSubscribed implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        static final TemperaturesSubscribed INSTANCE = new TemperaturesSubscribed();
+
+        private TemperaturesSubscribed() {
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
+    static final class RequestTemperatureUpdates implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long n;
+
+        RequestTemperatureUpdates(long n) {
+            this.n = n;
+        }
+    }
+
+    static final class UnsubscribeTemperatures implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        static final UnsubscribeTemperatures INSTANCE = new UnsubscribeTemperatures();
+
+        private UnsubscribeTemperatures() {
+        }
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
+    static final class TemperatureUpdate implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final String groupId;
+        final String deviceId;
+        final long requestId;
+        final double value;
+        final long timestamp;
+
+        TemperatureUpdate(String groupId, String deviceId, long requestId, double value, long timestamp) {
+            this.groupId = groupId;
+            this.deviceId = deviceId;
+            this.requestId = requestId;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return "TemperatureUpdate{" + groupId + '-' + deviceId + ", requestId=" + requestId +
+                    ", value=" + value + '}';
+        }
+    }
+
+    // Sent before the next delivered update when updates were dropped for the subscriber
+    static final class TemperatureUpdatesDropped implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long count;
+
+        TemperatureUpdatesDropped(long count) {
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.lightbend.akka.iot;
+
+import java.util.Arrays;
+
+// Fixed capacity ring buffer of (timestamp, value) readings. Every reading gets a
+// sequence number; the buffer holds the last `capacity` of them. Sum, min and max
+// over any suffix of the buffer are maintained incrementally, so a window query is
+// a binary search for its first reading plus O(1) or O(log n) work. Only finite
+// readings are accepted.
+// Not thread safe: owned by a single Device actor.
+final class TemperatureHistory {
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[] values;
+    // Sum of the values recorded before the reading in this slot, since the last rebase
+    private final double[] sumBefore;
+    private double total;
+    private long nextSequence;
+
+    // Monotonic deques of sequence numbers: values increase along minDeque and
+    // decrease along maxDeque, so the first entry at or after a sequence is the
+    // extreme of the suffix starting there
+    private final MonotonicDeque minDeque;
+    private final MonotonicDeque maxDeque;
+
+    private final double[] scratch;
+
+    TemperatureHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+        this.sumBefore = new double[capacity];
+        this.minDeque = new MonotonicDeque(capacity);
+        this.maxDeque = new MonotonicDeque(capacity);
+        this.scratch = new double[capacity];
+    }
+
+    int size() {
+        return (int) (nextSequence - oldestSequence());
+    }
+
+    void record(long timestamp, double value) {
+        if (!Double.isFinite(value)) {
+            throw new IllegalArgumentException("History readings must be finite, got " + value);
+        }
+        long sequence = nextSequence;
+        int slot = slot(sequence);
+        if (sequence > 0) {
+            // Keep timestamps ordered so that windows can be found by binary search
+            timestamp = Math.max(timestamp, timestamps[slot(sequence - 1)]);
+        }
+        timestamps[slot] = timestamp;
+        values[slot] = value;
+        sumBefore[slot] = total;
+        total += value;
+        nextSequence = sequence + 1;
+        if (slot == capacity - 1) {
+            rebaseSums();
+        }
+
+        long oldest = oldestSequence();
+        minDeque.expireBefore(oldest);
+        maxDeque.expireBefore(oldest);
+        while (!minDeque.isEmpty() && values[slot(minDeque.last())] >= value) {
+            minDeque.removeLast();
+        }
+        minDeque.addLast(sequence);
+        while (!maxDeque.isEmpty() && values[slot(maxDeque.last())] <= value) {
+            maxDeque.removeLast();
+        }
+        maxDeque.addLast(sequence);
+    }
+
+    // First retained sequence number whose reading is not older than the given
+    // timestamp; equals nextSequence() when the window is empty
+    long firstSequenceSince(long timestamp) {
+        long low = oldestSequence();
+        long high = nextSequence;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (timestamps[slot(mid)] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    long nextSequence() {
+        return nextSequence;
+    }
+
+    int count(long fromSequence) {
+        return (int) (nextSequence - fromSequence);
+    }
+
+    double average(long fromSequence) {
+        if (fromSequence >= nextSequence) {
+            return Double.NaN;
+        }
+        return (total - sumBefore[slot(fromSequence)]) / count(fromSequence);
+    }
+
+    double min(long fromSequence) {
+        return fromSequence >= nextSequence ? Double.NaN : values[slot(minDeque.firstAtOrAfter(fromSequence))];
+    }
+
+    double max(long fromSequence) {
+        return fromSequence >= nextSequence ? Double.NaN : values[slot(maxDeque.firstAtOrAfter(fromSequence))];
+    }
+
+    // Nearest-rank percentiles (0-100) of the readings from the given sequence on.
+    // Unlike the other aggregates this sorts a copy of the window.
+    void percentiles(long fromSequence, double[] percentiles, double[] result) {
+        int n = count(fromSequence);
+        if (n <= 0) {
+            Arrays.fill(result, 0, percentiles.length, Double.NaN);
+            return;
+        }
+        int start = slot(fromSequence);
+        int firstPart = Math.min(n, capacity - start);
+        System.arraycopy(values, start, scratch, 0, firstPart);
+        System.arraycopy(values, 0, scratch, firstPart, n - firstPart);
+        Arrays.sort(scratch, 0, n);
+        for (int i = 0; i < percentiles.length; i++) {
+            int rank = (int) Math.ceil(percentiles[i] / 100.0 * n);
+            result[i] = scratch[Math.min(n - 1, Math.max(0, rank - 1))];
+        }
+    }
+
+    // Once per wrap of the buffer, makes the sums relative to the oldest retained reading,
+    // so that they do not grow without bound and lose the precision of small windows
+    private void rebaseSums() {
+        double base = sumBefore[slot(oldestSequence())];
+        for (int i = 0; i < capacity; i++) {
+            sumBefore[i] -= base;
+        }
+        total -= base;
+    }
+
+    private long oldestSequence() {
+        return Math.max(0L, nextSequence - capacity);
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    private static final class MonotonicDeque {
+        private final long[] sequences;
+        private int head;
+        private int size;
+
+        MonotonicDeque(int capacity) {
+            this.sequences = new long[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long last() {
+            return sequences[index(size - 1)];
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        void addLast(long sequence) {
+            sequences[index(size)] = sequence;
+            size++;
+        }
+
+        void expireBefore(long sequence) {
+            while (size > 0 && sequences[head] < sequence) {
+                head = index(1);
+                size--;
+            }
+        }
+
+        long firstAtOrAfter(long sequence) {
+            int low = 0;
+            int high = size - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sequences[index(mid)] < sequence) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return sequences[index(low)];
+        }
+
+        private int index(int offset) {
+            return (head + offset) % sequences.length;
+        }
+    }
+}
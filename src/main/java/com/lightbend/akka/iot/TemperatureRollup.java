@@ -0,0 +1,112 @@
+package com.lightbend.akka.iot;
+
+// Running count, sum, min, max and quantile sketch of temperature readings, which merge
+// into each other without losing anything but the sketch's 1%. Devices collect their
+// readings in one and send it to their group once per iot.rollup.interval, and groups
+// pass what they got on to their DeviceManager the same way, so that a group or fleet
+// summary is answered from the parent's own rollup instead of asking every device.
+// Sent as a message between those tiers; a rollup is not changed after it is sent.
+// Not thread-safe.
+final class TemperatureRollup {
+
+    private long count;
+    private double sum;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private final TemperatureSketch sketch = new TemperatureSketch();
+
+    // Throws for non-finite values, before anything is recorded
+    void record(double value) {
+        sketch.record(value);
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        count++;
+        sum += value;
+    }
+
+    void merge(TemperatureRollup other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0) {
+            min = other.min;
+            max = other.max;
+        } else {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+        count += other.count;
+        sum += other.sum;
+        sketch.merge(other.sketch);
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    long count() {
+        return count;
+    }
+
+    // Answers a RequestRollup. The 0th and 100th percentiles are the exact min and max,
+    // the sketch's others are kept within them.
+    RespondRollup respond(RequestRollup r) {
+        double[] percentiles = new double[r.percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            double percentile = r.percentiles[i];
+            if (count == 0) {
+                percentiles[i] = Double.NaN;
+            } else if (percentile <= 0.0) {
+                percentiles[i] = min;
+            } else if (percentile >= 100.0) {
+                percentiles[i] = max;
+            } else {
+                percentiles[i] = Math.max(min, Math.min(max, sketch.valueAtPercentile(percentile)));
+            }
+        }
+        return new RespondRollup(r.requestId, count, min, max, count == 0 ? Double.NaN : sum / count, percentiles);
+    }
+
+    // Summary of every reading recorded in a group (sent with GroupMessage) or in the
+    // fleet (sent to the IotSupervisor, or to a DeviceManager started with props()).
+    // Readings reach a group up to iot.rollup.interval after they were recorded, and each
+    // tier above adds up to another interval.
+    static final class RequestRollup implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        // Percentiles to compute, each between 0 and 100
+        final double[] percentiles;
+
+        RequestRollup(long requestId, double... percentiles) {
+            this.requestId = requestId;
+            this.percentiles = percentiles;
+        }
+    }
+
+    static final class RespondRollup implements IotMessage {
+        private static final long serialVersionUID = 1L;
+
+        final long requestId;
+        final long count;
+        // NaN while there are no readings
+        final double min;
+        final double max;
+        final double average;
+        final double[] percentiles;
+
+        RespondRollup(long requestId, long count, double min, double max, double average, double[] percentiles) {
+            this.requestId = requestId;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.average = average;
+            this.percentiles = percentiles;
+        }
+    }
+}
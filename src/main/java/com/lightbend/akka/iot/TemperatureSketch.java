@@ -0,0 +1,117 @@
+package com.lightbend.akka.iot;
+
+import java.util.Arrays;
+
+// Mergeable quantile sketch in the spirit of DDSketch: magnitudes fall into logarithmic
+// buckets that are 2% apart, so any quantile is reported within 1% of a value that was
+// recorded at that rank, however many sketches were merged on the way. Positive and
+// negative readings are counted apart; magnitudes below MIN_MAGNITUDE count as 0.
+// Each side keeps a dense array spanning only its lowest to highest bucket, so a sketch
+// of a few readings from one device is a handful of counters, and all of 0.001 to
+// 1000 degrees takes under 700. Not thread-safe.
+final class TemperatureSketch {
+
+    static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1.0 + RELATIVE_ACCURACY) / (1.0 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_MAGNITUDE = 1e-3;
+
+    private final Buckets positive = new Buckets();
+    private final Buckets negative = new Buckets();
+    private long zeros;
+    private long count;
+
+    // An infinite magnitude would map to the int range's last bucket and size the counts
+    // to match, so only finite values are taken
+    void record(double value) {
+        if (!Double.isFinite(value)) {
+            throw new IllegalArgumentException("Sketch readings must be finite, got " + value);
+        }
+        if (value >= MIN_MAGNITUDE) {
+            positive.add(indexOf(value), 1L);
+        } else if (value <= -MIN_MAGNITUDE) {
+            negative.add(indexOf(-value), 1L);
+        } else {
+            zeros++;
+        }
+        count++;
+    }
+
+    void merge(TemperatureSketch other) {
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeros += other.zeros;
+        count += other.count;
+    }
+
+    // Value at the given percentile (0-100), NaN when empty
+    double valueAtPercentile(double percentile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (Math.max(0.0, Math.min(100.0, percentile)) / 100.0 * (count - 1));
+        // Most negative first: the negative side from its largest magnitude down
+        long seen = 0;
+        for (int i = negative.counts.length - 1; i >= 0; i--) {
+            seen += negative.counts[i];
+            if (seen > rank) {
+                return -valueOf(negative.offset + i);
+            }
+        }
+        seen += zeros;
+        if (seen > rank) {
+            return 0.0;
+        }
+        for (int i = 0; i < positive.counts.length; i++) {
+            seen += positive.counts[i];
+            if (seen > rank) {
+                return valueOf(positive.offset + i);
+            }
+        }
+        return valueOf(positive.offset + positive.counts.length - 1);
+    }
+
+    private static int indexOf(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+    }
+
+    // The point of bucket index, (gamma^(index-1), gamma^index], within 1% of both ends
+    private static double valueOf(int index) {
+        return 2.0 * Math.pow(GAMMA, index) / (GAMMA + 1.0);
+    }
+
+    // Counts of buckets offset to offset + counts.length - 1
+    private static final class Buckets {
+        private static final long[] EMPTY = new long[0];
+
+        long[] counts = EMPTY;
+        int offset;
+
+        void add(int index, long n) {
+            if (counts.length == 0) {
+                counts = new long[1];
+                offset = index;
+            } else if (index < offset) {
+                long[] grown = new long[counts.length + offset - index];
+                System.arraycopy(counts, 0, grown, offset - index, counts.length);
+                counts = grown;
+                offset = index;
+            } else if (index >= offset + counts.length) {
+                counts = Arrays.copyOf(counts, index - offset + 1);
+            }
+            counts[index - offset] += n;
+        }
+
+        void merge(Buckets other) {
+            if (other.counts.length == 0) {
+                return;
+            }
+            // Cover the other's range first, then add bucket by bucket
+            add(other.offset, 0L);
+            add(other.offset + other.counts.length - 1, 0L);
+            for (int i = 0; i < other.counts.length; i++) {
+                counts[other.offset + i - offset] += other.counts[i];
+            }
+        }
+    }
+}
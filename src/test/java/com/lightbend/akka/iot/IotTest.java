@@ -1,24 +1,98 @@
 package com.lightbend.akka.iot;
 
+import akka.Done;
+import akka.actor.ActorPath;
 import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
 import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
 import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.Terminated;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.dispatch.Envelope;
+import akka.event.Logging;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import akka.serialization.Serializer;
+import akka.serialization.Serializers;
 import akka.testkit.javadsl.TestKit;
 import com.lightbend.akka.iot.Device.ReadTemperature;
 import com.lightbend.akka.iot.Device.RecordTemperature;
+import com.lightbend.akka.iot.Device.ReadTemperatureStats;
+import com.lightbend.akka.iot.Device.RecordTemperatureBatch;
+import com.lightbend.akka.iot.Device.RespondTemperatureStats;
+import com.lightbend.akka.iot.Device.TemperatureBatchDropped;
+import com.lightbend.akka.iot.Device.TemperatureBatchRecorded;
 import com.lightbend.akka.iot.Device.RespondTemperature;
+import com.lightbend.akka.iot.DeviceGroup.DeviceNotAvailable;
+import com.lightbend.akka.iot.DeviceGroup.DeviceTimedOut;
+import com.lightbend.akka.iot.DeviceGroup.PromoteDevice;
+import com.lightbend.akka.iot.DeviceGroup.ReadDeviceTemperature;
+import com.lightbend.akka.iot.DeviceGroup.RecordDeviceTemperature;
 import com.lightbend.akka.iot.DeviceGroup.ReplyDeviceList;
+import com.lightbend.akka.iot.DeviceGroup.ReplyDeviceListPage;
+import com.lightbend.akka.iot.DeviceGroup.RequestAllTemperatures;
 import com.lightbend.akka.iot.DeviceGroup.RequestDeviceList;
+import com.lightbend.akka.iot.DeviceGroup.RequestDeviceListPage;
+import com.lightbend.akka.iot.DeviceGroup.RespondAllTemperatures;
+import com.lightbend.akka.iot.DeviceGroup.Temperature;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureNotAvailable;
+import com.lightbend.akka.iot.DeviceGroup.TemperatureReading;
+import com.lightbend.akka.iot.DeviceJournal.DeviceState;
 import com.lightbend.akka.iot.DeviceManager.DeviceRegistered;
 import com.lightbend.akka.iot.DeviceManager.RequestTrackDevice;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigRenderOptions;
 import org.junit.jupiter.api.*;
+import scala.concurrent.duration.FiniteDuration;
 
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class IotTest {
     private static final Logger LOG = Logger.getLogger(IotTest.class.getName());
@@ -199,4 +273,1773 @@ public class IotTest {
             return null;
         });
     }
+
+    @Tag("device-group")
+    @Tag("device-group-query")
+    @Test
+    void testReturnTemperatureValueForWorkingDevices() {
+        TestKit requester = new TestKit(system);
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId, 1L, requester.getRef(), FiniteDuration.create(3, TimeUnit.SECONDS)));
+
+        assertEquals(0L, device1.expectMsgClass(ReadTemperature.class).requestId);
+        assertEquals(0L, device2.expectMsgClass(ReadTemperature.class).requestId);
+
+        queryActor.tell(new RespondTemperature(0L, 1.0, true), device1.getRef());
+        queryActor.tell(new RespondTemperature(0L, 2.0, true), device2.getRef());
+
+        RespondAllTemperatures response = requester.expectMsgClass(RespondAllTemperatures.class);
+        assertEquals(1L, response.requestId);
+
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(1.0));
+        expectedTemperatures.put("device2", new Temperature(2.0));
+        assertEquals(expectedTemperatures, response.temperatures);
+    }
+
+    @Tag("device-group")
+    @Tag("device-group-query")
+    @Test
+    void testReturnTemperatureNotAvailableForDevicesWithNoReadings() {
+        TestKit requester = new TestKit(system);
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId, 1L, requester.getRef(), FiniteDuration.create(3, TimeUnit.SECONDS)));
+
+        device1.expectMsgClass(ReadTemperature.class);
+        device2.expectMsgClass(ReadTemperature.class);
+
+        queryActor.tell(new RespondTemperature(0L, 0.0, false), device1.getRef());
+        queryActor.tell(new RespondTemperature(0L, 2.0, true), device2.getRef());
+
+        RespondAllTemperatures response = requester.expectMsgClass(RespondAllTemperatures.class);
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", TemperatureNotAvailable.INSTANCE);
+        expectedTemperatures.put("device2", new Temperature(2.0));
+        assertEquals(expectedTemperatures, response.temperatures);
+    }
+
+    @Tag("device-group")
+    @Tag("device-group-query")
+    @Test
+    void testReturnDeviceNotAvailableIfDeviceStopsBeforeAnswering() {
+        TestKit requester = new TestKit(system);
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId, 1L, requester.getRef(), FiniteDuration.create(3, TimeUnit.SECONDS)));
+
+        device1.expectMsgClass(ReadTemperature.class);
+        device2.expectMsgClass(ReadTemperature.class);
+
+        queryActor.tell(new RespondTemperature(0L, 1.0, true), device1.getRef());
+        device2.getRef().tell(PoisonPill.getInstance(), ActorRef.noSender());
+
+        RespondAllTemperatures response = requester.expectMsgClass(RespondAllTemperatures.class);
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(1.0));
+        expectedTemperatures.put("device2", DeviceNotAvailable.INSTANCE);
+        assertEquals(expectedTemperatures, response.temperatures);
+    }
+
+    @Tag("device-group")
+    @Tag("device-group-query")
+    @Test
+    void testReturnDeviceTimedOutIfDeviceDoesNotAnswerInTime() {
+        TestKit requester = new TestKit(system);
+        TestKit device1 = new TestKit(system);
+        TestKit device2 = new TestKit(system);
+
+        Map<ActorRef, String> actorToDeviceId = new HashMap<>();
+        actorToDeviceId.put(device1.getRef(), "device1");
+        actorToDeviceId.put(device2.getRef(), "device2");
+
+        ActorRef queryActor = system.actorOf(DeviceGroupQuery.props(
+                actorToDeviceId, 1L, requester.getRef(), FiniteDuration.create(1, TimeUnit.SECONDS)));
+
+        device1.expectMsgClass(ReadTemperature.class);
+        device2.expectMsgClass(ReadTemperature.class);
+
+        queryActor.tell(new RespondTemperature(0L, 1.0, true), device1.getRef());
+
+        RespondAllTemperatures response = requester.expectMsgClass(
+                Duration.ofSeconds(3), RespondAllTemperatures.class);
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(1.0));
+        expectedTemperatures.put("device2", DeviceTimedOut.INSTANCE);
+        assertEquals(expectedTemperatures, response.temperatures);
+    }
+
+    @Tag("device-group")
+    @Tag("device-group-query")
+    @Test
+    void testCollectTemperaturesFromAllActiveDevices() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+
+        groupActor.tell(new RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        ActorRef deviceActor1 = probe.getLastSender();
+
+        groupActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        ActorRef deviceActor2 = probe.getLastSender();
+
+        groupActor.tell(new RequestTrackDevice("group", "device3"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+
+        // Check that the device actors are working
+        deviceActor1.tell(new RecordTemperature(0L, 1.0), probe.getRef());
+        assertEquals(0L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        deviceActor2.tell(new RecordTemperature(1L, 2.0), probe.getRef());
+        assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        // No temperature for device3
+
+        groupActor.tell(new RequestAllTemperatures(0L), probe.getRef());
+        RespondAllTemperatures response = probe.expectMsgClass(RespondAllTemperatures.class);
+        assertEquals(0L, response.requestId);
+
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(1.0));
+        expectedTemperatures.put("device2", new Temperature(2.0));
+        expectedTemperatures.put("device3", TemperatureNotAvailable.INSTANCE);
+        assertEquals(expectedTemperatures, response.temperatures);
+    }
+
+    @Tag("device-group")
+    @Tag("temperature-batch")
+    @Test
+    void testAcknowledgeTemperatureBatchWithHighestRequestId() {
+        TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+
+        deviceActor.tell(new RecordTemperatureBatch(
+                "group", "device", new long[]{3L, 5L, 4L}, new double[]{21.0, 22.0, 23.0}), probe.getRef());
+        assertEquals(5L, probe.expectMsgClass(TemperatureBatchRecorded.class).highestRequestId);
+
+        deviceActor.tell(new RecordTemperatureBatch(
+                "group", "device", new long[]{6L}, new double[]{30.0}, false), probe.getRef());
+        probe.expectNoMessage();
+
+        deviceActor.tell(new ReadTemperature(7L), probe.getRef());
+        RespondTemperature response = probe.expectMsgClass(RespondTemperature.class);
+        assertEquals(7L, response.requestId);
+        assertEquals(30.0, response.value);
+    }
+
+    @Tag("device-group")
+    @Tag("temperature-batch")
+    @Test
+    void testRouteTemperatureBatchThroughManager() {
+        TestKit probe = new TestKit(system);
+        ActorRef managerActor = system.actorOf(DeviceManager.props());
+
+        managerActor.tell(new RequestTrackDevice("group", "device"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+
+        managerActor.tell(new RecordTemperatureBatch(
+                "group", "device", new long[]{1L, 2L}, new double[]{10.0, 11.0}), probe.getRef());
+        assertEquals(2L, probe.expectMsgClass(TemperatureBatchRecorded.class).highestRequestId);
+        assertEquals(deviceActor, probe.getLastSender());
+
+        // Dropped batches are acknowledged too, so that senders waiting for them go on
+        managerActor.tell(new RecordTemperatureBatch(
+                "unknownGroup", "device", new long[]{4L, 3L}, new double[]{12.0, 13.0}), probe.getRef());
+        TemperatureBatchDropped dropped = probe.expectMsgClass(TemperatureBatchDropped.class);
+        assertEquals("unknownGroup", dropped.groupId);
+        assertEquals("device", dropped.deviceId);
+        assertEquals(4L, dropped.highestRequestId);
+
+        managerActor.tell(new RecordTemperatureBatch(
+                "group", "unknownDevice", new long[]{5L}, new double[]{14.0}), probe.getRef());
+        assertEquals("unknownDevice", probe.expectMsgClass(TemperatureBatchDropped.class).deviceId);
+
+        deviceActor.tell(new RecordTemperatureBatch(
+                "group", "otherDevice", new long[]{6L}, new double[]{15.0}), probe.getRef());
+        assertEquals(6L, probe.expectMsgClass(TemperatureBatchDropped.class).highestRequestId);
+
+        managerActor.tell(new RecordTemperatureBatch(
+                "unknownGroup", "device", new long[]{7L}, new double[]{16.0}, false), probe.getRef());
+        probe.expectNoMessage();
+    }
+
+    @Tag("device-group")
+    @Tag("compact-group")
+    @Test
+    void testCompactGroupKeepsDeviceStateWithoutActors() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group", true));
+
+        groupActor.tell(new RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        assertEquals(groupActor, probe.getLastSender());
+
+        groupActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+
+        groupActor.tell(new RecordDeviceTemperature("device1", 1L, 21.5), probe.getRef());
+        assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+        groupActor.tell(new RecordTemperatureBatch(
+                "group", "device2", new long[]{2L, 3L}, new double[]{18.0, 19.0}), probe.getRef());
+        assertEquals(3L, probe.expectMsgClass(TemperatureBatchRecorded.class).highestRequestId);
+
+        groupActor.tell(new ReadDeviceTemperature("device1", 4L), probe.getRef());
+        RespondTemperature response = probe.expectMsgClass(RespondTemperature.class);
+        assertEquals(4L, response.requestId);
+        assertEquals(21.5, response.value);
+
+        groupActor.tell(new RequestDeviceList(5L), probe.getRef());
+        assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()),
+                probe.expectMsgClass(ReplyDeviceList.class).ids);
+
+        groupActor.tell(new RequestAllTemperatures(6L), probe.getRef());
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(21.5));
+        expectedTemperatures.put("device2", new Temperature(19.0));
+        assertEquals(expectedTemperatures, probe.expectMsgClass(RespondAllTemperatures.class).temperatures);
+    }
+
+    @Tag("device-group")
+    @Tag("compact-group")
+    @Test
+    void testPromoteCompactDeviceToActor() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group", true));
+
+        groupActor.tell(new RequestTrackDevice("group", "device1"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        groupActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        groupActor.tell(new RecordDeviceTemperature("device1", 1L, 21.5), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+        groupActor.tell(new PromoteDevice("device1"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        ActorRef deviceActor = probe.getLastSender();
+        assertNotEquals(groupActor, deviceActor);
+
+        // The promoted actor starts from the state the group kept for it
+        deviceActor.tell(new ReadTemperature(2L), probe.getRef());
+        assertEquals(21.5, probe.expectMsgClass(RespondTemperature.class).value);
+
+        groupActor.tell(new RecordDeviceTemperature("device1", 3L, 22.5), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        assertEquals(deviceActor, probe.getLastSender());
+
+        groupActor.tell(new RequestAllTemperatures(4L), probe.getRef());
+        Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+        expectedTemperatures.put("device1", new Temperature(22.5));
+        expectedTemperatures.put("device2", TemperatureNotAvailable.INSTANCE);
+        assertEquals(expectedTemperatures, probe.expectMsgClass(RespondAllTemperatures.class).temperatures);
+    }
+
+    @Tag("device-group")
+    @Tag("compact-group")
+    @Test
+    void testCompactDeviceStoreKeepsSlotsDenseOnRemoval() {
+        CompactDeviceStore store = new CompactDeviceStore(4);
+        for (int i = 0; i < 100; i++) {
+            int slot = store.intern("device" + i);
+            store.record(slot, i, i * 0.5, 1000L + i);
+        }
+        assertEquals(100, store.size());
+        assertEquals(store.slotOf("device42"), store.intern("device42"));
+
+        for (int i = 0; i < 100; i += 2) {
+            assertTrue(store.remove("device" + i));
+        }
+        assertFalse(store.remove("device0"));
+        assertEquals(50, store.size());
+
+        for (int i = 0; i < 100; i++) {
+            int slot = store.slotOf("device" + i);
+            if (i % 2 == 0) {
+                assertEquals(-1, slot);
+            } else {
+                assertEquals("device" + i, store.idAt(slot));
+                assertEquals(i * 0.5, store.reading(slot));
+                assertEquals(i, store.requestId(slot));
+            }
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("temperature-history")
+    @Test
+    void testReplyWithWindowedTemperatureStats() {
+        TestKit probe = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+
+        // The history is off by default
+        deviceActor.tell(new RecordTemperature(1L, 20.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        deviceActor.tell(new ReadTemperatureStats(1L, 60_000L, 50.0), probe.getRef());
+        assertEquals(0, probe.expectMsgClass(RespondTemperatureStats.class).count);
+
+        Config config = ConfigFactory.parseString("iot.device.history-capacity = 128")
+                .withFallback(ConfigFactory.load());
+        ActorSystem withHistory = ActorSystem.create("history", config);
+        try {
+            replyWithWindowedTemperatureStats(withHistory);
+        } finally {
+            TestKit.shutdownActorSystem(withHistory);
+        }
+    }
+
+    private void replyWithWindowedTemperatureStats(ActorSystem historySystem) {
+        TestKit probe = new TestKit(historySystem);
+        ActorRef deviceActor = historySystem.actorOf(Device.props("group", "device"));
+
+        deviceActor.tell(new ReadTemperatureStats(1L, 60_000L, 50.0), probe.getRef());
+        RespondTemperatureStats empty = probe.expectMsgClass(RespondTemperatureStats.class);
+        assertEquals(0, empty.count);
+        assertTrue(Double.isNaN(empty.average));
+
+        deviceActor.tell(new RecordTemperature(2L, 20.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        deviceActor.tell(new RecordTemperatureBatch(
+                "group", "device", new long[]{3L, 4L, 5L}, new double[]{24.0, 18.0, 22.0}), probe.getRef());
+        probe.expectMsgClass(TemperatureBatchRecorded.class);
+
+        deviceActor.tell(new ReadTemperatureStats(6L, 60_000L, 50.0, 100.0), probe.getRef());
+        RespondTemperatureStats stats = probe.expectMsgClass(RespondTemperatureStats.class);
+        assertEquals(6L, stats.requestId);
+        assertEquals(4, stats.count);
+        assertEquals(18.0, stats.min);
+        assertEquals(24.0, stats.max);
+        assertEquals(21.0, stats.average);
+        assertEquals(20.0, stats.percentiles[0]);
+        assertEquals(24.0, stats.percentiles[1]);
+
+        // Non-finite readings are recorded as the latest reading but kept out of the history
+        deviceActor.tell(new RecordTemperature(7L, Double.NaN), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        deviceActor.tell(new ReadTemperatureStats(8L, 60_000L), probe.getRef());
+        RespondTemperatureStats afterNaN = probe.expectMsgClass(RespondTemperatureStats.class);
+        assertEquals(4, afterNaN.count);
+        assertEquals(21.0, afterNaN.average);
+    }
+
+    @Tag("temperature-history")
+    @Test
+    void testTemperatureHistoryWindowsMatchFullRescan() {
+        int capacity = 64;
+        TemperatureHistory history = new TemperatureHistory(capacity);
+        Random random = new Random(42L);
+        double[] values = new double[500];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(1000) / 10.0;
+            history.record(i * 10L, values[i]);
+
+            long since = Math.max(0, i - random.nextInt(80)) * 10L;
+            long from = history.firstSequenceSince(since);
+            int first = (int) Math.max(since / 10, Math.max(0, i + 1 - capacity));
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0;
+            for (int j = first; j <= i; j++) {
+                min = Math.min(min, values[j]);
+                max = Math.max(max, values[j]);
+                sum += values[j];
+            }
+            assertEquals(i + 1 - first, history.count(from));
+            assertEquals(min, history.min(from));
+            assertEquals(max, history.max(from));
+            assertEquals(sum / (i + 1 - first), history.average(from), 1e-9);
+        }
+        assertEquals(capacity, history.size());
+
+        // Rebasing on every wrap keeps the sums from growing with the number of readings
+        TemperatureHistory rebased = new TemperatureHistory(4);
+        for (int i = 0; i < 1_000_000; i++) {
+            rebased.record(i, 1000.0);
+        }
+        for (int i = 0; i < 4; i++) {
+            rebased.record(1_000_000L + i, 0.1 * (i + 1));
+        }
+        assertEquals(0.4, rebased.average(rebased.nextSequence() - 1), 1e-9);
+        assertEquals(0.25, rebased.average(rebased.nextSequence() - 4), 1e-9);
+
+        assertThrows(IllegalArgumentException.class, () -> rebased.record(2_000_000L, Double.NaN));
+        assertThrows(IllegalArgumentException.class,
+                () -> rebased.record(2_000_000L, Double.POSITIVE_INFINITY));
+    }
+
+    @Tag("persistence")
+    @Test
+    void testRecoverDeviceStateFromJournalSegmentsAndSnapshot() throws IOException {
+        Path directory = Files.createTempDirectory("iot-journal");
+        try {
+            DeviceJournal journal = new DeviceJournal(directory, 4096, 2, system.log());
+            for (int i = 0; i < 200; i++) {
+                journal.deviceTracked("group", "device" + i);
+                journal.temperatureRecorded("group", "device" + i, i, i / 2.0, 1000L + i);
+            }
+            journal.deviceTracked("other", "sensor");
+            journal.deviceRemoved("group", "device0");
+            // Folds every sealed segment into a snapshot
+            journal.flushAndSnapshot();
+            journal.temperatureRecorded("group", "device1", 500L, 99.0, 2000L);
+            journal.close();
+
+            Map<String, Map<String, DeviceState>> recovered =
+                    new DeviceJournal(directory, 4096, 2, system.log()).takeRecoveredState();
+            assertEquals(Stream.of("group", "other").collect(Collectors.toSet()), recovered.keySet());
+            Map<String, DeviceState> devices = recovered.get("group");
+            assertEquals(199, devices.size());
+            assertFalse(devices.containsKey("device0"));
+            assertEquals(99.0, devices.get("device1").value);
+            assertEquals(500L, devices.get("device1").requestId);
+            assertEquals(21.0, devices.get("device42").value);
+            assertFalse(recovered.get("other").get("sensor").hasReading());
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Tag("persistence")
+    @Test
+    void testReplayJournalPastRecordsThatWereNeverFinished() throws IOException {
+        Path directory = Files.createTempDirectory("iot-journal");
+        try {
+            DeviceJournal journal = new DeviceJournal(directory, 4096, 2, system.log());
+            journal.temperatureRecorded("group", "device1", 1L, 21.0, 1000L);
+            journal.temperatureRecorded("group", "device2", 2L, 22.0, 1000L);
+            journal.temperatureRecorded("group", "device3", 3L, 23.0, 1000L);
+            journal.close();
+
+            // Crash the writers of the first two records: one before it marked its space,
+            // one after marking it but before publishing
+            Path segment;
+            try (Stream<Path> files = Files.list(directory)) {
+                segment = files.filter(path -> path.toString().endsWith(".segment")).findFirst().get();
+            }
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                int first = buffer.getInt(0);
+                int second = (4 + first + 3) & ~3;
+                for (int i = 0; i < second; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.putInt(second, -buffer.getInt(second));
+                buffer.force();
+            }
+
+            Map<String, Map<String, DeviceState>> recovered =
+                    new DeviceJournal(directory, 4096, 2, system.log()).takeRecoveredState();
+            assertEquals(Collections.singleton("device3"), recovered.get("group").keySet());
+            assertEquals(23.0, recovered.get("group").get("device3").value);
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("persistence")
+    @Test
+    void testRecoverGroupsAndReadingsAfterRestart() throws IOException {
+        Path directory = Files.createTempDirectory("iot-journal");
+        try {
+            Config config = ConfigFactory.parseString(
+                    "iot.persistence.enabled = on\n" +
+                            "iot.persistence.segment-size = 64 KiB\n" +
+                            "iot.persistence.directory = \"" + directory.toString().replace("\\", "/") + "\"")
+                    .withFallback(ConfigFactory.load());
+
+            ActorSystem first = ActorSystem.create("persistence-first", config);
+            try {
+                TestKit probe = new TestKit(first);
+                ActorRef managerActor = first.actorOf(DeviceManager.props(), "manager");
+                managerActor.tell(new RequestTrackDevice("group", "device1"), probe.getRef());
+                probe.expectMsgClass(DeviceRegistered.class);
+                ActorRef deviceActor = probe.getLastSender();
+                managerActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+                probe.expectMsgClass(DeviceRegistered.class);
+
+                deviceActor.tell(new RecordTemperature(1L, 24.0), probe.getRef());
+                probe.expectMsgClass(Device.TemperatureRecorded.class);
+            } finally {
+                TestKit.shutdownActorSystem(first);
+            }
+
+            ActorSystem second = ActorSystem.create("persistence-second", config);
+            try {
+                TestKit probe = new TestKit(second);
+                second.actorOf(DeviceManager.props(), "manager");
+                ActorSelection groupActor = second.actorSelection("/user/manager/group-group");
+
+                // The group only exists once the manager has started, so retry until it answers
+                probe.awaitAssert(Duration.ofSeconds(5), () -> {
+                    groupActor.tell(new RequestAllTemperatures(0L), probe.getRef());
+                    RespondAllTemperatures response =
+                            probe.expectMsgClass(Duration.ofMillis(500), RespondAllTemperatures.class);
+                    Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+                    expectedTemperatures.put("device1", new Temperature(24.0));
+                    expectedTemperatures.put("device2", TemperatureNotAvailable.INSTANCE);
+                    assertEquals(expectedTemperatures, response.temperatures);
+                    return null;
+                });
+            } finally {
+                TestKit.shutdownActorSystem(second);
+            }
+        } finally {
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("sharded-manager")
+    @Test
+    void testShardedManagerRoutesEachGroupToOneShard() {
+        TestKit probe = new TestKit(system);
+        ActorRef managerRouter = system.actorOf(DeviceManager.shardedProps(system, 4));
+
+        Set<ActorPath> shards = new HashSet<>();
+        Map<String, ActorRef> devices = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            managerRouter.tell(new RequestTrackDevice("group" + i, "device"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            ActorRef deviceActor = probe.getLastSender();
+            devices.put("group" + i, deviceActor);
+            // device -> group -> manager shard
+            shards.add(deviceActor.path().parent().parent());
+        }
+        assertTrue(shards.size() > 1);
+
+        for (int i = 0; i < 20; i++) {
+            managerRouter.tell(new RequestTrackDevice("group" + i, "device"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            assertEquals(devices.get("group" + i), probe.getLastSender());
+
+            managerRouter.tell(new RecordTemperatureBatch(
+                    "group" + i, "device", new long[]{i}, new double[]{20.0}), probe.getRef());
+            assertEquals(i, probe.expectMsgClass(TemperatureBatchRecorded.class).highestRequestId);
+        }
+
+        // The shard that carries out a provisioning reaches the groups of every shard
+        Map<String, List<String>> devicesByGroup = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            devicesByGroup.put("provisioned" + i, Arrays.asList("device"));
+        }
+        managerRouter.tell(new DeviceManager.ProvisionDevices(1L, devicesByGroup), probe.getRef());
+        DeviceManager.DevicesProvisioned done = (DeviceManager.DevicesProvisioned) probe.fishForMessage(
+                FiniteDuration.create(3, TimeUnit.SECONDS), "provisioned", m -> m instanceof DeviceManager.DevicesProvisioned);
+        assertEquals(20, done.created);
+        for (int i = 0; i < 20; i++) {
+            managerRouter.tell(new RecordTemperatureBatch(
+                    "provisioned" + i, "device", new long[]{i}, new double[]{20.0}), probe.getRef());
+            assertEquals(i, probe.expectMsgClass(TemperatureBatchRecorded.class).highestRequestId);
+        }
+
+        // Shards without a rollupTo cannot answer for the fleet, and nothing else is dropped silently
+        managerRouter.tell(new TemperatureRollup.RequestRollup(2L), probe.getRef());
+        assertTrue(probe.expectMsgClass(Status.Failure.class).cause() instanceof IllegalArgumentException);
+        managerRouter.tell(new ReadDeviceTemperature("device", 3L), probe.getRef());
+        assertTrue(probe.expectMsgClass(Status.Failure.class).cause() instanceof IllegalArgumentException);
+    }
+
+    @Tag("device-group")
+    @Tag("passivation")
+    @Test
+    void testPassivateIdleDevicesAndReactivateOnDemand() {
+        Config config = ConfigFactory.parseString("iot.device.passivate-after = 300 ms")
+                .withFallback(ConfigFactory.load());
+        ActorSystem passivating = ActorSystem.create("passivation", config);
+        try {
+            TestKit probe = new TestKit(passivating);
+            ActorRef groupActor = passivating.actorOf(DeviceGroup.props("group"));
+
+            groupActor.tell(new RequestTrackDevice("group", "device1"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            ActorRef deviceActor1 = probe.getLastSender();
+            groupActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            ActorRef deviceActor2 = probe.getLastSender();
+
+            groupActor.tell(new RecordDeviceTemperature("device1", 1L, 21.0), probe.getRef());
+            assertEquals(1L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+
+            probe.watch(deviceActor1);
+            probe.watch(deviceActor2);
+            Set<ActorRef> passivated = new HashSet<>();
+            passivated.add(probe.expectMsgClass(Duration.ofSeconds(3), Terminated.class).getActor());
+            passivated.add(probe.expectMsgClass(Duration.ofSeconds(3), Terminated.class).getActor());
+            assertEquals(Stream.of(deviceActor1, deviceActor2).collect(Collectors.toSet()), passivated);
+
+            groupActor.tell(new RequestDeviceList(0L), probe.getRef());
+            assertEquals(Stream.of("device1", "device2").collect(Collectors.toSet()),
+                    probe.expectMsgClass(ReplyDeviceList.class).ids);
+
+            groupActor.tell(new RequestAllTemperatures(1L), probe.getRef());
+            Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+            expectedTemperatures.put("device1", new Temperature(21.0));
+            expectedTemperatures.put("device2", TemperatureNotAvailable.INSTANCE);
+            assertEquals(expectedTemperatures, probe.expectMsgClass(RespondAllTemperatures.class).temperatures);
+
+            // The next message starts a fresh actor that carries the stashed reading
+            groupActor.tell(new ReadDeviceTemperature("device1", 2L), probe.getRef());
+            RespondTemperature response = probe.expectMsgClass(RespondTemperature.class);
+            assertEquals(2L, response.requestId);
+            assertEquals(21.0, response.value);
+            assertNotEquals(deviceActor1, probe.getLastSender());
+
+            groupActor.tell(new RecordDeviceTemperature("device2", 3L, 19.0), probe.getRef());
+            assertEquals(3L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+            groupActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            assertNotEquals(deviceActor2, probe.getLastSender());
+        } finally {
+            TestKit.shutdownActorSystem(passivating);
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("ingest")
+    @Test
+    void testIngestFramesOverTcpWithBackpressure() throws Exception {
+        // A small in-flight limit makes the server pause and resume reading many times
+        Config config = ConfigFactory.parseString("iot.ingest.max-batches-in-flight = 4")
+                .withFallback(ConfigFactory.load());
+        ActorSystem ingesting = ActorSystem.create("ingest", config);
+        ActorRef managerActor = ingesting.actorOf(DeviceManager.props(), "manager");
+        try (IngestServer server = IngestServer.start(
+                ingesting, managerActor, new InetSocketAddress("127.0.0.1", 0));
+             SocketChannel channel = SocketChannel.open(server.localAddress())) {
+            ByteBuffer frames = ByteBuffer.allocate(64 * 1024);
+            double[] values = new double[3];
+            for (int i = 0; i < 500; i++) {
+                values[0] = i;
+                values[1] = i + 0.25;
+                values[2] = i + 0.5;
+                IngestLoadGenerator.writeFrame(frames, "group", "device" + (i % 2), i * 3L, values, 3);
+            }
+            frames.flip();
+            // Split the stream in the middle of a frame
+            ByteBuffer head = frames.duplicate();
+            head.limit(frames.limit() / 2 + 1);
+            channel.write(head);
+            Thread.sleep(50);
+            frames.position(head.limit());
+            while (frames.hasRemaining()) {
+                channel.write(frames);
+            }
+
+            TestKit probe = new TestKit(ingesting);
+            ActorSelection groupActor = ingesting.actorSelection("/user/manager/group-group");
+            probe.awaitAssert(Duration.ofSeconds(5), () -> {
+                groupActor.tell(new RequestAllTemperatures(0L), probe.getRef());
+                Map<String, TemperatureReading> expectedTemperatures = new HashMap<>();
+                expectedTemperatures.put("device0", new Temperature(498.5));
+                expectedTemperatures.put("device1", new Temperature(499.5));
+                assertEquals(expectedTemperatures,
+                        probe.expectMsgClass(Duration.ofMillis(500), RespondAllTemperatures.class).temperatures);
+                return null;
+            });
+        } finally {
+            TestKit.shutdownActorSystem(ingesting);
+        }
+    }
+
+    @Tag("metrics")
+    @Test
+    void testLatencyHistogramPercentilesStayWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100_000, histogram.count());
+        for (double percentile : new double[]{50.0, 90.0, 99.0, 99.9}) {
+            double exact = percentile * 1000.0 * 1000.0;
+            double reported = histogram.valueAtPercentile(percentile);
+            assertTrue(Math.abs(reported - exact) <= exact / 16, percentile + ": " + reported);
+        }
+        assertTrue(histogram.max() >= 100_000_000L);
+        assertEquals(0, new LatencyHistogram().valueAtPercentile(99.0));
+    }
+
+    @Tag("device-group")
+    @Tag("metrics")
+    @Test
+    void testMeterActorTiersAndReportDeviceCounts() throws Exception {
+        Config config = ConfigFactory.parseString(
+                "iot.metrics.enabled = on\n" +
+                        "iot.metrics.reporters = [jmx]")
+                .withFallback(ConfigFactory.load());
+        ActorSystem metered = ActorSystem.create("metered", config);
+        try {
+            TestKit probe = new TestKit(metered);
+            IotMetrics metrics = IotMetrics.get(metered);
+            ActorRef managerActor = metered.actorOf(
+                    metrics.meter(DeviceManager.props(), IotMetrics.Tier.MANAGER), "manager");
+            for (int i = 0; i < 3; i++) {
+                managerActor.tell(new RequestTrackDevice("group", "device" + i), probe.getRef());
+                probe.expectMsgClass(DeviceRegistered.class);
+                probe.getLastSender().tell(new RecordTemperature(i, 20.0), probe.getRef());
+                probe.expectMsgClass(Device.TemperatureRecorded.class);
+            }
+
+            assertEquals(3, metrics.tier(IotMetrics.Tier.MANAGER).messages());
+            assertEquals(3, metrics.tier(IotMetrics.Tier.GROUP).messages());
+            assertEquals(6, metrics.tier(IotMetrics.Tier.DEVICE).messages());
+            assertEquals(6, metrics.tier(IotMetrics.Tier.DEVICE).latency().count());
+            assertEquals(3, metrics.groups().get("group").devices());
+            assertEquals(3, metrics.groups().get("group").actors());
+
+            String text = PrometheusMetricsReporter.render(metrics);
+            assertTrue(text.contains("iot_messages_total{tier=\"device\"} 6\n"), text);
+            assertTrue(text.contains("iot_group_devices{group=\"group\"} 3\n"), text);
+            assertTrue(text.contains("iot_message_latency_seconds_count{tier=\"group\"} 3\n"), text);
+
+            ObjectName deviceTier = new ObjectName(
+                    "com.lightbend.akka.iot:system=\"metered\",type=Tier,name=device");
+            assertEquals(6L, ManagementFactory.getPlatformMBeanServer().getAttribute(deviceTier, "Messages"));
+        } finally {
+            TestKit.shutdownActorSystem(metered);
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("topology")
+    @Test
+    void testRunTiersOnTheirConfiguredDispatchersAndMailboxes() {
+        Config config = ConfigFactory.parseString(
+                "iot.manager.dispatcher = iot.dispatchers.pinned\n" +
+                        "iot.manager.mailbox = iot.mailboxes.single-consumer\n" +
+                        "iot.group.dispatcher = iot.dispatchers.group-pool\n" +
+                        "iot.group.mailbox = iot.mailboxes.bounded\n" +
+                        "iot.device.dispatcher = iot.dispatchers.device-pool\n" +
+                        "iot.device.mailbox = iot.mailboxes.array\n")
+                .withFallback(ConfigFactory.load());
+        ActorSystem tiered = ActorSystem.create("tiered", config);
+        try {
+            IotSettings settings = IotSettings.get(tiered);
+            Props deviceProps = settings.deploy(Device.props("group", "device"), IotMetrics.Tier.DEVICE);
+            assertEquals("iot.dispatchers.device-pool", deviceProps.dispatcher());
+            assertEquals("iot.mailboxes.array", deviceProps.mailbox());
+            assertEquals("iot.dispatchers.pinned",
+                    settings.deploy(DeviceManager.props(), IotMetrics.Tier.MANAGER).dispatcher());
+
+            TestKit probe = new TestKit(tiered);
+            ActorRef managerActor = tiered.actorOf(
+                    settings.deploy(DeviceManager.props(), IotMetrics.Tier.MANAGER), "manager");
+            for (int i = 0; i < 3; i++) {
+                managerActor.tell(new RequestTrackDevice("group", "device" + i), probe.getRef());
+                probe.expectMsgClass(DeviceRegistered.class);
+                probe.getLastSender().tell(new RecordTemperature(i, 20.0 + i), probe.getRef());
+                probe.expectMsgClass(Device.TemperatureRecorded.class);
+            }
+            tiered.actorSelection("/user/manager/group-group")
+                    .tell(new RequestAllTemperatures(0L), probe.getRef());
+            RespondAllTemperatures response = probe.expectMsgClass(RespondAllTemperatures.class);
+            assertEquals(new Temperature(22.0), response.temperatures.get("device2"));
+        } finally {
+            TestKit.shutdownActorSystem(tiered);
+        }
+    }
+
+    @Tag("topology")
+    @Test
+    void testArrayMailboxKeepsOrderAndSendsOverflowToDeadLetters() {
+        TestKit deadLetters = new TestKit(system);
+        ArrayMailbox.ArrayMessageQueue queue = new ArrayMailbox.ArrayMessageQueue(4, deadLetters.getRef());
+        ActorRef receiver = deadLetters.getRef();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5; i++) {
+                queue.enqueue(receiver, Envelope.apply(round * 10 + i, ActorRef.noSender()));
+            }
+            assertEquals(4, queue.numberOfMessages());
+            DeadLetter overflow = deadLetters.expectMsgClass(DeadLetter.class);
+            assertEquals(round * 10 + 4, overflow.message());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(round * 10 + i, queue.dequeue().message());
+            }
+            assertNull(queue.dequeue());
+            assertFalse(queue.hasMessages());
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("priority-mailbox")
+    @Test
+    void testPriorityMailboxServesQueriesFirstAndShedsReadingsOverHighWaterMark() {
+        TestKit probe = new TestKit(system);
+        ActorRef receiver = probe.getRef();
+        IotMetrics.SheddingMetrics shedding = IotMetrics.get(system).shedding();
+        long collapsedBefore = shedding.collapsed();
+        long rejectedBefore = shedding.rejected();
+
+        // Queries overtake, everything else keeps its order
+        PriorityMailbox.PriorityMessageQueue queue = new PriorityMailbox.PriorityMessageQueue(
+                100, PriorityMailbox.Shedding.COLLAPSE, shedding, system.deadLetters());
+        queue.enqueue(receiver, Envelope.apply(new RecordTemperature(1L, 20.0), receiver));
+        queue.enqueue(receiver, Envelope.apply(new RequestTrackDevice("group", "device"), receiver));
+        queue.enqueue(receiver, Envelope.apply(new ReadTemperature(2L), receiver));
+        queue.enqueue(receiver, Envelope.apply(new RequestDeviceList(3L), receiver));
+        assertEquals(4, queue.numberOfMessages());
+        assertEquals(ReadTemperature.class, queue.dequeue().message().getClass());
+        assertEquals(RequestDeviceList.class, queue.dequeue().message().getClass());
+        assertEquals(RecordTemperature.class, queue.dequeue().message().getClass());
+        assertEquals(RequestTrackDevice.class, queue.dequeue().message().getClass());
+        assertNull(queue.dequeue());
+        assertFalse(queue.hasMessages());
+
+        // Over the high-water mark a reading replaces the queued one of its device, but not
+        // one queued before another message
+        queue = new PriorityMailbox.PriorityMessageQueue(
+                2, PriorityMailbox.Shedding.COLLAPSE, shedding, system.deadLetters());
+        queue.enqueue(receiver, Envelope.apply(new RecordDeviceTemperature("device1", 1L, 20.0), receiver));
+        queue.enqueue(receiver, Envelope.apply(new RecordDeviceTemperature("device2", 2L, 20.0), receiver));
+        queue.enqueue(receiver, Envelope.apply(new RecordDeviceTemperature("device1", 3L, 21.0), receiver));
+        assertEquals(1L, probe.expectMsgClass(Device.Overloaded.class).requestId);
+        queue.enqueue(receiver, Envelope.apply(new RequestTrackDevice("group", "device3"), receiver));
+        queue.enqueue(receiver, Envelope.apply(new RecordDeviceTemperature("device1", 4L, 22.0), receiver));
+        queue.enqueue(receiver, Envelope.apply(new RecordDeviceTemperature("device1", 5L, 23.0), receiver));
+        assertEquals(4L, probe.expectMsgClass(Device.Overloaded.class).requestId);
+        assertEquals(3L, ((RecordDeviceTemperature) queue.dequeue().message()).requestId);
+        assertEquals(2L, ((RecordDeviceTemperature) queue.dequeue().message()).requestId);
+        assertEquals(RequestTrackDevice.class, queue.dequeue().message().getClass());
+        assertEquals(5L, ((RecordDeviceTemperature) queue.dequeue().message()).requestId);
+        assertNull(queue.dequeue());
+        assertEquals(2L, shedding.collapsed() - collapsedBefore);
+
+        // Or is turned away; batches count with all their readings and are only answered
+        // when they ask to be acknowledged
+        queue = new PriorityMailbox.PriorityMessageQueue(
+                1, PriorityMailbox.Shedding.REJECT, shedding, system.deadLetters());
+        queue.enqueue(receiver, Envelope.apply(new RecordTemperature(1L, 20.0), receiver));
+        queue.enqueue(receiver, Envelope.apply(new RecordTemperatureBatch(
+                "group", "device", new long[]{2L, 4L, 3L}, new double[]{1.0, 2.0, 3.0}), receiver));
+        assertEquals(4L, probe.expectMsgClass(Device.Overloaded.class).requestId);
+        queue.enqueue(receiver, Envelope.apply(new RecordTemperatureBatch(
+                "group", "device", new long[]{5L}, new double[]{1.0}, false), receiver));
+        queue.enqueue(receiver, Envelope.apply(new ReadTemperature(6L), receiver));
+        probe.expectNoMessage(Duration.ofMillis(100));
+        assertEquals(2, queue.numberOfMessages());
+        assertEquals(4L, shedding.rejected() - rejectedBefore);
+
+        // Configured as iot.mailboxes.priority
+        ActorRef device = system.actorOf(Device.props("group", "device").withMailbox("iot.mailboxes.priority"));
+        device.tell(new RecordTemperature(7L, 24.0), receiver);
+        device.tell(new ReadTemperature(8L), receiver);
+        List<Object> replies = probe.receiveN(2);
+        assertTrue(replies.stream().anyMatch(reply -> reply instanceof Device.TemperatureRecorded));
+        assertTrue(replies.stream().anyMatch(reply -> reply instanceof RespondTemperature));
+        system.stop(device);
+    }
+
+    @Tag("logging")
+    @Test
+    void testHotPathLogFormatsOffThreadAndRateLimits() {
+        Config config = ConfigFactory.parseString(
+                "akka.loglevel = INFO\n" +
+                        "iot.logging.categories.limited.max-per-second = 5\n" +
+                        "iot.logging.categories.quiet.level = warning")
+                .withFallback(ConfigFactory.load());
+        ActorSystem logging = ActorSystem.create("hot-path-logging", config);
+        try {
+            TestKit probe = new TestKit(logging);
+            logging.eventStream().subscribe(probe.getRef(), Logging.Info.class);
+            IotLogging iotLogging = IotLogging.get(logging);
+
+            iotLogging.logger("quiet", IotTest.class).info("test", "Not logged {} {}", 1.0, 2L);
+            iotLogging.logger("plain", IotTest.class).info("test", "Reading {} with {}", 21.5, 7L);
+            Logging.Info info = probe.expectMsgClass(Logging.Info.class);
+            assertEquals("Reading 21.5 with 7", info.message());
+            assertEquals("test", info.logSource());
+
+            HotPathLog limited = iotLogging.logger("limited", IotTest.class);
+            for (int i = 0; i < 100; i++) {
+                limited.info("test", "Limited {} {}", "a", "b");
+            }
+            for (int i = 0; i < 5; i++) {
+                assertEquals("Limited a b", probe.expectMsgClass(Logging.Info.class).message());
+            }
+            probe.expectNoMessage(Duration.ofMillis(200));
+        } finally {
+            TestKit.shutdownActorSystem(logging);
+        }
+    }
+
+    @Tag("device-list")
+    @Test
+    void testDeviceIdSetMatchesTreeSetAndSharesOldVersions() {
+        Random random = new Random(12);
+        TreeSet<String> expected = new TreeSet<>();
+        DeviceIdSet ids = DeviceIdSet.EMPTY;
+        for (int i = 0; i < 20_000; i++) {
+            String id = "device-" + random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(id);
+                ids = ids.without(id);
+            } else {
+                expected.add(id);
+                ids = ids.with(id);
+            }
+        }
+        assertEquals(expected.size(), ids.size());
+        assertEquals(new ArrayList<>(expected), new ArrayList<>(ids));
+
+        DeviceIdSet snapshot = ids;
+        DeviceIdSet changed = ids.with("zzz").without(expected.first());
+        assertEquals(expected.size(), snapshot.size());
+        assertTrue(snapshot.contains(expected.first()));
+        assertFalse(snapshot.contains("zzz"));
+        assertEquals(expected.size(), changed.size());
+
+        List<String> underPrefix = expected.subSet("device-12", "device-13").stream()
+                .collect(Collectors.toList());
+        List<String> paged = new ArrayList<>();
+        String after = null;
+        List<String> page;
+        while (!(page = ids.page("device-12", after, 7)).isEmpty()) {
+            paged.addAll(page);
+            after = page.get(page.size() - 1);
+        }
+        assertEquals(underPrefix, paged);
+    }
+
+    @Tag("id-registry")
+    @Test
+    void testIdRegistryKeepsHandlesStableAndReusesReleasedOnes() {
+        Random random = new Random(13);
+        Map<String, Integer> expected = new HashMap<>();
+        IdRegistry registry = new IdRegistry(4);
+        for (int i = 0; i < 50_000; i++) {
+            String id = "device-" + random.nextInt(2_000);
+            Integer handle = expected.get(id);
+            if (handle != null && random.nextInt(3) == 0) {
+                assertTrue(registry.release(handle));
+                expected.remove(id);
+            } else if (handle != null) {
+                assertEquals(handle.intValue(), registry.intern(id));
+            } else {
+                expected.put(id, registry.intern(id));
+            }
+        }
+        assertEquals(expected.size(), registry.size());
+        expected.forEach((id, handle) -> {
+            assertEquals(handle.intValue(), registry.handleOf(id));
+            assertEquals(handle.intValue(), registry.handleOf("device-" + id, "device-".length()));
+            assertEquals(id, registry.idOf(handle));
+        });
+        // Handles stay below the peak number of ids registered at once
+        assertTrue(registry.capacity() <= 4_096);
+        assertEquals(IdRegistry.NO_HANDLE, registry.handleOf("device-unknown"));
+        assertEquals(IdRegistry.NO_HANDLE, registry.handleOf("device-device-1", "device-device".length()));
+
+        int released = registry.intern("released");
+        assertTrue(registry.release(released));
+        assertFalse(registry.release(released));
+        assertNull(registry.idOf(released));
+        assertEquals(released, registry.intern("reused"));
+    }
+
+    @Tag("device-group")
+    @Tag("device-list")
+    @Test
+    void testPageThroughDevicesByPrefix() {
+        TestKit probe = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+        for (String deviceId : new String[]{"b-2", "a-1", "b-1", "a-2", "b-3", "c-1"}) {
+            groupActor.tell(new RequestTrackDevice("group", deviceId), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+        }
+
+        groupActor.tell(new RequestDeviceListPage(1L, "b-", null, 2), probe.getRef());
+        ReplyDeviceListPage first = probe.expectMsgClass(ReplyDeviceListPage.class);
+        assertEquals(Arrays.asList("b-1", "b-2"), first.ids);
+        assertEquals("b-2", first.nextAfterId);
+
+        groupActor.tell(new RequestDeviceListPage(2L, "b-", first.nextAfterId, 2), probe.getRef());
+        ReplyDeviceListPage second = probe.expectMsgClass(ReplyDeviceListPage.class);
+        assertEquals(Arrays.asList("b-3"), second.ids);
+        assertEquals(null, second.nextAfterId);
+
+        groupActor.tell(new RequestDeviceListPage(3L, "", "b-3", Integer.MAX_VALUE), probe.getRef());
+        ReplyDeviceListPage unlimited = probe.expectMsgClass(ReplyDeviceListPage.class);
+        assertEquals(Arrays.asList("c-1"), unlimited.ids);
+        assertEquals(null, unlimited.nextAfterId);
+        assertThrows(IllegalArgumentException.class, () -> new RequestDeviceListPage(4L, null, null, 2));
+
+        groupActor.tell(new RequestDeviceList(3L), probe.getRef());
+        Set<String> all = probe.expectMsgClass(ReplyDeviceList.class).ids;
+        groupActor.tell(new RequestTrackDevice("group", "d-1"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        // The earlier reply is a snapshot and does not see the new device
+        assertEquals(6, all.size());
+        assertFalse(all.contains("d-1"));
+    }
+
+    @Tag("device-group")
+    @Tag("alerts")
+    @Test
+    void testRaiseAndClearAlertsAsReadingsArriveAndRulesChange() {
+        ActorSystem alerting = ActorSystem.create("alerting", ConfigFactory.parseString(
+                "iot.alerts.group-evaluation-interval = 50 ms\n")
+                .withFallback(ConfigFactory.load()));
+        try {
+            IotAlerts alerts = IotAlerts.get(alerting);
+            TestKit subscriber = new TestKit(alerting);
+            alerting.eventStream().subscribe(subscriber.getRef(), IotAlerts.Alert.class);
+            TestKit probe = new TestKit(alerting);
+            ActorRef groupActor = alerting.actorOf(DeviceGroup.props("group"));
+            ActorRef[] devices = new ActorRef[2];
+            for (int i = 0; i < devices.length; i++) {
+                groupActor.tell(new RequestTrackDevice("group", "device" + i), probe.getRef());
+                probe.expectMsgClass(DeviceRegistered.class);
+                devices[i] = probe.getLastSender();
+            }
+
+            alerts.setRules(Arrays.asList(
+                    new IotAlerts.DeviceThreshold("hot", null, true, 80.0, 100L),
+                    new IotAlerts.DeviceThreshold("other-group", "other", true, 0.0, 0L)));
+            devices[0].tell(new RecordTemperature(1L, 85.0), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+            // Not above the threshold for long enough yet
+            subscriber.expectNoMessage(Duration.ofMillis(150));
+            devices[0].tell(new RecordTemperature(2L, 86.0), probe.getRef());
+            IotAlerts.Alert raised = subscriber.expectMsgClass(IotAlerts.Alert.class);
+            assertEquals("hot", raised.ruleId);
+            assertEquals("device0", raised.deviceId);
+            assertTrue(raised.raised);
+            assertEquals(86.0, raised.value);
+
+            devices[0].tell(new RecordTemperature(3L, 70.0), probe.getRef());
+            IotAlerts.Alert cleared = subscriber.expectMsgClass(IotAlerts.Alert.class);
+            assertEquals("hot", cleared.ruleId);
+            assertFalse(cleared.raised);
+
+            // The running device picks up changed rules with its next reading
+            alerts.setRules(Arrays.asList(new IotAlerts.DeviceThreshold("cold", "group", false, 10.0, 0L)));
+            devices[1].tell(new RecordTemperature(4L, 5.0), probe.getRef());
+            IotAlerts.Alert cold = subscriber.expectMsgClass(IotAlerts.Alert.class);
+            assertEquals("cold", cold.ruleId);
+            assertEquals("device1", cold.deviceId);
+            assertTrue(cold.raised);
+            // Removing a raised rule clears its alert
+            alerts.setRules(Arrays.asList(new IotAlerts.GroupAverageRising("rising", "group", 60.0, 200L)));
+            devices[1].tell(new RecordTemperature(5L, 20.0), probe.getRef());
+            cleared = subscriber.expectMsgClass(IotAlerts.Alert.class);
+            assertEquals("cold", cleared.ruleId);
+            assertFalse(cleared.raised);
+
+            devices[0].tell(new RecordTemperature(6L, 20.0), probe.getRef());
+            // Let the group sample a flat average for a full window first
+            subscriber.expectNoMessage(Duration.ofMillis(400));
+            devices[0].tell(new RecordTemperature(7L, 40.0), probe.getRef());
+            devices[1].tell(new RecordTemperature(8L, 40.0), probe.getRef());
+            IotAlerts.Alert rising = subscriber.expectMsgClass(IotAlerts.Alert.class);
+            assertEquals("rising", rising.ruleId);
+            assertEquals("group", rising.groupId);
+            assertNull(rising.deviceId);
+            assertTrue(rising.raised);
+            assertTrue(rising.value > 60.0);
+            // Cleared once the window no longer covers the rise
+            cleared = subscriber.expectMsgClass(IotAlerts.Alert.class);
+            assertEquals("rising", cleared.ruleId);
+            assertFalse(cleared.raised);
+        } finally {
+            TestKit.shutdownActorSystem(alerting);
+        }
+    }
+
+    @Tag("temperature-feed")
+    @Test
+    void testStreamDeviceReadingsToSubscriberAsItRequestsThem() {
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef deviceActor = system.actorOf(Device.props("group", "device"));
+        deviceActor.tell(new TemperatureFeed.SubscribeTemperatures(2, TemperatureFeed.OverflowPolicy.DROP_OLDEST),
+                subscriber.getRef());
+        subscriber.expectMsgClass(TemperatureFeed.TemperaturesSubscribed.class);
+
+        for (int i = 0; i < 5; i++) {
+            deviceActor.tell(new RecordTemperature(i, 20.0 + i), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+        }
+        // Nothing is sent before the subscriber asks
+        subscriber.expectNoMessage(Duration.ofMillis(100));
+        deviceActor.tell(new TemperatureFeed.RequestTemperatureUpdates(3), subscriber.getRef());
+        assertEquals(3L, subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdatesDropped.class).count);
+        assertEquals(3L, subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdate.class).requestId);
+        assertEquals(4L, subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdate.class).requestId);
+
+        deviceActor.tell(new RecordTemperature(5L, 30.0), probe.getRef());
+        TemperatureFeed.TemperatureUpdate update = subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdate.class);
+        assertEquals("device", update.deviceId);
+        assertEquals(30.0, update.value);
+
+        deviceActor.tell(TemperatureFeed.UnsubscribeTemperatures.INSTANCE, subscriber.getRef());
+        deviceActor.tell(new TemperatureFeed.RequestTemperatureUpdates(10), subscriber.getRef());
+        deviceActor.tell(new RecordTemperature(6L, 31.0), probe.getRef());
+        probe.expectMsgClass(Device.TemperatureRecorded.class);
+        subscriber.expectNoMessage(Duration.ofMillis(100));
+    }
+
+    @Tag("device-group")
+    @Tag("temperature-feed")
+    @Test
+    void testCoalesceGroupReadingsPerDeviceForSlowSubscribers() {
+        TestKit probe = new TestKit(system);
+        TestKit subscriber = new TestKit(system);
+        ActorRef groupActor = system.actorOf(DeviceGroup.props("group"));
+        ActorRef[] devices = new ActorRef[3];
+        for (int i = 0; i < devices.length; i++) {
+            groupActor.tell(new RequestTrackDevice("group", "device" + i), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            devices[i] = probe.getLastSender();
+        }
+        groupActor.tell(new TemperatureFeed.SubscribeTemperatures(2, TemperatureFeed.OverflowPolicy.COALESCE),
+                subscriber.getRef());
+        subscriber.expectMsgClass(TemperatureFeed.TemperaturesSubscribed.class);
+        ActorRef feed = subscriber.getLastSender();
+
+        int[] order = {0, 0, 1, 1, 2};
+        for (int i = 0; i < order.length; i++) {
+            devices[order[i]].tell(new RecordTemperature(i, 20.0 + i), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+        }
+        feed.tell(new TemperatureFeed.RequestTemperatureUpdates(10), subscriber.getRef());
+        // device0 was superseded once and then pushed out by device2, device1 superseded once
+        assertEquals(3L, subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdatesDropped.class).count);
+        TemperatureFeed.TemperatureUpdate first = subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdate.class);
+        assertEquals("device1", first.deviceId);
+        assertEquals(23.0, first.value);
+        assertEquals("device2", subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdate.class).deviceId);
+
+        // Readings of compact devices go through the same feed
+        ActorRef compactGroup = system.actorOf(DeviceGroup.props("compact", true));
+        compactGroup.tell(new RequestTrackDevice("compact", "row"), probe.getRef());
+        probe.expectMsgClass(DeviceRegistered.class);
+        compactGroup.tell(new TemperatureFeed.SubscribeTemperatures(1, TemperatureFeed.OverflowPolicy.DROP_OLDEST),
+                subscriber.getRef());
+        subscriber.expectMsgClass(TemperatureFeed.TemperaturesSubscribed.class);
+        compactGroup.tell(new TemperatureFeed.RequestTemperatureUpdates(1), subscriber.getRef());
+        compactGroup.tell(new RecordDeviceTemperature("row", 1L, 12.5), probe.getRef());
+        TemperatureFeed.TemperatureUpdate row = subscriber.expectMsgClass(TemperatureFeed.TemperatureUpdate.class);
+        assertEquals("compact", row.groupId);
+        assertEquals(12.5, row.value);
+    }
+
+    @Tag("device-group")
+    @Tag("provisioning")
+    @Test
+    void testProvisionDevicesInBatchesAndStartThemOnFirstMessage() throws IOException {
+        Path file = Files.createTempFile("devices", ".csv");
+        ActorSystem provisioning = ActorSystem.create("provisioning", ConfigFactory.parseString(
+                "iot.provisioning.batch-size = 2\n")
+                .withFallback(ConfigFactory.load()));
+        try {
+            Files.write(file, Arrays.asList(
+                    "# group,device", "a,a-1", "a,a-2", "", "b,b-1", "a,a-3", "a,a-2", "a,tracked"),
+                    StandardCharsets.UTF_8);
+            DeviceManager.ProvisionDevices provision = DeviceManager.ProvisionDevices.fromFile(7L, file);
+            assertEquals(Arrays.asList("a-1", "a-2", "a-3", "a-2", "tracked"), provision.devicesByGroup.get("a"));
+            assertEquals(Arrays.asList("b-1"), provision.devicesByGroup.get("b"));
+
+            TestKit probe = new TestKit(provisioning);
+            ActorRef managerActor = provisioning.actorOf(DeviceManager.props());
+            managerActor.tell(new RequestTrackDevice("a", "tracked"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            ActorRef tracked = probe.getLastSender();
+            managerActor.tell(provision, probe.getRef());
+            DeviceManager.DevicesProvisioned done = (DeviceManager.DevicesProvisioned) probe.fishForMessage(
+                    FiniteDuration.create(3, TimeUnit.SECONDS), "provisioned", m -> m instanceof DeviceManager.DevicesProvisioned);
+            assertEquals(7L, done.requestId);
+            assertEquals(2, done.groups);
+            assertEquals(6, done.devices);
+            // The duplicate a-2 and the device that was tracked before already existed
+            assertEquals(4, done.created);
+
+            managerActor.tell(new DeviceManager.GroupMessage("a", new RequestDeviceList(1L)), probe.getRef());
+            assertEquals(Stream.of("a-1", "a-2", "a-3", "tracked").collect(Collectors.toSet()),
+                    probe.expectMsgClass(ReplyDeviceList.class).ids);
+
+            // Provisioned devices have no actor until a message arrives for them
+            managerActor.tell(new RequestTrackDevice("a", "a-1"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            ActorRef started = probe.getLastSender();
+            assertNotEquals(tracked, started);
+            started.tell(new RecordTemperature(1L, 21.0), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+            managerActor.tell(new DeviceManager.GroupMessage("a", new RequestAllTemperatures(2L)), probe.getRef());
+            Map<String, TemperatureReading> temperatures =
+                    probe.expectMsgClass(RespondAllTemperatures.class).temperatures;
+            assertEquals(new Temperature(21.0), temperatures.get("a-1"));
+            assertEquals(TemperatureNotAvailable.INSTANCE, temperatures.get("a-3"));
+            assertEquals(4, temperatures.size());
+
+            // A batch size of 0 would never get past the first batch
+            assertThrows(IllegalArgumentException.class, () -> new IotSettings(ConfigFactory.parseString(
+                    "iot.provisioning.batch-size = 0").withFallback(ConfigFactory.load()).getConfig("iot")));
+        } finally {
+            TestKit.shutdownActorSystem(provisioning);
+            Files.delete(file);
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("provisioning")
+    @Test
+    void testReportUnacknowledgedBatchesWhenProvisioningTimesOut() {
+        ActorSystem provisioning = ActorSystem.create("provisioning-timeout", ConfigFactory.parseString(
+                "iot.provisioning.batch-size = 2\n" +
+                        "iot.provisioning.progress-interval = 0\n" +
+                        "iot.provisioning.timeout = 300 ms\n")
+                .withFallback(ConfigFactory.load()));
+        try {
+            TestKit registry = new TestKit(provisioning);
+            TestKit requester = new TestKit(provisioning);
+            Map<String, List<String>> devicesByGroup = new LinkedHashMap<>();
+            devicesByGroup.put("a", Arrays.asList("a-1", "a-2", "a-3"));
+            devicesByGroup.put("b", Arrays.asList("b-1"));
+            provisioning.actorOf(DeviceProvisioning.props(
+                    registry.getRef(), new DeviceManager.ProvisionDevices(5L, devicesByGroup), requester.getRef()));
+
+            // Only the first batch of a is acknowledged
+            for (int i = 0; i < 3; i++) {
+                registry.expectMsgClass(DeviceManager.ProvisionGroupDevices.class);
+                if (i == 0) {
+                    registry.reply(new DeviceManager.GroupDevicesProvisioned("a", 2, 2));
+                }
+            }
+            DeviceManager.ProvisioningTimedOut timedOut =
+                    requester.expectMsgClass(Duration.ofSeconds(3), DeviceManager.ProvisioningTimedOut.class);
+            assertEquals(5L, timedOut.requestId);
+            assertEquals(2, timedOut.devicesDone);
+            assertEquals(4, timedOut.devicesTotal);
+            Map<String, Integer> missing = new HashMap<>();
+            missing.put("a", 1);
+            missing.put("b", 1);
+            assertEquals(missing, timedOut.missingBatches);
+        } finally {
+            TestKit.shutdownActorSystem(provisioning);
+        }
+    }
+
+    @Tag("device-list")
+    @Test
+    void testDeviceIdSetMergesSortedBatches() {
+        Random random = new Random(18L);
+        DeviceIdSet set = DeviceIdSet.EMPTY;
+        TreeSet<String> expected = new TreeSet<>();
+        for (int round = 0; round < 20; round++) {
+            // Alternates between batches that are small and large next to the set
+            int batchSize = round % 2 == 0 ? 3 : 50 + random.nextInt(200);
+            TreeSet<String> batch = new TreeSet<>();
+            while (batch.size() < batchSize) {
+                String id = "d" + random.nextInt(100_000);
+                if (!expected.contains(id)) {
+                    batch.add(id);
+                }
+            }
+            DeviceIdSet before = set;
+            int sizeBefore = before.size();
+            set = set.withAll(new ArrayList<>(batch));
+            expected.addAll(batch);
+            assertEquals(new ArrayList<>(expected), new ArrayList<>(set));
+            assertEquals(sizeBefore, before.size());
+        }
+    }
+
+    @Tag("serialization")
+    @Test
+    void testRoundTripEveryProtocolMessageThroughIotSerializer() {
+        RecordTemperatureBatch batch = roundTrip(new RecordTemperatureBatch(
+                "group", "device", new long[]{1L, 300L, Long.MAX_VALUE}, new double[]{1.5, -2.0, 1e300}, true));
+        assertEquals(Arrays.toString(new long[]{1L, 300L, Long.MAX_VALUE}), Arrays.toString(batch.requestIds));
+        assertEquals(Arrays.toString(new double[]{1.5, -2.0, 1e300}), Arrays.toString(batch.values));
+        assertTrue(batch.acknowledge);
+        ReadTemperatureStats stats = roundTrip(new ReadTemperatureStats(-1L, 60_000L, new double[]{50.0, 99.9}));
+        assertEquals(-1L, stats.requestId);
+        assertEquals(99.9, stats.percentiles[1]);
+        roundTrip(new ReadTemperature(42L));
+        roundTrip(new RespondTemperature(42L, 21.5, true));
+        roundTrip(new RecordTemperature(0L, Double.NaN));
+        roundTrip(new Device.TemperatureRecorded(7L));
+        roundTrip(new TemperatureBatchRecorded(300L));
+        roundTrip(new TemperatureBatchDropped("group", "device", 300L));
+        roundTrip(new RespondTemperatureStats(3L, 2, 1.0, 2.0, 1.5, new double[]{1.0, 2.0}));
+
+        // Non-ASCII ids, including a character outside the BMP
+        RecordDeviceTemperature record = roundTrip(new RecordDeviceTemperature("f\u00fchler-\ud83c\udf21", 5L, 20.0));
+        assertEquals("f\u00fchler-\ud83c\udf21", record.deviceId);
+        roundTrip(new ReadDeviceTemperature("device", 6L));
+        roundTrip(new PromoteDevice("device"));
+        roundTrip(new RequestDeviceList(8L));
+        ReplyDeviceList list = roundTrip(new ReplyDeviceList(
+                9L, DeviceIdSet.EMPTY.withAll(Arrays.asList("a", "b", "c"))));
+        assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<>(list.ids));
+        RequestDeviceListPage page = roundTrip(new RequestDeviceListPage(10L, "dev", null, 100));
+        assertNull(page.afterId);
+        assertEquals("", roundTrip(new RequestDeviceListPage(10L, "dev", "", 100)).afterId);
+        roundTrip(new ReplyDeviceListPage(11L, Arrays.asList("d1", "d2"), "d2"));
+        roundTrip(new RequestAllTemperatures(12L));
+        Map<String, TemperatureReading> readings = new HashMap<>();
+        readings.put("d1", new Temperature(20.5));
+        readings.put("d2", TemperatureNotAvailable.INSTANCE);
+        readings.put("d3", DeviceNotAvailable.INSTANCE);
+        readings.put("d4", DeviceTimedOut.INSTANCE);
+        RespondAllTemperatures all = (RespondAllTemperatures) deserialize(new RespondAllTemperatures(13L, readings));
+        assertEquals(20.5, ((Temperature) all.temperatures.get("d1")).value);
+        assertEquals(TemperatureNotAvailable.INSTANCE, all.temperatures.get("d2"));
+        assertEquals(DeviceNotAvailable.INSTANCE, all.temperatures.get("d3"));
+        assertEquals(DeviceTimedOut.INSTANCE, all.temperatures.get("d4"));
+        assertEquals(DeviceTimedOut.INSTANCE, deserialize(DeviceTimedOut.INSTANCE));
+
+        roundTrip(new RequestTrackDevice("group", "device"));
+        roundTrip(new DeviceRegistered());
+        roundTrip(new RequestTrackDevice("group", "device", 7L));
+        roundTrip(new DeviceRegistered(7L));
+        roundTrip(new Device.Overloaded(8L));
+        DeviceManager.GroupMessage inline = roundTrip(new DeviceManager.GroupMessage("group", new ReadTemperature(14L)));
+        assertEquals(14L, ((ReadTemperature) inline.message).requestId);
+        // A message of another serializer is carried as that serializer's bytes
+        DeviceManager.GroupMessage foreign = roundTrip(new DeviceManager.GroupMessage("group", new byte[]{1, 2, 3}));
+        assertEquals("[1, 2, 3]", Arrays.toString((byte[]) foreign.message));
+        Map<String, List<String>> devicesByGroup = new java.util.LinkedHashMap<>();
+        devicesByGroup.put("g1", Arrays.asList("d1", "d2"));
+        devicesByGroup.put("g2", new ArrayList<>());
+        DeviceManager.ProvisionDevices provision = roundTrip(new DeviceManager.ProvisionDevices(15L, devicesByGroup));
+        assertEquals(devicesByGroup, provision.devicesByGroup);
+        roundTrip(new DeviceManager.ProvisioningProgress(15L, 1, 2, 3L));
+        roundTrip(new DeviceManager.DevicesProvisioned(15L, 2, 2, 1, 4L));
+        roundTrip(new DeviceManager.ProvisionGroupDevices("g1", Arrays.asList("d1", "d2")));
+        roundTrip(new DeviceManager.GroupDevicesProvisioned("group", 2, 1));
+        roundTrip(new DeviceManager.ProvisioningTimedOut(15L, 1, 2, Collections.singletonMap("group", 1)));
+
+        IotAlerts.DeviceThreshold threshold = roundTrip(new IotAlerts.DeviceThreshold("hot", null, true, 30.0, 1000L));
+        assertNull(threshold.groupId);
+        roundTrip(new IotAlerts.GroupAverageRising("rising", "group", 2.0, 60_000L));
+        roundTrip(new IotAlerts.Alert("hot", "group", "device", true, 31.0, 1234L));
+
+        TemperatureFeed.SubscribeTemperatures subscribe = roundTrip(
+                new TemperatureFeed.SubscribeTemperatures(16, TemperatureFeed.OverflowPolicy.COALESCE));
+        assertEquals(TemperatureFeed.OverflowPolicy.COALESCE, subscribe.overflow);
+        assertEquals(TemperatureFeed.TemperaturesSubscribed.INSTANCE,
+                deserialize(TemperatureFeed.TemperaturesSubscribed.INSTANCE));
+        roundTrip(new TemperatureFeed.RequestTemperatureUpdates(Long.MAX_VALUE));
+        assertEquals(TemperatureFeed.UnsubscribeTemperatures.INSTANCE,
+                deserialize(TemperatureFeed.UnsubscribeTemperatures.INSTANCE));
+        roundTrip(new TemperatureFeed.TemperatureUpdate("group", "device", 17L, 22.0, 5678L));
+        roundTrip(new TemperatureFeed.TemperatureUpdatesDropped(18L));
+        roundTrip(new TemperatureRollup.RequestRollup(19L, 50.0, 99.0));
+        roundTrip(new TemperatureRollup.RespondRollup(20L, 3L, -1.5, 30.0, 12.0, new double[]{10.0, 29.5}));
+    }
+
+    @Tag("device-group")
+    @Tag("supervision")
+    @Test
+    void testRestartFailedDevicesAndGroupsAfterBackoffWithinTheirBudget() {
+        Config config = ConfigFactory.parseString(
+                "iot.supervision.device { min-backoff = 300 ms, max-backoff = 300 ms, random-factor = 0, " +
+                        "max-restarts = 1, within = 1 minute }\n" +
+                        "iot.supervision.group { min-backoff = 300 ms, max-backoff = 300 ms, random-factor = 0, " +
+                        "max-restarts = 1, within = 1 minute }\n")
+                .withFallback(ConfigFactory.load());
+        ActorSystem supervised = ActorSystem.create("supervised", config);
+        try {
+            TestKit probe = new TestKit(supervised);
+            IotMetrics.TierMetrics devices = IotMetrics.get(supervised).tier(IotMetrics.Tier.DEVICE);
+            IotMetrics.TierMetrics groups = IotMetrics.get(supervised).tier(IotMetrics.Tier.GROUP);
+            ActorRef managerActor = supervised.actorOf(DeviceManager.props());
+            managerActor.tell(new RequestTrackDevice("group", "device1"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            ActorRef device1 = probe.getLastSender();
+            managerActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            device1.tell(new RecordTemperature(1L, 21.0), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+            // A payload the device cannot handle; messages wait in its mailbox during the backoff
+            device1.tell(new ReadTemperatureStats(2L, 60_000L, (double[]) null), probe.getRef());
+            device1.tell(new ReadTemperature(3L), probe.getRef());
+            probe.expectNoMessage(Duration.ofMillis(150));
+            RespondTemperature afterRestart = probe.expectMsgClass(RespondTemperature.class);
+            assertEquals(3L, afterRestart.requestId);
+            assertEquals(21.0, afterRestart.value);
+            assertEquals(1L, devices.restarts());
+            assertEquals(1L, devices.backoffs());
+
+            // The group comes back with its members and the same device actors
+            managerActor.tell(new DeviceManager.ProvisionGroupDevices("group", null), probe.getRef());
+            managerActor.tell(new DeviceManager.GroupMessage("group", new RequestDeviceList(4L)), probe.getRef());
+            probe.expectNoMessage(Duration.ofMillis(150));
+            ReplyDeviceList list = probe.expectMsgClass(ReplyDeviceList.class);
+            assertEquals(Arrays.asList("device1", "device2"), new ArrayList<>(list.ids));
+            assertEquals(1L, groups.restarts());
+            managerActor.tell(new DeviceManager.GroupMessage(
+                    "group", new ReadDeviceTemperature("device1", 5L)), probe.getRef());
+            assertEquals(21.0, probe.expectMsgClass(RespondTemperature.class).value);
+            assertEquals(device1, probe.getLastSender());
+
+            // A second failure within the minute is over the device's budget
+            probe.watch(device1);
+            device1.tell(new ReadTemperatureStats(6L, 60_000L, (double[]) null), probe.getRef());
+            probe.expectTerminated(device1);
+            assertEquals(1L, devices.restarts());
+            assertEquals(1L, devices.restartBudgetsExhausted());
+        } finally {
+            TestKit.shutdownActorSystem(supervised);
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("rollup")
+    @Test
+    void testRollUpReadingsIntoGroupAndFleetSummaries() {
+        Config config = ConfigFactory.parseString("iot.rollup.interval = 100 ms").withFallback(ConfigFactory.load());
+        ActorSystem rolling = ActorSystem.create("rolling", config);
+        try {
+            TestKit probe = new TestKit(rolling);
+            ActorRef managerActor = rolling.actorOf(DeviceManager.props());
+            List<ActorRef> devices = new ArrayList<>();
+            for (String[] ids : new String[][]{{"a", "device1"}, {"a", "device2"}, {"b", "device3"}}) {
+                managerActor.tell(new RequestTrackDevice(ids[0], ids[1]), probe.getRef());
+                probe.expectMsgClass(DeviceRegistered.class);
+                devices.add(probe.getLastSender());
+            }
+            // Non-finite readings are kept out of the rollups
+            devices.get(0).tell(new RecordTemperature(0L, Double.NaN), probe.getRef());
+            devices.get(0).tell(new RecordTemperature(0L, Double.POSITIVE_INFINITY), probe.getRef());
+            devices.get(1).tell(new RecordTemperature(0L, Double.NEGATIVE_INFINITY), probe.getRef());
+            probe.receiveN(3);
+            // Group a gets 1 to 200, group b -50 to -1
+            for (int i = 1; i <= 100; i++) {
+                devices.get(0).tell(new RecordTemperature(i, i), probe.getRef());
+                devices.get(1).tell(new RecordTemperature(i, 100 + i), probe.getRef());
+            }
+            probe.receiveN(200);
+            long[] requestIds = new long[50];
+            double[] values = new double[50];
+            for (int i = 0; i < 50; i++) {
+                requestIds[i] = i;
+                values[i] = i - 50;
+            }
+            managerActor.tell(new RecordTemperatureBatch("b", "device3", requestIds, values), probe.getRef());
+            probe.expectMsgClass(TemperatureBatchRecorded.class);
+
+            probe.awaitAssert(Duration.ofSeconds(3), () -> {
+                managerActor.tell(new DeviceManager.GroupMessage(
+                        "a", new TemperatureRollup.RequestRollup(1L, 50.0, 99.0)), probe.getRef());
+                TemperatureRollup.RespondRollup group = probe.expectMsgClass(TemperatureRollup.RespondRollup.class);
+                assertEquals(200L, group.count);
+                assertEquals(1.0, group.min);
+                assertEquals(200.0, group.max);
+                assertEquals(100.5, group.average, 1e-9);
+                assertEquals(100.0, group.percentiles[0], 1.0);
+                assertEquals(198.0, group.percentiles[1], 1.98);
+                return null;
+            });
+            probe.awaitAssert(Duration.ofSeconds(3), () -> {
+                managerActor.tell(new TemperatureRollup.RequestRollup(2L, 10.0, 100.0), probe.getRef());
+                TemperatureRollup.RespondRollup fleet = probe.expectMsgClass(TemperatureRollup.RespondRollup.class);
+                assertEquals(2L, fleet.requestId);
+                assertEquals(250L, fleet.count);
+                assertEquals(-50.0, fleet.min);
+                assertEquals(200.0, fleet.max);
+                assertEquals(75.3, fleet.average, 1e-9);
+                assertEquals(-26.0, fleet.percentiles[0], 0.26);
+                assertEquals(200.0, fleet.percentiles[1]);
+                return null;
+            });
+
+            TemperatureSketch sketch = new TemperatureSketch();
+            assertThrows(IllegalArgumentException.class, () -> sketch.record(Double.POSITIVE_INFINITY));
+            assertThrows(IllegalArgumentException.class, () -> sketch.record(Double.NaN));
+            TemperatureRollup rollup = new TemperatureRollup();
+            assertThrows(IllegalArgumentException.class, () -> rollup.record(Double.NEGATIVE_INFINITY));
+            assertTrue(rollup.isEmpty());
+        } finally {
+            TestKit.shutdownActorSystem(rolling);
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("snapshot-cache")
+    @Test
+    void testServeGroupSnapshotsFromCacheUntilDevicesChange() {
+        Config config = ConfigFactory.parseString(
+                "iot.group.snapshot-ttl = 1 minute\n" +
+                "iot.group.report-interval = 50 ms\n")
+                .withFallback(ConfigFactory.load());
+        ActorSystem caching = ActorSystem.create("caching", config);
+        try {
+            TestKit probe = new TestKit(caching);
+            IotMetrics.SnapshotMetrics snapshots = IotMetrics.get(caching).snapshots();
+            ActorRef groupActor = caching.actorOf(DeviceGroup.props("group"));
+            groupActor.tell(new RequestTrackDevice("group", "device1"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            ActorRef device1 = probe.getLastSender();
+            groupActor.tell(new RequestTrackDevice("group", "device2"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            groupActor.tell(new RecordDeviceTemperature("device1", 1L, 20.0), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+
+            // One collection answers all three, whether they wait for it or come after it
+            for (long requestId = 1L; requestId <= 3L; requestId++) {
+                groupActor.tell(new RequestAllTemperatures(requestId), probe.getRef());
+            }
+            Map<String, TemperatureReading> expected = new HashMap<>();
+            expected.put("device1", new Temperature(20.0));
+            expected.put("device2", TemperatureNotAvailable.INSTANCE);
+            for (long requestId = 1L; requestId <= 3L; requestId++) {
+                RespondAllTemperatures response = probe.expectMsgClass(RespondAllTemperatures.class);
+                assertEquals(requestId, response.requestId);
+                assertEquals(expected, response.temperatures);
+            }
+            assertEquals(1L, snapshots.misses());
+            assertEquals(2L, snapshots.hits() + snapshots.coalesced());
+
+            // Readings routed through the group are patched in
+            groupActor.tell(new RecordDeviceTemperature("device2", 2L, 21.0), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+            groupActor.tell(new RequestAllTemperatures(4L), probe.getRef());
+            expected.put("device2", new Temperature(21.0));
+            assertEquals(expected, probe.expectMsgClass(RespondAllTemperatures.class).temperatures);
+
+            // And so are readings sent straight to a device, once the device reports them
+            device1.tell(new RecordTemperature(3L, 25.0), probe.getRef());
+            probe.expectMsgClass(Device.TemperatureRecorded.class);
+            expected.put("device1", new Temperature(25.0));
+            probe.awaitAssert(Duration.ofSeconds(3), () -> {
+                groupActor.tell(new RequestAllTemperatures(5L), probe.getRef());
+                assertEquals(expected, probe.expectMsgClass(RespondAllTemperatures.class).temperatures);
+                return null;
+            });
+            assertEquals(1L, snapshots.misses());
+
+            // A new device makes the group ask its devices again
+            groupActor.tell(new RequestTrackDevice("group", "device3"), probe.getRef());
+            probe.expectMsgClass(DeviceRegistered.class);
+            groupActor.tell(new RequestAllTemperatures(6L), probe.getRef());
+            expected.put("device3", TemperatureNotAvailable.INSTANCE);
+            assertEquals(expected, probe.expectMsgClass(RespondAllTemperatures.class).temperatures);
+            assertEquals(2L, snapshots.misses());
+        } finally {
+            TestKit.shutdownActorSystem(caching);
+        }
+    }
+
+    @Tag("device-group")
+    @Tag("client")
+    @Test
+    void testCompleteClientRequestsByRequestId() throws Exception {
+        Config config = ConfigFactory.parseString("iot.client.timeout = 300 ms")
+                .withFallback(ConfigFactory.load());
+        ActorSystem clientSystem = ActorSystem.create("client", config);
+        try {
+            ActorRef manager = clientSystem.actorOf(DeviceManager.props());
+            IotClient client = IotClient.create(clientSystem, manager);
+            client.track("group", "device1").toCompletableFuture().get(3, TimeUnit.SECONDS);
+            client.track("group", "device2").toCompletableFuture().get(3, TimeUnit.SECONDS);
+            assertFalse(client.read("group", "device1").toCompletableFuture().get(3, TimeUnit.SECONDS).isPresent());
+            client.record("group", "device1", 20.5).toCompletableFuture().get(3, TimeUnit.SECONDS);
+            assertEquals(20.5, client.read("group", "device1").toCompletableFuture()
+                    .get(3, TimeUnit.SECONDS).getAsDouble());
+            assertEquals(new HashSet<>(Arrays.asList("device1", "device2")),
+                    client.list("group").toCompletableFuture().get(3, TimeUnit.SECONDS));
+
+            // Pipelined requests are each completed with their own reply
+            List<CompletableFuture<OptionalDouble>> reads = new ArrayList<>();
+            for (int i = 0; i < 1_000; i++) {
+                client.record("group", "device" + (i % 2 + 1), i);
+                reads.add(client.read("group", "device" + (i % 2 + 1)).toCompletableFuture());
+            }
+            for (int i = 0; i < reads.size(); i++) {
+                assertEquals(i, reads.get(i).get(3, TimeUnit.SECONDS).getAsDouble());
+            }
+
+            // Unknown devices get no reply
+            CompletableFuture<OptionalDouble> unknown =
+                    client.read("group", "unknown").toCompletableFuture();
+            ExecutionException timedOut = assertThrows(
+                    ExecutionException.class, () -> unknown.get(3, TimeUnit.SECONDS));
+            assertTrue(timedOut.getCause() instanceof TimeoutException);
+            assertEquals(0, client.pendingRequests());
+
+            // Requests after close fail at once instead of waiting for a correlator that is gone
+            client.close();
+            CompletableFuture<Done> afterClose = client.track("group", "device3").toCompletableFuture();
+            ExecutionException closed = assertThrows(
+                    ExecutionException.class, () -> afterClose.get(3, TimeUnit.SECONDS));
+            assertTrue(closed.getCause() instanceof IllegalStateException);
+            assertEquals(0, client.pendingRequests());
+        } finally {
+            TestKit.shutdownActorSystem(clientSystem);
+        }
+    }
+
+    @Tag("simulator")
+    @Test
+    void testSimulateFleetAndAnswerEveryRequest() throws Exception {
+        ActorRef supervisor = system.actorOf(IotSupervisor.props(), "simulated-supervisor");
+        TestKit probe = new TestKit(system);
+        supervisor.tell(IotSupervisor.RequestDeviceRegistry.INSTANCE, probe.getRef());
+        ActorRef registry = probe.expectMsgClass(ActorRef.class);
+
+        FleetSimulator.Fleet fleet = new FleetSimulator.Fleet(2, 50, 10.0, 20, 1, 1, 2);
+        FleetSimulator.Result result = FleetSimulator.run(system, registry, fleet);
+        assertEquals(2_000L, result.load.sent.sum());
+        assertEquals(0L, result.unanswered());
+        assertEquals(1_000L, result.load.measured.sum());
+        assertEquals(200L, result.load.readLatency.count());
+        assertEquals(800L, result.load.recordLatency.count());
+        // Reads move between devices from round to round, so every device was written too
+        registry.tell(new DeviceManager.GroupMessage("group-0", new RequestAllTemperatures(1L)), probe.getRef());
+        Map<String, TemperatureReading> temperatures = probe.expectMsgClass(RespondAllTemperatures.class).temperatures;
+        assertEquals(50, temperatures.size());
+        assertTrue(temperatures.values().stream().allMatch(t -> t instanceof Temperature));
+        system.stop(supervisor);
+    }
+
+    private static Object deserialize(Object message) {
+        Serialization serialization = SerializationExtension.get(system);
+        Serializer serializer = serialization.findSerializerFor(message);
+        assertEquals(IotSerializer.class, serializer.getClass());
+        byte[] bytes = serializer.toBinary(message);
+        Object copy = serialization.deserialize(
+                bytes, serializer.identifier(), Serializers.manifestFor(serializer, message)).get();
+        assertEquals(message.getClass(), copy.getClass());
+        return copy;
+    }
+
+    // Checks that the copy has the same fields by encoding it again
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T message) {
+        Object copy = deserialize(message);
+        Serializer serializer = SerializationExtension.get(system).findSerializerFor(message);
+        assertEquals(Arrays.toString(serializer.toBinary(message)), Arrays.toString(serializer.toBinary(copy)));
+        return (T) copy;
+    }
+
+    @Tag("cluster")
+    @Test
+    void testSpreadGroupsOverClusterNodesAndRebalanceOnMembershipChanges() throws Exception {
+        Path directory = Files.createTempDirectory("iot-cluster");
+        int seedPort = freePort();
+        int secondPort = freePort();
+        int thirdPort = freePort();
+        List<Process> nodes = new ArrayList<>();
+        // The test's own node only routes to the groups, which live on the nodes with the iot role
+        ActorSystem client = ActorSystem.create("iot-system", clusterNodeConfig(freePort(), seedPort, "client")
+                .withFallback(ConfigFactory.load()));
+        try {
+            nodes.add(startClusterNode(directory, seedPort, seedPort));
+            nodes.add(startClusterNode(directory, secondPort, seedPort));
+            ActorRef registry = ClusterDeviceRegistry.start(client);
+            awaitMembersUp(client, 3);
+
+            Set<Integer> hosts = trackDeviceInEveryGroup(client, registry);
+            assertEquals(new HashSet<>(Arrays.asList(seedPort, secondPort)), hosts);
+
+            TestKit probe = new TestKit(client);
+            registry.tell(new DeviceManager.GroupMessage("group-3", new RecordDeviceTemperature("device", 7L, 21.5)),
+                    probe.getRef());
+            assertEquals(7L, probe.expectMsgClass(Device.TemperatureRecorded.class).requestId);
+            registry.tell(new DeviceManager.GroupMessage("group-3", new RequestAllTemperatures(8L)), probe.getRef());
+            RespondAllTemperatures all = probe.expectMsgClass(RespondAllTemperatures.class);
+            assertEquals(new Temperature(21.5), all.temperatures.get("device"));
+
+            // A joining node takes over shards, and with them groups
+            nodes.add(startClusterNode(directory, thirdPort, seedPort));
+            awaitMembersUp(client, 4);
+            TestKit waiter = new TestKit(client);
+            waiter.awaitAssert(Duration.ofSeconds(60), Duration.ofSeconds(1), () -> {
+                assertTrue(trackDeviceInEveryGroup(client, registry).contains(thirdPort));
+                return null;
+            });
+
+            // Groups of a node that goes away are started again on the others
+            nodes.get(1).destroyForcibly().waitFor();
+            waiter.awaitAssert(Duration.ofSeconds(60), Duration.ofSeconds(1), () -> {
+                Set<Integer> remaining = trackDeviceInEveryGroup(client, registry);
+                assertFalse(remaining.contains(secondPort));
+                assertEquals(new HashSet<>(Arrays.asList(seedPort, thirdPort)), remaining);
+                return null;
+            });
+        } finally {
+            TestKit.shutdownActorSystem(client);
+            for (Process node : nodes) {
+                node.destroyForcibly().waitFor();
+            }
+            Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static final int CLUSTER_TEST_GROUPS = 20;
+
+    // Ports of the nodes that answered a RequestTrackDevice for one device in each group
+    private static Set<Integer> trackDeviceInEveryGroup(ActorSystem client, ActorRef registry) {
+        TestKit probe = new TestKit(client);
+        Set<Integer> ports = new HashSet<>();
+        for (int group = 0; group < CLUSTER_TEST_GROUPS; group++) {
+            registry.tell(new RequestTrackDevice("group-" + group, "device"), probe.getRef());
+            probe.expectMsgClass(Duration.ofSeconds(10), DeviceRegistered.class);
+            ports.add((Integer) probe.getLastSender().path().address().port().get());
+        }
+        return ports;
+    }
+
+    private static void awaitMembersUp(ActorSystem system, int count) {
+        new TestKit(system).awaitCond(Duration.ofSeconds(60), Duration.ofMillis(500), () ->
+                StreamSupport.stream(Cluster.get(system).state().getMembers().spliterator(), false)
+                        .filter(member -> member.status() == MemberStatus.up())
+                        .count() == count);
+    }
+
+    private static Config clusterNodeConfig(int port, int seedPort, String role) {
+        return ConfigFactory.parseString(
+                "akka.loglevel = WARNING\n" +
+                        "akka.actor.provider = cluster\n" +
+                        "akka.actor.warn-about-java-serializer-usage = off\n" +
+                        "akka.remote.netty.tcp.hostname = 127.0.0.1\n" +
+                        "akka.remote.netty.tcp.port = " + port + "\n" +
+                        "akka.cluster.seed-nodes = [\"akka.tcp://iot-system@127.0.0.1:" + seedPort + "\"]\n" +
+                        "akka.cluster.roles = [" + role + "]\n" +
+                        "akka.cluster.auto-down-unreachable-after = 2s\n" +
+                        "akka.cluster.sharding.rebalance-interval = 1s\n" +
+                        "akka.cluster.sharding.least-shard-allocation-strategy.rebalance-threshold = 1\n" +
+                        "iot.cluster.enabled = on\n" +
+                        "iot.cluster.role = iot\n" +
+                        "iot.cluster.shards = " + CLUSTER_TEST_GROUPS + "\n");
+    }
+
+    // Runs IotMain in a JVM of its own, configured through a file in the given directory
+    private static Process startClusterNode(Path directory, int port, int seedPort) throws IOException {
+        Path config = directory.resolve("node-" + port + ".conf");
+        Files.write(config, clusterNodeConfig(port, seedPort, "iot").root()
+                .render(ConfigRenderOptions.concise()).getBytes(StandardCharsets.UTF_8));
+        String classpath = System.getProperty("iot.test.classpath", System.getProperty("java.class.path"));
+        return new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classpath, "-Dconfig.file=" + config, IotMain.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve("node-" + port + ".log").toFile())
+                .start();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
 }
+